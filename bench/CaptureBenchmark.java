@@ -0,0 +1,248 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Measures what capturing every packet to a pcap file costs the IntermediateHost's forwarding.
+ * Runs a host in this process and a stand-in server on port 69 (so no Server or IntermediateHost
+ * may be running), then pushes a write through the host a window of DATA at a time, the server
+ * answering each with its ACK, with capture off and on in turn for a number of rounds. Reports
+ * the packets relayed per second and the round trip through the host (mean/p50/p99) for each,
+ * the packets captured and left out, and how much throughput capturing cost, as a table and JSON.
+ *
+ * Usage: java CaptureBenchmark [name=value ...]
+ *   packets=50000       DATA packets each round, each answered by an ACK
+ *   size=512            bytes of data in each DATA
+ *   window=8            DATA sent ahead of their ACKs
+ *   rounds=3            rounds of capture off then on
+ *   warmup=1            rounds run first and not counted, while the JIT compiles the relay
+ *   dir=CaptureFiles    folder the capture files go in, deleted afterwards unless keep=true
+ *   captureMB=64 captureFiles=2 bufferKB=4096   rotation and buffer of the capture, as the tftp.capture* settings
+ *   out=capture.json    results file
+ */
+public class CaptureBenchmark {
+	private static final String[] MODES = {"off", "on"};
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new TreeMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				System.err.println("Arguments are name=value, e.g. packets=100000 window=16 rounds=5");
+				return;
+			}
+			options.put(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+		}
+		int packets = Integer.parseInt(get(options, "packets", "50000"));
+		int size = Integer.parseInt(get(options, "size", "512"));
+		int window = Integer.parseInt(get(options, "window", "8"));
+		int rounds = Integer.parseInt(get(options, "rounds", "3"));
+		int warmup = Integer.parseInt(get(options, "warmup", "1"));
+		File dir = new File(get(options, "dir", "CaptureFiles"));
+		boolean keep = Boolean.parseBoolean(get(options, "keep", "false"));
+		long rotateBytes = Long.parseLong(get(options, "captureMB", "64")) * 1024 * 1024;
+		int keepFiles = Integer.parseInt(get(options, "captureFiles", "2"));
+		int bufferBytes = Integer.parseInt(get(options, "bufferKB", "4096")) * 1024;
+		File out = new File(get(options, "out", "capture.json"));
+
+		TFTPInfoPrinter.setVerboseMode(false);
+		final IntermediateHost host = new IntermediateHost();
+		host.setSessionLog(false);
+		host.setCapture(null);
+		Thread relay = new Thread("Benchmark Host") {
+			public void run() {
+				try {
+					host.relay();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		relay.setDaemon(true);
+		relay.start();
+		startServer();
+		dir.mkdirs();
+
+		long[] nanos = new long[MODES.length];
+		long[] lost = new long[MODES.length];
+		Histogram[] rtt = {new Histogram(), new Histogram()};
+		long captured = 0, leftOut = 0, bytes = 0;
+		System.out.println(String.format("%d rounds of %d DATA of %d bytes, %d ahead of their ACKs", rounds, packets, size, window));
+		for (int round = -warmup; round < rounds; round++) {
+			for (int m = 0; m < MODES.length; m++) {
+				boolean counted = round >= 0;
+				PcapWriter capture = null;
+				if (m == 1) {
+					capture = new PcapWriter(new File(dir, "capture.pcap"), rotateBytes, keepFiles, bufferBytes);
+					host.setCapture(capture);
+				}
+				long[] result = transfer(packets, size, window, counted ? rtt[m] : new Histogram());
+				if (capture != null) {
+					host.setCapture(null);
+					capture.close();
+				}
+				if (counted) {
+					nanos[m] += result[0];
+					lost[m] += result[1];
+					if (capture != null) {
+						captured += capture.getCaptured();
+						leftOut += capture.getDropped();
+						bytes += capture.getBytesWritten();
+					}
+				}
+				System.out.println(String.format("  %s %d, capture %-3s: %.0f packets/s", counted ? "round" : "warmup", counted ? round + 1 : round + warmup + 1,
+						MODES[m], 2.0 * packets * 1e9 / result[0]));
+			}
+		}
+
+		double[] rate = new double[MODES.length];
+		System.out.println(String.format("%-8s %12s %10s %10s %10s %8s", "capture", "packets/s", "rtt mean", "p50 us", "p99 us", "lost"));
+		for (int m = 0; m < MODES.length; m++) {
+			// Every DATA and every ACK is relayed
+			rate[m] = 2.0 * packets * rounds * 1e9 / nanos[m];
+			System.out.println(String.format("%-8s %12.0f %10.1f %10d %10d %8d", MODES[m], rate[m], rtt[m].getMean(),
+					rtt[m].getPercentile(50), rtt[m].getPercentile(99), lost[m]));
+		}
+		double overhead = 100.0 * (rate[0] - rate[1]) / rate[0];
+		System.out.println(String.format("Captured %d packets (%d left out, writer behind), %.1f MB; capture cost %.1f%% of the throughput",
+				captured, leftOut, bytes / (1024.0 * 1024), overhead));
+
+		Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+		try {
+			w.write(String.format(Locale.ROOT, "{\"packets\": %d, \"size\": %d, \"window\": %d, \"rounds\": %d, \"bufferKB\": %d,\n",
+					packets, size, window, rounds, bufferBytes / 1024));
+			for (int m = 0; m < MODES.length; m++) {
+				w.write(String.format(Locale.ROOT, " \"%s\": {\"packetsPerSecond\": %.1f, \"rttMicros\": {\"mean\": %.1f, \"p50\": %d, \"p99\": %d, \"max\": %d}, \"lost\": %d},\n",
+						MODES[m], rate[m], rtt[m].getMean(), rtt[m].getPercentile(50), rtt[m].getPercentile(99), rtt[m].getMax(), lost[m]));
+			}
+			w.write(String.format(Locale.ROOT, " \"captured\": %d, \"leftOut\": %d, \"bytesWritten\": %d, \"overheadPercent\": %.2f}\n",
+					captured, leftOut, bytes, overhead));
+		} finally {
+			w.close();
+		}
+		System.out.println("Results written to " + out.getPath());
+		if (!keep) {
+			File[] files = dir.listFiles();
+			if (files != null) for (File f : files) f.delete();
+			dir.delete();
+		}
+	}
+
+	private static String get(Map<String, String> args, String name, String defaultValue) {
+		String value = args.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/***
+	 * Writes packets DATA through the host, at most window unacknowledged, recording each round
+	 * trip. Returns the nanos from the first DATA to the last ACK and the DATA that got no ACK.
+	 */
+	private static long[] transfer(int packets, int size, int window, Histogram rtt) throws IOException {
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(1000);
+		try {
+			byte[] wrq = new RequestPacket(RequestPacket.writeOpcode, "capture-benchmark", "octet").encode();
+			socket.send(new DatagramPacket(wrq, wrq.length, new InetSocketAddress(InetAddress.getLoopbackAddress(), 23)));
+			byte[] ack = new byte[4];
+			DatagramPacket in = new DatagramPacket(ack, ack.length);
+			socket.receive(in);
+			SocketAddress session = in.getSocketAddress();
+
+			byte[] data = new byte[4 + size];
+			data[1] = 3;
+			DatagramPacket outgoing = new DatagramPacket(data, data.length, session);
+			long[] sentAt = new long[65536];
+			long sent = 0, acked = 0, lost = 0;
+			long start = System.nanoTime();
+			while (acked < packets) {
+				while (sent < packets && sent - acked < window) {
+					sent++;
+					int block = (int) (sent & 0xFFFF);
+					data[2] = (byte) (block >> 8);
+					data[3] = (byte) block;
+					sentAt[block] = System.nanoTime();
+					socket.send(outgoing);
+				}
+				try {
+					socket.receive(in);
+				} catch (SocketTimeoutException e) {
+					// Given up on, the window moves on
+					lost += sent - acked;
+					acked = sent;
+					continue;
+				}
+				int block = (ack[2] & 0xFF) << 8 | (ack[3] & 0xFF);
+				rtt.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt[block]));
+				acked++;
+			}
+			long elapsed = System.nanoTime() - start;
+			// An empty DATA ends the transfer, so the host and server let it go
+			int block = (int) ((sent + 1) & 0xFFFF);
+			byte[] last = {0, 3, (byte) (block >> 8), (byte) block};
+			socket.send(new DatagramPacket(last, last.length, session));
+			try {
+				socket.receive(in);
+			} catch (SocketTimeoutException e) {
+			}
+			return new long[] {elapsed, lost};
+		} finally {
+			socket.close();
+		}
+	}
+
+	//a server on port 69 that takes one write at a time and ACKs every DATA straight away
+	private static void startServer() throws IOException {
+		final DatagramSocket known = new DatagramSocket(69);
+		Thread t = new Thread("Benchmark Server") {
+			public void run() {
+				byte[] request = new byte[516];
+				byte[] data = new byte[TransferOptions.MAX_BLOCK_SIZE + 4];
+				byte[] ack = {0, 4, 0, 0};
+				try {
+					while (true) {
+						DatagramPacket in = new DatagramPacket(request, request.length);
+						known.receive(in);
+						DatagramSocket tid = new DatagramSocket();
+						tid.setSoTimeout(3000);
+						try {
+							ack[2] = 0;
+							ack[3] = 0;
+							tid.send(new DatagramPacket(ack, ack.length, in.getSocketAddress()));
+							DatagramPacket packet = new DatagramPacket(data, data.length);
+							DatagramPacket reply = new DatagramPacket(ack, ack.length, in.getSocketAddress());
+							while (true) {
+								packet.setLength(data.length);
+								tid.receive(packet);
+								ack[2] = data[2];
+								ack[3] = data[3];
+								reply.setSocketAddress(packet.getSocketAddress());
+								tid.send(reply);
+								if (packet.getLength() == 4) break;
+							}
+						} catch (SocketTimeoutException e) {
+							// The client gave up, wait for the next round
+						} finally {
+							tid.close();
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+}
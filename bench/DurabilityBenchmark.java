@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * Compares the durability modes of received files (tftp.durability) by writing uploads the way
+ * ServerThread does: blocks through a FileBlockSink into a PartFile, then flushed and published on
+ * the last block. No network is involved, so the numbers are
+ * what the disk and the mode cost.
+ *
+ * For each mode it reports files per second, MB/s, the time per file (p50/p99/max) and the time the
+ * final ACK would wait for the file to be published (the flush and publish after the last block),
+ * which is where NONE and CLOSE differ most and GROUPED pays part of it up front.
+ * Run it on the disk the server's ServerFiles folder is on, a tmpfs makes every mode look the same.
+ *
+ * Usage: java DurabilityBenchmark [name=value ...]
+ *   modes=none,close,grouped  modes to compare, in this order
+ *   files=20            uploads per mode, after one unmeasured warmup upload
+ *   sizeKB=8192         size of each upload
+ *   blksize=1428        block size the uploads arrive in
+ *   writeBehind=64      as tftp.writeBehind
+ *   syncMB=8 syncMillis=1000   as tftp.syncMB and tftp.syncMillis, for grouped
+ *   dir=DurabilityFiles folder the uploads are written to, emptied afterwards
+ *   out=durability.json results file
+ */
+public class DurabilityBenchmark {
+	private final FileBlockSink.Durability[] modes;
+	private final int files;
+	private final long size;
+	private final int blockSize;
+	private final int writeBehind;
+	private final File dir;
+	private final File out;
+	private final Map<String, String> config;
+
+	DurabilityBenchmark(Map<String, String> args) {
+		config = args;
+		String[] names = get(args, "modes", "none,close,grouped").split(",");
+		modes = new FileBlockSink.Durability[names.length];
+		for (int i = 0; i < names.length; i++) modes[i] = FileBlockSink.Durability.valueOf(names[i].trim().toUpperCase());
+		files = Integer.parseInt(get(args, "files", "20"));
+		size = Long.parseLong(get(args, "sizeKB", "8192")) * 1024;
+		blockSize = Integer.parseInt(get(args, "blksize", "1428"));
+		writeBehind = Integer.parseInt(get(args, "writeBehind", Integer.toString(TFTPConfig.getWriteBehindBlocks())));
+		dir = new File(get(args, "dir", "DurabilityFiles"));
+		out = new File(get(args, "out", "durability.json"));
+		// FileBlockSink reads these when it is made
+		System.setProperty("tftp.syncMB", get(args, "syncMB", "8"));
+		System.setProperty("tftp.syncMillis", get(args, "syncMillis", "1000"));
+	}
+
+	private static String get(Map<String, String> args, String name, String defaultValue) {
+		String value = args.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new TreeMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				System.err.println("Arguments are name=value, e.g. files=50 sizeKB=1024 modes=close,grouped");
+				return;
+			}
+			options.put(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+		}
+		new DurabilityBenchmark(options).run();
+	}
+
+	private static final class Result {
+		final FileBlockSink.Durability mode;
+		final double seconds;
+		final long[] fileNanos;
+		final long[] publishNanos;
+
+		Result(FileBlockSink.Durability mode, double seconds, long[] fileNanos, long[] publishNanos) {
+			this.mode = mode;
+			this.seconds = seconds;
+			this.fileNanos = fileNanos;
+			this.publishNanos = publishNanos;
+		}
+	}
+
+	private void run() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+		System.out.println(String.format("%d uploads of %d KB in %d byte blocks per mode, write-behind %d, into %s",
+				files, size / 1024, blockSize, writeBehind, dir.getAbsolutePath()));
+		System.out.println(String.format("%-8s %8s %8s %10s %10s %10s %12s %12s", "mode", "files/s", "MB/s",
+				"p50 ms", "p99 ms", "max ms", "publish p50", "publish max"));
+		byte[] block = new byte[blockSize];
+		for (int i = 0; i < block.length; i++) block[i] = (byte) i;
+		List<Result> results = new ArrayList<Result>();
+		int n = 0;
+		for (FileBlockSink.Durability mode : modes) {
+			upload(mode, block, "warmup-" + n++);
+			long[] fileNanos = new long[files];
+			long[] publishNanos = new long[files];
+			long start = System.nanoTime();
+			for (int i = 0; i < files; i++) {
+				long fileStart = System.nanoTime();
+				publishNanos[i] = upload(mode, block, "upload-" + n++);
+				fileNanos[i] = System.nanoTime() - fileStart;
+			}
+			Result r = new Result(mode, (System.nanoTime() - start) / 1e9, fileNanos, publishNanos);
+			results.add(r);
+			Arrays.sort(fileNanos);
+			Arrays.sort(publishNanos);
+			System.out.println(String.format("%-8s %8.1f %8.1f %10.1f %10.1f %10.1f %12.2f %12.2f", mode.name().toLowerCase(),
+					files / r.seconds, files * size / 1048576.0 / r.seconds, percentile(fileNanos, 50), percentile(fileNanos, 99),
+					fileNanos[files - 1] / 1e6, percentile(publishNanos, 50), publishNanos[files - 1] / 1e6));
+			clean();
+		}
+		writeJson(results);
+		System.out.println("Results written to " + out.getPath());
+	}
+
+	//writes one upload the way ServerThread.readFromClient does, returns the nanos from the last block to it being published
+	private long upload(FileBlockSink.Durability mode, byte[] block, String name) throws IOException {
+		PartFile part = new PartFile(dir.toPath().resolve(name));
+		FileBlockSink sink = new FileBlockSink(part.getChannel(), writeBehind, mode);
+		try {
+			long written = 0;
+			// Like an upload, the last block is always shorter than a full one, even if that makes it empty
+			while (true) {
+				int length = (int) Math.min(blockSize, size - written);
+				sink.write(block, 0, length);
+				written += length;
+				if (length < blockSize) break;
+			}
+			long last = System.nanoTime();
+			sink.flush();
+			part.publish(mode);
+			return System.nanoTime() - last;
+		} finally {
+			sink.close();
+			part.discard();
+		}
+	}
+
+	private void clean() throws IOException {
+		File[] left = dir.listFiles();
+		if (left == null) return;
+		for (File f : left) Files.deleteIfExists(f.toPath());
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+	}
+
+	private void writeJson(List<Result> results) throws IOException {
+		File parent = out.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+		Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+		try {
+			w.write("{\n  \"config\": {");
+			int i = 0;
+			for (Map.Entry<String, String> option : config.entrySet()) {
+				w.write((i++ > 0 ? ", " : "") + "\"" + option.getKey() + "\": \"" + option.getValue() + "\"");
+			}
+			w.write("},\n  \"modes\": [\n");
+			for (int r = 0; r < results.size(); r++) {
+				Result result = results.get(r);
+				w.write(String.format(Locale.ROOT, "    {\"mode\": \"%s\", \"files\": %d, \"bytesPerFile\": %d, \"filesPerSecond\": %.3f, \"bytesPerSecond\": %.1f, "
+						+ "\"fileMillis\": {\"p50\": %.3f, \"p99\": %.3f, \"max\": %.3f}, \"publishMillis\": {\"p50\": %.3f, \"p99\": %.3f, \"max\": %.3f}}%s\n",
+						result.mode.name().toLowerCase(), files, size, files / result.seconds, files * size / result.seconds,
+						percentile(result.fileNanos, 50), percentile(result.fileNanos, 99), result.fileNanos[files - 1] / 1e6,
+						percentile(result.publishNanos, 50), percentile(result.publishNanos, 99), result.publishNanos[files - 1] / 1e6,
+						r < results.size() - 1 ? "," : ""));
+			}
+			w.write("  ]\n}\n");
+		} finally {
+			w.close();
+		}
+	}
+}
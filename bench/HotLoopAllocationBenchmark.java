@@ -0,0 +1,218 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/***
+ * Measures the bytes allocated per block by the transfer loops of ServerThread and Client,
+ * to check the hot loops stay allocation free once they are running.
+ *
+ * Runs the real Client against ServerThreads in this process: a dispatcher thread takes the
+ * requests on port 69 (so this needs the same privileges as running the server) and runs each
+ * ServerThread's run() on itself, so the HotSpot per thread allocation counter covers exactly
+ * one side of the transfer. Each loop transfers a small and a large file and the per block
+ * figure is the difference between the two divided by the extra blocks, which leaves out the
+ * fixed cost of a transfer (socket, file, option parsing, the console messages).
+ *
+ * The JDK's DatagramSocket allocates a little itself on every send and receive, which no
+ * caller can avoid. That floor is measured with a bare send/receive loop and shown next to
+ * each loop, "own B/block" is what is left once it is taken off.
+ *
+ * Usage: java HotLoopAllocationBenchmark [blocks] [blksize] [windowsize]
+ * Run from a scratch folder, the ServerFiles and ClientFiles folders are made there.
+ */
+public class HotLoopAllocationBenchmark {
+	private static final int SERVER_PORT = 69;
+	private static final int SMALL_BLOCKS = 256;
+	private static final int WARMUP = 5;
+
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	// Bytes the dispatcher thread allocated in the last ServerThread.run()
+	private static volatile long serverAllocated;
+	private static final Object lock = new Object();
+	private static int transfersServed = 0;
+
+	public static void main(String[] args) throws Exception {
+		int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+		int windowSize = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		new File("ServerFiles").mkdirs();
+		new File("ClientFiles").mkdirs();
+		// One byte short of whole blocks, so the last block ends the transfer
+		String small = makeFile("hotloop-small.bin", (long) SMALL_BLOCKS * blockSize - 1);
+		String large = makeFile("hotloop-large.bin", (long) blocks * blockSize - 1);
+
+		final DatagramSocket serverSocket = new DatagramSocket(SERVER_PORT);
+		Thread dispatcher = new Thread("Dispatcher") {
+			public void run() {
+				dispatch(serverSocket);
+			}
+		};
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+
+		TFTPInfoPrinter.setVerboseMode(false);
+		PrintStream console = System.out;
+		// Client and ServerThread report every transfer on the console, that is part of the fixed cost
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		Client client = new Client();
+		client.setTestMode(false);
+		client.setBlockSize(blockSize);
+		client.setWindowSize(windowSize);
+
+		long[] floor = measureSocketFloor(blockSize);
+		double[] read = new double[2];
+		double[] write = new double[2];
+		for (int i = 0; i < WARMUP; i++) {
+			read(client, small);
+			write(client, small);
+		}
+		measure(client, small, large, blocks, read, true);
+		measure(client, small, large, blocks, write, false);
+		System.setOut(console);
+
+		// per block: window size 1 is one DATA and one ACK, otherwise one ACK per window
+		double acksPerBlock = 1.0 / windowSize;
+		double dataSide = floor[0] + acksPerBlock * floor[1];
+		double ackSide = floor[1] + acksPerBlock * floor[0];
+		System.out.println(String.format("blksize %d, windowsize %d, %d blocks against %d", blockSize, windowSize, blocks, SMALL_BLOCKS));
+		System.out.println(String.format("DatagramSocket floor: %d B per send, %d B per receive", floor[0], floor[1]));
+		System.out.println(String.format("%-32s %12s %12s %12s", "loop", "B/block", "socket B", "own B/block"));
+		print("ServerThread.writeToClient (RRQ)", read[0], dataSide);
+		print("Client.receiveFromServer (RRQ)", read[1], ackSide);
+		print("ServerThread.readFromClient (WRQ)", write[0], ackSide);
+		print("Client.writeToServer (WRQ)", write[1], dataSide);
+
+		new File("ServerFiles/" + small).delete();
+		new File("ServerFiles/" + large).delete();
+		new File("ClientFiles/" + small).delete();
+		new File("ClientFiles/" + large).delete();
+		new File("ClientFiles/up-" + small).delete();
+		new File("ClientFiles/up-" + large).delete();
+		serverSocket.close();
+	}
+
+	private static void print(String loop, double perBlock, double socket) {
+		System.out.println(String.format("%-32s %12.1f %12.1f %12.1f", loop, perBlock, socket, Math.max(0, perBlock - socket)));
+	}
+
+	//per block allocation of both sides, from the difference between the small and the large transfer
+	private static void measure(Client client, String small, String large, int blocks, double[] result, boolean read) throws Exception {
+		long[] a = read ? read(client, small) : write(client, small);
+		long[] b = read ? read(client, large) : write(client, large);
+		double extraBlocks = blocks - SMALL_BLOCKS;
+		result[0] = (b[0] - a[0]) / extraBlocks;
+		result[1] = (b[1] - a[1]) / extraBlocks;
+	}
+
+	//downloads ServerFiles/file, returns the bytes allocated by the server and the client side
+	private static long[] read(Client client, String file) throws Exception {
+		new File("ClientFiles/" + file).delete();
+		long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		int served = transfersServed;
+		client.readFromServer(file, "octet");
+		long clientAllocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+		check(file, served);
+		return new long[] {serverAllocated, clientAllocated};
+	}
+
+	//uploads a copy of ServerFiles/file under another name, returns the bytes allocated by the server and the client side
+	private static long[] write(Client client, String file) throws Exception {
+		String upload = "up-" + file;
+		File local = new File("ClientFiles/" + upload);
+		if (!local.exists()) Files.copy(new File("ServerFiles/" + file).toPath(), local.toPath());
+		new File("ServerFiles/" + upload).delete();
+		long start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		int served = transfersServed;
+		client.writeToServer(upload, "octet");
+		long clientAllocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+		check(upload, served);
+		new File("ServerFiles/" + upload).delete();
+		return new long[] {serverAllocated, clientAllocated};
+	}
+
+	//waits for the server side to finish and makes sure the transfer really happened
+	private static void check(String file, int served) throws InterruptedException {
+		synchronized (lock) {
+			while (transfersServed == served) lock.wait();
+		}
+		File a = new File("ServerFiles/" + file);
+		File b = new File("ClientFiles/" + file);
+		if (a.length() != b.length()) throw new IllegalStateException("Transfer of " + file + " failed");
+	}
+
+	//takes requests on the well known port and runs each transfer on this thread, measuring it
+	private static void dispatch(DatagramSocket socket) {
+		long id = Thread.currentThread().getId();
+		byte[] buffer = new byte[516];
+		while (true) {
+			DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(request);
+			} catch (Exception e) {
+				return;
+			}
+			byte[] data = Arrays.copyOf(request.getData(), request.getLength());
+			ServerThread transfer = new ServerThread("Server Thread", request, data);
+			long start = threads.getThreadAllocatedBytes(id);
+			transfer.run();
+			serverAllocated = threads.getThreadAllocatedBytes(id) - start;
+			synchronized (lock) {
+				transfersServed++;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	//bytes the JDK allocates for one DatagramSocket send and one receive, after warming up
+	private static long[] measureSocketFloor(int blockSize) throws Exception {
+		DatagramSocket a = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		DatagramSocket b = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		DatagramPacket out = new DatagramPacket(new byte[blockSize + 4], blockSize + 4, b.getLocalAddress(), b.getLocalPort());
+		DatagramPacket in = new DatagramPacket(new byte[blockSize + 4], blockSize + 4);
+		long id = Thread.currentThread().getId();
+		long send = 0, receive = 0;
+		int rounds = 20000;
+		for (int pass = 0; pass < 2; pass++) {
+			send = 0;
+			receive = 0;
+			for (int i = 0; i < rounds; i++) {
+				long t0 = threads.getThreadAllocatedBytes(id);
+				a.send(out);
+				long t1 = threads.getThreadAllocatedBytes(id);
+				b.receive(in);
+				long t2 = threads.getThreadAllocatedBytes(id);
+				send += t1 - t0;
+				receive += t2 - t1;
+			}
+		}
+		a.close();
+		b.close();
+		return new long[] {send / rounds, receive / rounds};
+	}
+
+	private static String makeFile(String name, long size) throws Exception {
+		File file = new File("ServerFiles/" + name);
+		if (file.length() == size) return name;
+		byte[] chunk = new byte[64 * 1024];
+		new Random(1).nextBytes(chunk);
+		FileOutputStream out = new FileOutputStream(file);
+		for (long left = size; left > 0; left -= chunk.length) out.write(chunk, 0, (int) Math.min(chunk.length, left));
+		out.close();
+		return name;
+	}
+}
@@ -0,0 +1,285 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Puts a running server under load with many Clients at once, each on its own thread and
+ * socket, making reads and writes one after another for a fixed time or number of transfers.
+ *
+ * Reads fetch files from the server's ServerFiles folder into a folder per client under
+ * LoadFiles, deleted again after each read. Writes upload files from the corpus folder under a
+ * name unique to the run, so they never hit "file already exists". If the server's ServerFiles
+ * folder is in the current folder too, the uploads are deleted from it once the run is over.
+ *
+ * Reports transfers per second, goodput (file bytes per second of completed transfers), failures
+ * by the error code that ended them, and the p50/p90/p99/p99.9 time per transfer, for all
+ * transfers and for reads and writes apart, as a table and as JSON.
+ *
+ * Usage: java LoadGenerator [name=value ...]
+ *   clients=8           simulated clients running at once
+ *   seconds=30          how long to run for, unless requests is set
+ *   requests=0          number of transfers to make in total, 0 to run for the time given
+ *   reads=80            percentage of transfers that are reads, the rest are writes
+ *   files=a.bin,b.bin   files to transfer, every file in the corpus folder if not given
+ *   corpus=TESTFILES    folder the uploads are read from
+ *   blksize=512 windowsize=1 timeout=0   options the clients ask for, as in Client
+ *   test=false          go through the intermediate host on port 23
+ *   seed=1              seed for the random choice of reads, writes and files
+ *   out=loadgen.json    results file
+ */
+public class LoadGenerator {
+	private final int clients;
+	private final long seconds;
+	private final long requests;
+	private final int readPercent;
+	private final String[] files;
+	private final File corpus;
+	private final int blockSize;
+	private final int windowSize;
+	private final int timeout;
+	private final boolean testMode;
+	private final long seed;
+	private final File out;
+	private final Map<String, String> config;
+
+	private final AtomicLong claimed = new AtomicLong();
+	private volatile long deadline;
+	private final String runId = Long.toString(System.currentTimeMillis(), 36);
+	private final PrintStream console = System.out;
+
+	LoadGenerator(Map<String, String> args) {
+		config = args;
+		clients = Integer.parseInt(get(args, "clients", "8"));
+		seconds = Long.parseLong(get(args, "seconds", "30"));
+		requests = Long.parseLong(get(args, "requests", "0"));
+		readPercent = Integer.parseInt(get(args, "reads", "80"));
+		corpus = new File(get(args, "corpus", "TESTFILES"));
+		blockSize = Integer.parseInt(get(args, "blksize", Integer.toString(TransferOptions.DEFAULT_BLOCK_SIZE)));
+		windowSize = Integer.parseInt(get(args, "windowsize", "1"));
+		timeout = Integer.parseInt(get(args, "timeout", "0"));
+		testMode = Boolean.parseBoolean(get(args, "test", "false"));
+		seed = Long.parseLong(get(args, "seed", "1"));
+		out = new File(get(args, "out", "loadgen.json"));
+		String list = args.get("files");
+		if (list != null) {
+			files = list.split(",");
+		}
+		else {
+			String[] names = corpus.list();
+			if (names == null) throw new IllegalArgumentException("Corpus folder " + corpus + " does not exist");
+			Arrays.sort(names);
+			files = names;
+		}
+	}
+
+	private static String get(Map<String, String> args, String name, String defaultValue) {
+		String value = args.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new TreeMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				System.err.println("Arguments are name=value, e.g. clients=16 seconds=60 reads=50 out=results.json");
+				return;
+			}
+			options.put(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+		}
+		new LoadGenerator(options).run();
+	}
+
+	private void run() throws Exception {
+		console.println(String.format("%d clients, %s, %d%% reads of %s", clients,
+				requests > 0 ? requests + " transfers" : seconds + " s", readPercent, Arrays.toString(files)));
+		TFTPInfoPrinter.setVerboseMode(false);
+		final List<List<TransferStats>> results = new ArrayList<List<TransferStats>>();
+		final List<List<String>> uploads = new ArrayList<List<String>>();
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final List<TransferStats> stats = new ArrayList<TransferStats>();
+			final List<String> uploaded = new ArrayList<String>();
+			results.add(stats);
+			uploads.add(uploaded);
+			final int id = i;
+			threads[i] = new Thread("Load Client #" + i) {
+				public void run() {
+					runClient(id, stats, uploaded);
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		deadline = requests > 0 ? Long.MAX_VALUE : start + seconds * 1000000000L;
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		List<TransferStats> all = new ArrayList<TransferStats>();
+		for (List<TransferStats> stats : results) all.addAll(stats);
+		report(all, elapsed);
+		cleanUp(uploads);
+	}
+
+	//one simulated client, transfers one file after another until the run is over
+	private void runClient(int id, List<TransferStats> stats, List<String> uploaded) {
+		File folder = new File("LoadFiles", "client-" + id);
+		folder.mkdirs();
+		Client client = new Client();
+		// Client reports every step on the console, with this many at once only the results are wanted
+		client.setQuiet(true);
+		client.setTestMode(testMode);
+		client.setDirectory(folder.getPath());
+		client.setBlockSize(blockSize);
+		client.setWindowSize(windowSize);
+		client.setTimeout(timeout);
+		Random random = new Random(seed * 31 + id);
+		int count = 0;
+		while (System.nanoTime() < deadline) {
+			if (requests > 0 && claimed.getAndIncrement() >= requests) break;
+			String file = files[random.nextInt(files.length)];
+			boolean read = random.nextInt(100) < readPercent;
+			TransferStats result;
+			try {
+				if (read) {
+					result = client.readFromServer(file, "octet");
+					new File(folder, file).delete();
+				}
+				else {
+					String remoteName = "load-" + runId + "-" + id + "-" + count + "-" + file;
+					uploaded.add(remoteName);
+					result = client.writeToServer(new File(corpus, file).getPath(), "octet", remoteName);
+				}
+			} catch (IOException e) {
+				// Counted as a failure with no error code
+				result = new TransferStats(file, read, false, 0, 0, TransferStats.NO_ERROR, false, client.getRttEstimator());
+			}
+			stats.add(result);
+			count++;
+		}
+		folder.delete();
+	}
+
+	private void report(List<TransferStats> all, double elapsed) throws IOException {
+		long completed = 0, bytes = 0;
+		Map<String, Long> failures = new TreeMap<String, Long>();
+		for (TransferStats s : all) {
+			if (s.isCompleted()) {
+				completed++;
+				bytes += s.getBytes();
+				continue;
+			}
+			String reason = s.isTimedOut() ? "timed out" : s.getErrorCode() != TransferStats.NO_ERROR ? "error " + s.getErrorCode() : "other";
+			Long n = failures.get(reason);
+			failures.put(reason, n == null ? 1 : n + 1);
+		}
+		double[] allLatency = latencies(all, null);
+		double[] readLatency = latencies(all, Boolean.TRUE);
+		double[] writeLatency = latencies(all, Boolean.FALSE);
+
+		console.println();
+		console.println(String.format("Ran for %.1f s: %d transfers, %d completed, %d failed", elapsed, all.size(), completed, all.size() - completed));
+		console.println(String.format("Throughput: %.1f transfers/s completed, goodput %.2f MB/s", completed / elapsed, bytes / elapsed / (1024 * 1024)));
+		console.println("Failures: " + (failures.isEmpty() ? "none" : failures.toString()));
+		console.println(String.format("%-6s %8s %10s %10s %10s %10s %10s %10s", "ms", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+		printLatency("all", allLatency);
+		printLatency("read", readLatency);
+		printLatency("write", writeLatency);
+
+		File parent = out.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+		Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+		try {
+			w.write("{\n  \"config\": {");
+			int i = 0;
+			for (Map.Entry<String, String> option : config.entrySet()) {
+				w.write((i++ > 0 ? ", " : "") + "\"" + escape(option.getKey()) + "\": \"" + escape(option.getValue()) + "\"");
+			}
+			w.write("},\n");
+			w.write(String.format(Locale.ROOT, "  \"clients\": %d,\n  \"seconds\": %.3f,\n  \"transfers\": %d,\n  \"completed\": %d,\n  \"failed\": %d,\n",
+					clients, elapsed, all.size(), completed, all.size() - completed));
+			w.write(String.format(Locale.ROOT, "  \"transfersPerSecond\": %.3f,\n  \"goodputBytesPerSecond\": %.1f,\n", completed / elapsed, bytes / elapsed));
+			w.write("  \"failures\": {");
+			i = 0;
+			for (Map.Entry<String, Long> failure : failures.entrySet()) {
+				w.write((i++ > 0 ? ", " : "") + "\"" + failure.getKey() + "\": " + failure.getValue());
+			}
+			w.write("},\n  \"latencyMillis\": {\n");
+			w.write("    \"all\": " + latencyJson(allLatency) + ",\n");
+			w.write("    \"read\": " + latencyJson(readLatency) + ",\n");
+			w.write("    \"write\": " + latencyJson(writeLatency) + "\n  }\n}\n");
+		} finally {
+			w.close();
+		}
+		console.println("Results written to " + out.getPath());
+	}
+
+	//sorted times in ms of every transfer, or only the reads or writes
+	private static double[] latencies(List<TransferStats> all, Boolean reads) {
+		double[] ms = new double[all.size()];
+		int n = 0;
+		for (TransferStats s : all) {
+			if (reads == null || s.isRead() == reads) ms[n++] = s.getNanos() / 1e6;
+		}
+		ms = Arrays.copyOf(ms, n);
+		Arrays.sort(ms);
+		return ms;
+	}
+
+	//nearest rank percentile of sorted values
+	private static double percentile(double[] sorted, double percentile) {
+		if (sorted.length == 0) return 0;
+		int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values) sum += v;
+		return values.length == 0 ? 0 : sum / values.length;
+	}
+
+	private void printLatency(String name, double[] sorted) {
+		console.println(String.format("%-6s %8d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f", name, sorted.length, mean(sorted),
+				percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 99.9),
+				sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+	}
+
+	private static String latencyJson(double[] sorted) {
+		return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+				sorted.length, mean(sorted), percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 99.9),
+				sorted.length == 0 ? 0 : sorted[sorted.length - 1]);
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	//deletes the uploads if the server's folder is here, they are only there to be written
+	private void cleanUp(List<List<String>> uploads) throws InterruptedException {
+		File serverFiles = new File("ServerFiles");
+		if (!serverFiles.isDirectory()) return;
+		// Give the server a moment to close the last uploads
+		Thread.sleep(500);
+		int deleted = 0;
+		for (List<String> names : uploads) {
+			for (String name : names) {
+				if (new File(serverFiles, name).delete()) deleted++;
+			}
+		}
+		new File("LoadFiles").delete();
+		console.println("Deleted " + deleted + " uploaded files from " + serverFiles.getPath());
+	}
+}
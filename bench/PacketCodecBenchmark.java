@@ -0,0 +1,161 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * Compares decoding and encoding each kind of packet with the packet classes (DataPacket,
+ * AckPacket, RequestPacket, ErrorPacket) and with the flyweight PacketView / PacketEncoder.
+ *
+ * Each case runs in a loop, warmed up first so the JIT has compiled it, and reports the time
+ * and the bytes allocated per packet (HotSpot per thread allocation counter). Every result is
+ * folded into a checksum that is printed at the end, so the JIT can't drop the work.
+ *
+ * Usage: java PacketCodecBenchmark [iterations] [blksize]
+ */
+public class PacketCodecBenchmark {
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static long checksum = 0;
+
+	private interface Case {
+		void run(int i);
+	}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+
+		final byte[] block = new byte[blockSize];
+		for (int i = 0; i < block.length; i++) block[i] = (byte) i;
+		final Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put(TransferOptions.BLKSIZE, Integer.toString(blockSize));
+		options.put(TransferOptions.WINDOWSIZE, "16");
+
+		final byte[] data = new DataPacket(1234, block).encode();
+		final byte[] ack = new AckPacket(1234).encode();
+		final byte[] request = new RequestPacket(RequestPacket.readOpcode, "boot/images/netboot.img", "octet", options).encode();
+		final byte[] error = new ErrorPacket((byte) 1, "\"boot/images/netboot.img\" was not found on the server.").encode();
+		final ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+		final ByteBuffer ackBuffer = ByteBuffer.wrap(ack);
+		final ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+		final ByteBuffer errorBuffer = ByteBuffer.wrap(error);
+		final ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+		final ByteBuffer out = ByteBuffer.allocate(blockSize + 4);
+		final PacketView view = new PacketView();
+		final String message = "Server disk full, unable to write.";
+
+		System.out.println(String.format("blksize %d, %d iterations", blockSize, iterations));
+		System.out.println(String.format("%-14s %-8s %10s %10s", "case", "codec", "ns/packet", "B/packet"));
+
+		run("decode DATA", "classes", iterations, new Case() {
+			public void run(int i) {
+				DataPacket dp = new DataPacket(data);
+				checksum += dp.getBlockNum() + dp.getDataBlock()[i % dp.getDataBlock().length];
+			}
+		});
+		run("decode DATA", "view", iterations, new Case() {
+			public void run(int i) {
+				view.wrap(dataBuffer);
+				ByteBuffer payload = view.payload();
+				checksum += view.blockNumber() + payload.get(payload.position() + i % view.payloadLength());
+			}
+		});
+		run("decode ACK", "classes", iterations, new Case() {
+			public void run(int i) {
+				checksum += new AckPacket(ack).getBlockNum();
+			}
+		});
+		run("decode ACK", "view", iterations, new Case() {
+			public void run(int i) {
+				checksum += view.wrap(ackBuffer).blockNumber();
+			}
+		});
+		run("decode RRQ", "classes", iterations, new Case() {
+			public void run(int i) {
+				RequestPacket rp = new RequestPacket(request);
+				checksum += rp.getFilename().length() + rp.getMode().charAt(0);
+			}
+		});
+		run("decode RRQ", "view", iterations, new Case() {
+			public void run(int i) {
+				view.wrap(requestBuffer);
+				checksum += view.filename().length() + view.mode().charAt(0);
+			}
+		});
+		run("decode ERROR", "classes", iterations, new Case() {
+			public void run(int i) {
+				ErrorPacket ep = new ErrorPacket(error);
+				checksum += ep.getErrorCode() + ep.getErrorMessage().length();
+			}
+		});
+		run("decode ERROR", "view", iterations, new Case() {
+			public void run(int i) {
+				view.wrap(errorBuffer);
+				checksum += view.errorCode() + view.errorMessage().length();
+			}
+		});
+		run("encode DATA", "classes", iterations, new Case() {
+			public void run(int i) {
+				checksum += new DataPacket(i, block).encode()[3];
+			}
+		});
+		run("encode DATA", "encoder", iterations, new Case() {
+			public void run(int i) {
+				out.clear();
+				blockBuffer.clear();
+				PacketEncoder.putData(out, i, blockBuffer);
+				checksum += out.get(3);
+			}
+		});
+		run("encode ACK", "classes", iterations, new Case() {
+			public void run(int i) {
+				checksum += new AckPacket(i).encode()[3];
+			}
+		});
+		run("encode ACK", "encoder", iterations, new Case() {
+			public void run(int i) {
+				out.clear();
+				PacketEncoder.putAck(out, i);
+				checksum += out.get(3);
+			}
+		});
+		run("encode ERROR", "classes", iterations, new Case() {
+			public void run(int i) {
+				checksum += new ErrorPacket((byte) 3, message).encode().length;
+			}
+		});
+		run("encode ERROR", "encoder", iterations, new Case() {
+			public void run(int i) {
+				out.clear();
+				PacketEncoder.putError(out, 3, message);
+				checksum += out.position();
+			}
+		});
+		run("encode RRQ", "classes", iterations, new Case() {
+			public void run(int i) {
+				checksum += new RequestPacket(RequestPacket.readOpcode, "boot/images/netboot.img", "octet", options).encode().length;
+			}
+		});
+		run("encode RRQ", "encoder", iterations, new Case() {
+			public void run(int i) {
+				out.clear();
+				PacketEncoder.putRequest(out, RequestPacket.readOpcode, "boot/images/netboot.img", "octet", options);
+				checksum += out.position();
+			}
+		});
+		System.out.println("checksum " + checksum);
+	}
+
+	private static void run(String name, String codec, int iterations, Case c) {
+		long id = Thread.currentThread().getId();
+		// warm up with the same count so the loop is compiled before it is measured
+		for (int i = 0; i < iterations; i++) c.run(i);
+		long allocated = threads.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) c.run(i);
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(id) - allocated;
+		System.out.println(String.format("%-14s %-8s %10.1f %10.1f", name, codec, (double) elapsed / iterations, (double) allocated / iterations));
+	}
+}
@@ -0,0 +1,109 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+/***
+ * Compares the ways ServerThread can read the blocks of a RRQ: the old stream path
+ * (a new array per block, Arrays.copyOf, a new DataPacket and DatagramPacket), and
+ * FileBlockSource with positional channel reads or a memory mapping into reused packets.
+ *
+ * Every DATA packet is really sent, to a socket nobody reads from so the kernel just drops it.
+ * Allocation is measured with the HotSpot per thread allocation counter. Bytes copied counts
+ * the copies made in user space for each block of payload:
+ *   stream  - into the BufferedInputStream buffer, into the block array, Arrays.copyOf, into the DataPacket (4)
+ *   channel - into the JDK's temporary direct buffer, into the packet array (2)
+ *   mapped  - from the mapping into the packet array (1)
+ *
+ * Usage: java ReadPathBenchmark [file] [passes] [blksize]
+ * Without a file a 16 MB one of random bytes is made in the temp folder.
+ */
+public class ReadPathBenchmark {
+	private static final String[] PATHS = {"stream", "channel", "mapped"};
+	private static final int[] COPIES = {4, 2, 1};
+
+	public static void main(String[] args) throws Exception {
+		File file;
+		if (args.length > 0) {
+			file = new File(args[0]);
+		}
+		else {
+			file = File.createTempFile("readpath", ".bin");
+			file.deleteOnExit();
+			byte[] chunk = new byte[1024 * 1024];
+			new Random(1).nextBytes(chunk);
+			FileOutputStream out = new FileOutputStream(file);
+			for (int i = 0; i < 16; i++) out.write(chunk);
+			out.close();
+		}
+		int passes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+
+		DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		DatagramSocket socket = new DatagramSocket();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		double mb = file.length() / (1024.0 * 1024.0);
+
+		System.out.println(String.format("%s, %.1f MB, blksize %d, %d passes", file.getName(), mb, blockSize, passes));
+		System.out.println(String.format("%-8s %10s %18s %18s", "path", "MB/s", "allocated B/MB", "copied B/MB"));
+		for (int p = 0; p < PATHS.length; p++) {
+			// warm up first so the JIT has compiled the loop being measured
+			for (int i = 0; i < 3; i++) serve(PATHS[p], file, blockSize, socket, sink);
+			long allocated = threads.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			for (int i = 0; i < passes; i++) serve(PATHS[p], file, blockSize, socket, sink);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			allocated = threads.getThreadAllocatedBytes(threadId) - allocated;
+			double served = mb * passes;
+			System.out.println(String.format("%-8s %10.1f %18.0f %18.0f", PATHS[p], served / seconds, allocated / served,
+					COPIES[p] * 1024.0 * 1024.0));
+		}
+		socket.close();
+		sink.close();
+	}
+
+	//sends every block of the file once, the way the given path builds its packets
+	private static void serve(String path, File file, int blockSize, DatagramSocket socket, DatagramSocket sink) throws IOException {
+		InetAddress address = sink.getLocalAddress();
+		int port = sink.getLocalPort();
+		if (path.equals("stream")) {
+			BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+			int blockNum = 1;
+			while (true) {
+				byte[] dataBlock = new byte[blockSize];
+				int bytesRead = in.read(dataBlock);
+				if (bytesRead == -1) bytesRead = 0;
+				dataBlock = Arrays.copyOf(dataBlock, bytesRead);
+				byte[] data = new DataPacket(blockNum++, dataBlock).encode();
+				socket.send(new DatagramPacket(data, data.length, address, port));
+				if (bytesRead < blockSize) break;
+			}
+			in.close();
+			return;
+		}
+		System.setProperty("tftp.mmap", Boolean.toString(path.equals("mapped")));
+		FileBlockSource in = new FileBlockSource(new RandomAccessFile(file, "r").getChannel());
+		DatagramPacket packet = new DatagramPacket(new byte[blockSize + 4], blockSize + 4, address, port);
+		long position = 0;
+		int blockNum = 1;
+		while (true) {
+			byte[] data = packet.getData();
+			DataPacket.writeHeader(data, blockNum++);
+			int bytesRead = in.read(data, 4, blockSize, position);
+			position += bytesRead;
+			packet.setLength(bytesRead + 4);
+			socket.send(packet);
+			if (bytesRead < blockSize) break;
+		}
+		in.close();
+	}
+}
@@ -0,0 +1,333 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Runs real transfers through an IntermediateHost under each of a list of Scenario files, one
+ * scenario after another, to see how the client and server cope with the errors it describes.
+ * The host runs in this process on port 23 (so no other host may be running) and a Server must
+ * already be running on port 69, from the current folder if uploads are to be cleaned up.
+ *
+ * For each scenario it reports the transfers completed and failed (by the error code that ended
+ * them), the time to complete a transfer (mean/p50/p90/max ms), the timeouts the clients sat
+ * through, and the DATA and ACKs sent again as the host saw them, as a table and as JSON.
+ *
+ * Usage: java ScenarioRunner <scenario file or folder> ... [name=value ...]
+ *   files=512.bin       files to read from the server, comma separated
+ *   uploads=            local files to write to the server, comma separated, under a name unique to the run
+ *   repeat=5            transfers of each file under each scenario
+ *   clients=1           transfers at once
+ *   blksize=512 windowsize=1 timeout=0   options the clients ask for, as in Client
+ *   settle=10           seconds to wait after each scenario for the host to close its sessions
+ *   out=scenarios.json  results file
+ * A folder stands for every *.scenario file in it, in name order.
+ */
+public class ScenarioRunner {
+	private final List<File> scenarios = new ArrayList<File>();
+	private final Map<String, String> config = new TreeMap<String, String>();
+	private final List<String> reads = new ArrayList<String>();
+	private final List<String> uploads = new ArrayList<String>();
+	private final int repeat;
+	private final int clients;
+	private final int blockSize;
+	private final int windowSize;
+	private final int timeout;
+	private final long settleMillis;
+	private final File out;
+
+	private final String runId = Long.toString(System.currentTimeMillis(), 36);
+	private final List<String> uploaded = new ArrayList<String>();
+	private final AtomicInteger uploadCount = new AtomicInteger();
+	private final PrintStream console = System.out;
+
+	ScenarioRunner(String[] args) {
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq > 0) {
+				config.put(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+				continue;
+			}
+			File f = new File(arg);
+			if (f.isDirectory()) {
+				String[] names = f.list();
+				Arrays.sort(names);
+				for (String name : names) {
+					if (name.endsWith(".scenario")) scenarios.add(new File(f, name));
+				}
+			}
+			else {
+				scenarios.add(f);
+			}
+		}
+		list(get("files", "512.bin"), reads);
+		list(get("uploads", ""), uploads);
+		repeat = Integer.parseInt(get("repeat", "5"));
+		clients = Integer.parseInt(get("clients", "1"));
+		blockSize = Integer.parseInt(get("blksize", Integer.toString(TransferOptions.DEFAULT_BLOCK_SIZE)));
+		windowSize = Integer.parseInt(get("windowsize", "1"));
+		timeout = Integer.parseInt(get("timeout", "0"));
+		settleMillis = Long.parseLong(get("settle", "10")) * 1000;
+		out = new File(get("out", "scenarios.json"));
+	}
+
+	private String get(String name, String defaultValue) {
+		String value = config.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private static void list(String value, List<String> into) {
+		for (String s : value.split(",")) {
+			if (!s.trim().isEmpty()) into.add(s.trim());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ScenarioRunner runner = new ScenarioRunner(args);
+		if (runner.scenarios.isEmpty()) {
+			System.err.println("Give one or more scenario files, e.g. bench/scenarios files=512.bin,2k.bin repeat=10");
+			return;
+		}
+		runner.run();
+	}
+
+	/***
+	 * What happened to the transfers under one scenario.
+	 */
+	private static class Result {
+		final String name;
+		final List<TransferStats> transfers;
+		final double seconds;
+		final long dataResent, acksResent;
+		final boolean settled;
+
+		Result(String name, List<TransferStats> transfers, double seconds, long dataResent, long acksResent, boolean settled) {
+			this.name = name;
+			this.transfers = transfers;
+			this.seconds = seconds;
+			this.dataResent = dataResent;
+			this.acksResent = acksResent;
+			this.settled = settled;
+		}
+	}
+
+	private void run() throws Exception {
+		// Parse every scenario first, so a mistake in the last one doesn't waste the run
+		List<Scenario> loaded = new ArrayList<Scenario>();
+		for (File f : scenarios) loaded.add(Scenario.load(f));
+
+		TFTPInfoPrinter.setVerboseMode(false);
+		final IntermediateHost host = new IntermediateHost();
+		host.setSessionLog(false);
+		Thread relay = new Thread("Scenario Host") {
+			public void run() {
+				try {
+					host.relay();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		relay.setDaemon(true);
+		relay.start();
+
+		console.println(String.format("%d scenarios, %d transfers each (%s read, %s written, %d times), %d at once",
+				loaded.size(), (reads.size() + uploads.size()) * repeat, reads, uploads, repeat, clients));
+		List<Result> results = new ArrayList<Result>();
+		// The host says as each scenario is loaded
+		for (Scenario scenario : loaded) results.add(runScenario(host, scenario));
+		host.setScenario(null);
+		report(results);
+		cleanUp();
+	}
+
+	private Result runScenario(IntermediateHost host, Scenario scenario) throws InterruptedException {
+		final List<String> work = new ArrayList<String>();
+		for (int i = 0; i < repeat; i++) {
+			for (String r : reads) work.add("r" + r);
+			for (String u : uploads) work.add("w" + u);
+		}
+		final AtomicInteger next = new AtomicInteger();
+		final List<List<TransferStats>> done = new ArrayList<List<TransferStats>>();
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final List<TransferStats> stats = new ArrayList<TransferStats>();
+			done.add(stats);
+			final int id = i;
+			threads[i] = new Thread("Scenario Client #" + i) {
+				public void run() {
+					runClient(id, work, next, stats);
+				}
+			};
+		}
+
+		long dataBefore = host.getDataResent(), acksBefore = host.getAcksResent();
+		long start = System.nanoTime();
+		boolean settled = false;
+		host.setScenario(scenario);
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		// Sessions count what was sent again when they close, a while after their transfer ends
+		long giveUp = System.currentTimeMillis() + settleMillis;
+		while (!(settled = host.getOpenSessions() == 0) && System.currentTimeMillis() < giveUp) Thread.sleep(100);
+		List<TransferStats> all = new ArrayList<TransferStats>();
+		for (List<TransferStats> stats : done) all.addAll(stats);
+		return new Result(scenario.getName(), all, seconds, host.getDataResent() - dataBefore, host.getAcksResent() - acksBefore, settled);
+	}
+
+	//one client, taking transfers from work until there are none left
+	private void runClient(int id, List<String> work, AtomicInteger next, List<TransferStats> stats) {
+		File folder = new File("LoadFiles", "scenario-" + id);
+		folder.mkdirs();
+		Client client = new Client();
+		// Client reports every step on the console, only the results are wanted
+		client.setQuiet(true);
+		client.setTestMode(true);
+		client.setDirectory(folder.getPath());
+		client.setBlockSize(blockSize);
+		client.setWindowSize(windowSize);
+		client.setTimeout(timeout);
+		int n;
+		while ((n = next.getAndIncrement()) < work.size()) {
+			String item = work.get(n);
+			boolean read = item.charAt(0) == 'r';
+			String file = item.substring(1);
+			TransferStats result;
+			try {
+				if (read) {
+					result = client.readFromServer(file, "octet");
+				}
+				else {
+					String remoteName = "scenario-" + runId + "-" + uploadCount.getAndIncrement() + "-" + new File(file).getName();
+					synchronized (uploaded) {
+						uploaded.add(remoteName);
+					}
+					result = client.writeToServer(file, "octet", remoteName);
+				}
+			} catch (IOException e) {
+				// Counted as a failure with no error code
+				result = new TransferStats(file, read, false, 0, 0, TransferStats.NO_ERROR, false, client.getRttEstimator());
+			}
+			// Whatever a failed read left behind too, or the next read of the file would find it there
+			if (read) new File(folder, file).delete();
+			stats.add(result);
+		}
+		folder.delete();
+	}
+
+	private void report(List<Result> results) throws IOException {
+		console.println();
+		console.println(String.format("%-24s %6s %6s %10s %10s %10s %10s %10s %10s %10s  %s", "scenario", "runs", "done",
+				"mean ms", "p50 ms", "p90 ms", "max ms", "timeouts", "DATA again", "ACK again", "failures"));
+		for (Result r : results) {
+			double[] ms = completedMillis(r.transfers);
+			console.println(String.format("%-24s %6d %6d %10.1f %10.1f %10.1f %10.1f %10d %10d %10d  %s%s", r.name, r.transfers.size(), ms.length,
+					mean(ms), percentile(ms, 50), percentile(ms, 90), max(ms), timeouts(r.transfers), r.dataResent, r.acksResent,
+					failures(r.transfers).isEmpty() ? "none" : failures(r.transfers).toString(), r.settled ? "" : " (sessions still open)"));
+		}
+
+		File parent = out.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+		Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+		try {
+			w.write("{\n  \"config\": {");
+			int i = 0;
+			for (Map.Entry<String, String> option : config.entrySet()) {
+				w.write((i++ > 0 ? ", " : "") + "\"" + escape(option.getKey()) + "\": \"" + escape(option.getValue()) + "\"");
+			}
+			w.write("},\n  \"scenarios\": [\n");
+			for (int s = 0; s < results.size(); s++) {
+				Result r = results.get(s);
+				double[] ms = completedMillis(r.transfers);
+				w.write(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"seconds\": %.3f, \"transfers\": %d, \"completed\": %d, \"failures\": {",
+						escape(r.name), r.seconds, r.transfers.size(), ms.length));
+				i = 0;
+				for (Map.Entry<String, Long> failure : failures(r.transfers).entrySet()) {
+					w.write((i++ > 0 ? ", " : "") + "\"" + failure.getKey() + "\": " + failure.getValue());
+				}
+				w.write(String.format(Locale.ROOT, "},\n     \"timeToCompleteMillis\": {\"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"max\": %.3f},\n"
+						+ "     \"clientTimeouts\": %d, \"dataResent\": %d, \"acksResent\": %d, \"settled\": %b}%s\n",
+						mean(ms), percentile(ms, 50), percentile(ms, 90), max(ms), timeouts(r.transfers), r.dataResent, r.acksResent,
+						r.settled, s < results.size() - 1 ? "," : ""));
+			}
+			w.write("  ]\n}\n");
+		} finally {
+			w.close();
+		}
+		console.println("Results written to " + out.getPath());
+	}
+
+	//sorted times in ms of the transfers that completed
+	private static double[] completedMillis(List<TransferStats> all) {
+		double[] ms = new double[all.size()];
+		int n = 0;
+		for (TransferStats s : all) {
+			if (s.isCompleted()) ms[n++] = s.getNanos() / 1e6;
+		}
+		ms = Arrays.copyOf(ms, n);
+		Arrays.sort(ms);
+		return ms;
+	}
+
+	private static Map<String, Long> failures(List<TransferStats> all) {
+		Map<String, Long> failures = new TreeMap<String, Long>();
+		for (TransferStats s : all) {
+			if (s.isCompleted()) continue;
+			String reason = s.isTimedOut() ? "timed out" : s.getErrorCode() != TransferStats.NO_ERROR ? "error " + s.getErrorCode() : "other";
+			Long n = failures.get(reason);
+			failures.put(reason, n == null ? 1 : n + 1);
+		}
+		return failures;
+	}
+
+	private static long timeouts(List<TransferStats> all) {
+		long n = 0;
+		for (TransferStats s : all) n += s.getTimeouts();
+		return n;
+	}
+
+	//nearest rank percentile of sorted values
+	private static double percentile(double[] sorted, double percentile) {
+		if (sorted.length == 0) return 0;
+		int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double v : values) sum += v;
+		return values.length == 0 ? 0 : sum / values.length;
+	}
+
+	private static double max(double[] sorted) {
+		return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	//deletes the uploads if the server's folder is here, they are only there to be written
+	private void cleanUp() throws InterruptedException {
+		new File("LoadFiles").delete();
+		File serverFiles = new File("ServerFiles");
+		if (uploaded.isEmpty() || !serverFiles.isDirectory()) return;
+		// Give the server a moment to close the last uploads
+		Thread.sleep(500);
+		int deleted = 0;
+		for (String name : uploaded) {
+			if (new File(serverFiles, name).delete()) deleted++;
+		}
+		console.println("Deleted " + deleted + " uploaded files from " + serverFiles.getPath());
+	}
+}
@@ -0,0 +1,135 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Measures how close to their due time PacketScheduler sends packets, the accuracy of the
+ * delays the IntermediateHost adds. Schedules packets at a steady rate, each due after a random
+ * delay, sends them to a channel of its own and reports how late they went out (p50/p99/p99.9/max)
+ * as a table and JSON. A second thread can keep the CPU busy meanwhile (busy=true), as a relay
+ * under load would.
+ *
+ * Usage: java SchedulerBenchmark [name=value ...]
+ *   packets=20000       packets to schedule
+ *   rate=5000           packets scheduled per second
+ *   maxDelay=20         ms, each packet is due 0 to this long after it is scheduled
+ *   size=516            bytes per packet
+ *   busy=false          keep another thread spinning while it runs
+ *   seed=1              seed for the delays
+ *   out=scheduler.json  results file
+ */
+public class SchedulerBenchmark {
+	private static volatile boolean spinning;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new TreeMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				System.err.println("Arguments are name=value, e.g. packets=50000 rate=10000 busy=true");
+				return;
+			}
+			options.put(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+		}
+		int packets = Integer.parseInt(get(options, "packets", "20000"));
+		int rate = Integer.parseInt(get(options, "rate", "5000"));
+		long maxDelay = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(get(options, "maxDelay", "20")));
+		int size = Integer.parseInt(get(options, "size", "516"));
+		boolean busy = Boolean.parseBoolean(get(options, "busy", "false"));
+		Random random = new Random(Long.parseLong(get(options, "seed", "1")));
+		File out = new File(get(options, "out", "scheduler.json"));
+
+		TFTPInfoPrinter.setVerboseMode(false);
+		DatagramChannel sink = DatagramChannel.open();
+		sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		sink.configureBlocking(false);
+		InetSocketAddress to = (InetSocketAddress) sink.getLocalAddress();
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		// Read what arrives so the sink's buffer never fills and drops packets
+		Thread reader = drain(sink);
+
+		spinning = busy;
+		Thread spinner = new Thread("Spinner") {
+			public void run() {
+				long x = 0;
+				while (spinning) x += System.nanoTime() & 1;
+				if (x == -1) System.out.println();
+			}
+		};
+		spinner.setDaemon(true);
+		if (busy) spinner.start();
+
+		PacketScheduler scheduler = new PacketScheduler("Packet Scheduler", new TFTPMetrics("SchedulerBenchmark"));
+		ByteBuffer packet = ByteBuffer.allocate(size);
+		long interval = 1000000000L / Math.max(1, rate);
+		long start = System.nanoTime();
+		for (int i = 0; i < packets; i++) {
+			long at = start + i * interval;
+			long wait;
+			while ((wait = at - System.nanoTime()) > 0) {
+				if (wait > 1000000) Thread.sleep(wait / 1000000);
+			}
+			packet.clear();
+			scheduler.schedule(channel, packet, to, System.nanoTime() + (long) (random.nextDouble() * maxDelay));
+		}
+		while (scheduler.getSent() + scheduler.getLost() < packets) Thread.sleep(10);
+		spinning = false;
+		scheduler.shutdown();
+		reader.interrupt();
+
+		Histogram late = scheduler.getLateness();
+		System.out.println(String.format("%d packets at %d/s, due 0-%d ms later%s", packets, rate,
+				TimeUnit.NANOSECONDS.toMillis(maxDelay), busy ? ", another thread spinning" : ""));
+		System.out.println(String.format("%-8s %10s %10s %10s %10s %10s", "late us", "mean", "p50", "p99", "p99.9", "max"));
+		System.out.println(String.format("%-8s %10.1f %10d %10d %10d %10d", "", late.getMean(), late.getPercentile(50),
+				late.getPercentile(99), late.getPercentile(99.9), late.getMax()));
+		Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+		try {
+			w.write(String.format(Locale.ROOT, "{\"packets\": %d, \"rate\": %d, \"maxDelayMillis\": %d, \"busy\": %b, \"lost\": %d, "
+					+ "\"lateMicros\": {\"mean\": %.1f, \"p50\": %d, \"p99\": %d, \"p99.9\": %d, \"max\": %d}}\n",
+					packets, rate, TimeUnit.NANOSECONDS.toMillis(maxDelay), busy, scheduler.getLost(), late.getMean(),
+					late.getPercentile(50), late.getPercentile(99), late.getPercentile(99.9), late.getMax()));
+		} finally {
+			w.close();
+		}
+		System.out.println("Results written to " + out.getPath());
+	}
+
+	private static String get(Map<String, String> args, String name, String defaultValue) {
+		String value = args.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	private static Thread drain(final DatagramChannel sink) {
+		Thread t = new Thread("Sink") {
+			public void run() {
+				ByteBuffer b = ByteBuffer.allocate(65536);
+				while (!isInterrupted()) {
+					try {
+						b.clear();
+						if (sink.receive(b) == null) Thread.sleep(1);
+					} catch (IOException e) {
+						return;
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+}
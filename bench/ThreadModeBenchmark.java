@@ -0,0 +1,233 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/***
+ * Compares the server engines (t, v or n) under many concurrent downloads.
+ *
+ * Starts Server in a child process (it binds port 69, so this needs the same privileges
+ * as running the server) from the current folder, which must contain ServerFiles/<file>.
+ * The downloads are driven from one selector thread so the client side doesn't need a
+ * thread per transfer. Peak RSS and thread count are sampled from /proc, so Linux only.
+ * The server is started with tftp.maxTransfers set to the number of clients, so every
+ * engine runs all the downloads at once instead of answering some of them "busy".
+ *
+ * Usage: java ThreadModeBenchmark [file] [concurrency,...] [engine,...]
+ * e.g.   java ThreadModeBenchmark 1M.bin 1000,10000 t,v
+ */
+public class ThreadModeBenchmark {
+	private static final int SERVER_PORT = 69;
+	private static final long RETRANSMIT_MS = 2000;
+	private static final long GIVE_UP_MS = 300000;
+
+	public static void main(String[] args) throws Exception {
+		String file = args.length > 0 ? args[0] : "1M.bin";
+		String[] counts = (args.length > 1 ? args[1] : "1000,10000").split(",");
+		String[] engines = (args.length > 2 ? args[2] : "t,v").split(",");
+
+		if (!new File("ServerFiles/" + file).exists()) {
+			System.err.println("ServerFiles/" + file + " does not exist in the current folder.");
+			return;
+		}
+		System.out.println(String.format("%-8s %8s %10s %10s %12s %10s %8s", "engine", "clients", "peak RSS", "threads", "MB/s", "seconds", "failed"));
+		for (String engine : engines) {
+			for (String count : counts) {
+				run(engine.trim(), Integer.parseInt(count.trim()), file);
+			}
+		}
+	}
+
+	private static void run(String engine, int clients, String file) throws Exception {
+		String javaCmd = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classpath = System.getProperty("java.class.path");
+		// Go through sh so the server's pid can be read back without Java 9's Process.pid()
+		ProcessBuilder pb = new ProcessBuilder("sh", "-c", "echo $$; exec \"$0\" \"$2\" -cp \"$1\" Server", javaCmd, classpath,
+				"-Dtftp.maxTransfers=" + clients);
+		File log = File.createTempFile("bench-server", ".log");
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(log);
+		Process server = pb.start();
+		OutputStream stdin = server.getOutputStream();
+		stdin.write(("q\n" + engine + "\n").getBytes());
+		stdin.flush();
+
+		int pid = -1;
+		for (int i = 0; i < 50 && pid == -1; i++) {
+			Thread.sleep(100);
+			List<String> lines = Files.readAllLines(log.toPath());
+			if (!lines.isEmpty()) pid = Integer.parseInt(lines.get(0).trim());
+		}
+		Thread.sleep(1000); // let the server finish starting up
+
+		ProcSampler sampler = new ProcSampler(pid);
+		sampler.start();
+		long start = System.nanoTime();
+		Downloads d = new Downloads(clients, file);
+		d.runAll();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		sampler.running = false;
+		sampler.join();
+
+		stdin.write("stop\n".getBytes());
+		stdin.flush();
+		server.waitFor();
+		log.delete();
+
+		String engineName = engine.equals("v") && !serverSupportsVirtual() ? "v(n/a)" : engine;
+		System.out.println(String.format("%-8s %8d %8d MB %10d %12.1f %10.2f %8d", engineName, clients,
+				sampler.peakRssKb / 1024, sampler.peakThreads, d.totalBytes / seconds / (1024 * 1024), seconds, d.failed));
+	}
+
+	private static boolean serverSupportsVirtual() {
+		return VirtualThreads.isSupported();
+	}
+
+	//polls /proc/<pid>/status for the high water mark RSS and the peak thread count
+	private static class ProcSampler extends Thread {
+		private final int pid;
+		private volatile boolean running = true;
+		long peakRssKb = 0;
+		int peakThreads = 0;
+
+		ProcSampler(int pid) {
+			this.pid = pid;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (running) {
+				try (BufferedReader r = new BufferedReader(new InputStreamReader(Files.newInputStream(Paths.get("/proc/" + pid + "/status"))))) {
+					String line;
+					while ((line = r.readLine()) != null) {
+						if (line.startsWith("VmHWM:")) peakRssKb = Math.max(peakRssKb, Long.parseLong(line.replaceAll("[^0-9]", "")));
+						else if (line.startsWith("Threads:")) peakThreads = Math.max(peakThreads, Integer.parseInt(line.replaceAll("[^0-9]", "")));
+					}
+				} catch (IOException e) {
+					return;
+				}
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	//all downloads, driven by a single selector
+	private static class Downloads {
+		private final Selector selector;
+		private final List<Download> downloads = new ArrayList<Download>();
+		private final ByteBuffer receiveBuffer = ByteBuffer.allocate(516);
+		long totalBytes = 0;
+		int failed = 0;
+
+		Downloads(int clients, String file) throws IOException {
+			selector = Selector.open();
+			byte[] request = new RequestPacket(RequestPacket.readOpcode, file, "octet").encode();
+			InetSocketAddress server = new InetSocketAddress(InetAddress.getLocalHost(), SERVER_PORT);
+			for (int i = 0; i < clients; i++) {
+				Download d = new Download(server, request);
+				d.channel.register(selector, SelectionKey.OP_READ, d);
+				downloads.add(d);
+			}
+		}
+
+		void runAll() throws IOException {
+			long start = System.currentTimeMillis();
+			for (Download d : downloads) {
+				d.sendLast();
+			}
+			int remaining = downloads.size();
+			while (remaining > 0 && System.currentTimeMillis() - start < GIVE_UP_MS) {
+				selector.select(250);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					Download d = (Download) key.attachment();
+					while (!d.done) {
+						receiveBuffer.clear();
+						InetSocketAddress from = (InetSocketAddress) d.channel.receive(receiveBuffer);
+						if (from == null) break;
+						receiveBuffer.flip();
+						d.onReceive(receiveBuffer, from);
+						if (d.done) remaining--;
+					}
+				}
+				long now = System.currentTimeMillis();
+				for (Download d : downloads) {
+					if (!d.done && now - d.lastSend > RETRANSMIT_MS) d.sendLast();
+				}
+			}
+			for (Download d : downloads) {
+				totalBytes += d.bytes;
+				if (!d.done || !d.ok) failed++;
+				d.channel.close();
+			}
+			selector.close();
+		}
+	}
+
+	private static class Download {
+		final DatagramChannel channel;
+		InetSocketAddress peer;
+		final ByteBuffer last;
+		int expected = 1;
+		long bytes = 0;
+		long lastSend;
+		boolean done = false, ok = false;
+
+		Download(InetSocketAddress server, byte[] request) throws IOException {
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(0));
+			peer = server;
+			last = ByteBuffer.allocate(Math.max(4, request.length));
+			last.put(request).flip();
+		}
+
+		void sendLast() throws IOException {
+			last.rewind();
+			channel.send(last, peer);
+			lastSend = System.currentTimeMillis();
+		}
+
+		void onReceive(ByteBuffer p, InetSocketAddress from) throws IOException {
+			if (p.remaining() < 4) return;
+			int op = p.getShort(0);
+			if (op == 5) {
+				done = true;
+				return;
+			}
+			if (op != 3) return;
+			peer = from;
+			int block = p.getShort(2) & 0xFFFF;
+			if (block == (expected & 0xFFFF)) {
+				int len = p.remaining() - 4;
+				bytes += len;
+				expected++;
+				if (len < 512) {
+					done = true;
+					ok = true;
+				}
+			}
+			last.clear();
+			last.put(AckPacket.opcode).putShort((short) block).flip();
+			sendLast();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package tftp;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/***
+ * Times the work done on every datagram by the packet classes (DataPacket, AckPacket,
+ * RequestPacket, ErrorPacket) and by TFTPInfoPrinter:
+ *
+ * - building each packet from its fields, which is where its bytes are encoded (encode() only
+ *   returns them), and decoding each packet from its bytes
+ * - the isValid validators with a valid packet and with malformed ones (too long or
+ *   missing a terminating 0), the way a bad packet from the network would reach them
+ * - TFTPInfoPrinter.printSent for a DATA packet at each level, quiet (OFF) to verbose (FULL).
+ *   Only the transfer thread's side is timed, the console output is thrown away. If the writer
+ *   thread falls behind, packets are dropped, the count is printed at the end of each trial.
+ *
+ * The packet cases run with each blksize, the printer cases with each level. Run with
+ * "sh bench/run.sh jmh", see bench/jmh/pom.xml.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Packets {
+		@Param({"512", "1428"})
+		public int blockSize;
+
+		final String filename = "boot/images/netboot.img";
+		final String message = "\"boot/images/netboot.img\" was not found on the server.";
+		byte[] block;
+		Map<String, String> options;
+		byte[] data, ack, request, error;
+		byte[] longData, longAck, cutRequest, badOptions, cutError;
+		int blockNum;
+
+		@Setup
+		public void setUp() {
+			block = new byte[blockSize];
+			for (int i = 0; i < block.length; i++) block[i] = (byte) i;
+			options = new LinkedHashMap<String, String>();
+			options.put(TransferOptions.BLKSIZE, Integer.toString(blockSize));
+			options.put(TransferOptions.WINDOWSIZE, "16");
+			options.put(TransferOptions.TSIZE, "0");
+
+			data = new DataPacket(1234, block).encode();
+			ack = new AckPacket(1234).encode();
+			request = new RequestPacket(RequestPacket.readOpcode, filename, "octet", options).encode();
+			byte[] plainRequest = new RequestPacket(RequestPacket.readOpcode, filename, "octet").encode();
+			error = new ErrorPacket((byte) 1, message).encode();
+
+			// Malformed packets: DATA bigger than a block, ACK with a byte too many, RRQ whose mode
+			// isn't terminated, RRQ with an option name but no value, ERROR with no terminating 0
+			longData = new DataPacket(1234, new byte[blockSize + 1]).encode();
+			longAck = Arrays.copyOf(ack, 5);
+			cutRequest = Arrays.copyOf(plainRequest, plainRequest.length - 1);
+			badOptions = Arrays.copyOf(request, request.length - 2);
+			cutError = Arrays.copyOf(error, error.length - 1);
+		}
+
+		//the block number for the next packet built, so each one differs like a real transfer
+		int nextBlock() {
+			return blockNum = (blockNum + 1) & 0xFFFF;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Printer {
+		@Param({"OFF", "SUMMARY", "HEADER", "FULL"})
+		public TFTPInfoPrinter.Level level;
+
+		DatagramPacket sent;
+		private PrintStream console;
+		private long droppedBefore;
+
+		// The printer's output goes nowhere, only the cost to the thread handing it the packet is wanted
+		@Setup(Level.Trial)
+		public void setUp() {
+			byte[] data = new DataPacket(1234, new byte[512]).encode();
+			sent = new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), 69);
+			console = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+			TFTPInfoPrinter.setLevel(level);
+			droppedBefore = TFTPInfoPrinter.getDropped();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			TFTPInfoPrinter.flush(2000);
+			TFTPInfoPrinter.setLevel(TFTPInfoPrinter.Level.OFF);
+			System.setOut(console);
+			long dropped = TFTPInfoPrinter.getDropped() - droppedBefore;
+			if (dropped > 0) System.out.println(String.format("(%d packets dropped, the writer couldn't keep up)", dropped));
+		}
+	}
+
+	@Benchmark
+	public byte[] dataEncode(Packets p) {
+		return new DataPacket(p.nextBlock(), p.block).encode();
+	}
+
+	@Benchmark
+	public int dataDecode(Packets p) {
+		DataPacket packet = new DataPacket(p.data);
+		return packet.getBlockNum() + packet.getDataBlock().length;
+	}
+
+	@Benchmark
+	public byte[] ackEncode(Packets p) {
+		return new AckPacket(p.nextBlock()).encode();
+	}
+
+	@Benchmark
+	public int ackDecode(Packets p) {
+		return new AckPacket(p.ack).getBlockNum();
+	}
+
+	@Benchmark
+	public byte[] requestEncode(Packets p) {
+		return new RequestPacket(RequestPacket.readOpcode, p.filename, "octet", p.options).encode();
+	}
+
+	@Benchmark
+	public int requestDecode(Packets p) {
+		RequestPacket packet = new RequestPacket(p.request);
+		return packet.getFilename().length() + packet.getOptions().size();
+	}
+
+	@Benchmark
+	public byte[] errorEncode(Packets p) {
+		return new ErrorPacket((byte) 1, p.message).encode();
+	}
+
+	@Benchmark
+	public int errorDecode(Packets p) {
+		ErrorPacket packet = new ErrorPacket(p.error);
+		return packet.getErrorCode() + packet.getErrorMessage().length();
+	}
+
+	@Benchmark
+	public boolean dataIsValid(Packets p) {
+		return DataPacket.isValid(p.data, p.blockSize);
+	}
+
+	@Benchmark
+	public boolean dataIsValidTooLong(Packets p) {
+		return DataPacket.isValid(p.longData, p.blockSize);
+	}
+
+	//the check NioTransferSession and ServerThread make on a reused receive buffer
+	@Benchmark
+	public boolean dataIsValidInPlace(Packets p) {
+		return DataPacket.isValid(p.data, p.data.length, p.blockSize);
+	}
+
+	@Benchmark
+	public boolean ackIsValid(Packets p) {
+		return AckPacket.isValid(p.ack);
+	}
+
+	@Benchmark
+	public boolean ackIsValidTooLong(Packets p) {
+		return AckPacket.isValid(p.longAck);
+	}
+
+	@Benchmark
+	public boolean requestIsValid(Packets p) {
+		return RequestPacket.isValid(p.request);
+	}
+
+	@Benchmark
+	public boolean requestIsValidModeNotTerminated(Packets p) {
+		return RequestPacket.isValid(p.cutRequest);
+	}
+
+	@Benchmark
+	public boolean requestIsValidOptionNotTerminated(Packets p) {
+		return RequestPacket.isValid(p.badOptions);
+	}
+
+	@Benchmark
+	public boolean errorIsValid(Packets p) {
+		return ErrorPacket.isValid(p.error);
+	}
+
+	@Benchmark
+	public boolean errorIsValidMessageNotTerminated(Packets p) {
+		return ErrorPacket.isValid(p.cutError);
+	}
+
+	@Benchmark
+	public void printSent(Printer p) {
+		TFTPInfoPrinter.printSent(p.sent);
+	}
+}
@@ -0,0 +1,25 @@
+#!/bin/sh
+# Compiles the server, client and benchmarks and runs one benchmark, e.g.
+#   sh bench/run.sh jmh   (the JMH suite in bench/jmh, needs Maven, any JMH options can follow)
+#   sh bench/run.sh jmh PacketBenchmark.printSent -p level=FULL
+#   sh bench/run.sh LoadGenerator clients=16 seconds=60
+#   sh bench/run.sh DurabilityBenchmark files=50 sizeKB=1024
+#   sh bench/run.sh ScenarioRunner bench/scenarios files=512.bin repeat=10   (with a Server running)
+#   sh bench/run.sh CaptureBenchmark packets=100000   (with no Server or IntermediateHost running)
+# jmh, LoadGenerator, DurabilityBenchmark, SchedulerBenchmark, ScenarioRunner and CaptureBenchmark write their results to bench/results/<name>.json
+# Needs a JDK 8 or later on the PATH, run from anywhere.
+cd "$(dirname "$0")/.." || exit 1
+name=${1:-jmh}
+[ $# -gt 0 ] && shift
+mkdir -p bench/classes bench/results
+if [ "$name" = jmh ]; then
+	mvn -B -q -f bench/jmh/pom.xml package || exit 1
+	exec java -jar bench/jmh/target/benchmarks.jar -rf json -rff bench/results/jmh.json "$@"
+fi
+javac -nowarn -d bench/classes src/*.java bench/*.java || exit 1
+case $name in
+LoadGenerator|DurabilityBenchmark|SchedulerBenchmark|ScenarioRunner|CaptureBenchmark)
+	exec java -cp bench/classes "$name" "out=bench/results/$name.json" "$@" ;;
+*)
+	exec java -cp bench/classes "$name" "$@" ;;
+esac
@@ -8,23 +8,41 @@ public class AckPacket {
 	}
 	
 	public static boolean isValid(byte[] data) {
-		if (data[0] != opcode[0] || data[1] != opcode[1]) return false;
-		if (data.length > 4) return false;
+		return isValid(data, data.length);
+	}
+	
+	// Same as above for a packet received into a reused buffer, where only the first length bytes are the packet.
+	public static boolean isValid(byte[] data, int length) {
+		if (!hasOpcode(data, length)) return false;
+		if (length != 4) return false;
 		return true;
 	}
 	
+	// true if the first length bytes of data start with the ACK opcode, checked in place without copying
+	public static boolean hasOpcode(byte[] data, int length) {
+		return length >= 2 && data[0] == opcode[0] && data[1] == opcode[1];
+	}
+	
+	// Block number of the ACK in data, read in place without building an AckPacket.
+	public static int readBlockNum(byte[] data) {
+		return (data[2] & 0xFF) << 8 | (data[3] & 0xFF);
+	}
+	
+	// Writes a whole ACK for blockNum into the first 4 bytes of buffer, so one packet can carry every ACK of a transfer.
+	public static void writePacket(byte[] buffer, int blockNum) {
+		buffer[0] = opcode[0];
+		buffer[1] = opcode[1];
+		buffer[2] = (byte) (blockNum >> 8);
+		buffer[3] = (byte) blockNum;
+	}
+	
 	public AckPacket(byte[] data) {
 		this.data = data;
-		blockNum = data[2] & 0x00FF;
-		blockNum <<= 8;
-		blockNum |= data[3] & 0x00FF;
+		blockNum = readBlockNum(data);
 	}
 	public AckPacket(int blockNum) {
 		data = new byte[4];
-		data[0] = opcode[0];
-		data[1] = opcode[1];
-		data[2] = (byte)((blockNum >> 8) & 0xFF);
-		data[3] = (byte)(blockNum & 0xFF);
+		writePacket(data, blockNum);
 	}
 	
 	public byte[] encode() {
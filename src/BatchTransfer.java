@@ -0,0 +1,295 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiConsumer;
+
+/***
+ * Transfers a list of files in one go for "java Client batch", several at once through TFTPClient
+ * instead of one prompt cycle per file.
+ *
+ * Downloads take a manifest of names on the server, one per line, saved into the client's
+ * folder. Uploads take either a manifest of local paths or a glob of local files ("TESTFILES/*.cfg",
+ * "configs/**.xml"), each saved on the server under its own name. Blank lines and lines starting
+ * with # are skipped.
+ *
+ * A file that timed out, was refused with a busy server (error 0) or hit a socket error goes to the
+ * back of the queue and is tried again, up to the number of retries. Other errors (not found, access
+ * denied, already exists...) won't go away by trying again, so those fail straight away. A download
+ * that fails doesn't leave a partial file behind. A download whose file is already there, or is
+ * listed again further up the manifest, fails without being tried, so no entry ever deletes a file
+ * it didn't create.
+ *
+ * Once every file is done a summary is printed, each file's outcome, attempts, bytes and time,
+ * then the totals. The exit status is 0 only if every file went through.
+ *
+ * Usage: java Client batch read|write <manifest or glob> [name=value ...]
+ *   concurrency=8       transfers running at once
+ *   retries=2           extra attempts for a file that failed for a reason that may pass
+ *   host=localhost      server to transfer with, this machine by default
+ *   port=69             port the server takes requests on, 23 with test=true
+ *   test=false          go through the intermediate host on port 23
+ *   dir=ClientFiles     folder downloads are saved in
+ *   blksize=512 windowsize=1 timeout=0   options to ask for, as in Client
+ */
+public class BatchTransfer {
+	private final boolean read;
+	private final String manifest;
+	private final int concurrency;
+	private final int retries;
+	private final InetAddress host;
+	private final int port;
+	private final File directory;
+	private final int blockSize;
+	private final int windowSize;
+	private final int timeout;
+	private final PrintStream console = System.out;
+
+	// One per manifest entry, in manifest order
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	private static class Entry {
+		final String name;
+		final File file;
+		int attempts = 0;
+		long nanos = 0;
+		TransferStats stats;
+		Throwable failure;
+
+		Entry(String name, File file) {
+			this.name = name;
+			this.file = file;
+		}
+
+		boolean isCompleted() {
+			return stats != null && stats.isCompleted();
+		}
+
+		String outcome() {
+			if (failure != null) return "failed: " + failure;
+			if (stats.isCompleted()) return "ok";
+			if (stats.isTimedOut()) return "timed out";
+			if (stats.getErrorCode() != TransferStats.NO_ERROR) return "error " + stats.getErrorCode();
+			return "failed";
+		}
+	}
+
+	BatchTransfer(boolean read, String manifest, Map<String, String> args) throws IOException {
+		this.read = read;
+		this.manifest = manifest;
+		concurrency = Integer.parseInt(get(args, "concurrency", "8"));
+		retries = Integer.parseInt(get(args, "retries", "2"));
+		String hostName = args.get("host");
+		host = hostName != null ? InetAddress.getByName(hostName) : InetAddress.getLocalHost();
+		boolean testMode = Boolean.parseBoolean(get(args, "test", "false"));
+		port = Integer.parseInt(get(args, "port", testMode ? "23" : "69"));
+		directory = new File(get(args, "dir", "ClientFiles"));
+		blockSize = Integer.parseInt(get(args, "blksize", Integer.toString(TransferOptions.DEFAULT_BLOCK_SIZE)));
+		windowSize = Integer.parseInt(get(args, "windowsize", "1"));
+		timeout = Integer.parseInt(get(args, "timeout", "0"));
+	}
+
+	private static String get(Map<String, String> args, String name, String defaultValue) {
+		String value = args.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	//args are what followed "batch" on Client's command line, returns the exit status
+	public static int run(String[] args) {
+		if (args.length < 2 || !(args[0].equals("read") || args[0].equals("write"))) {
+			System.err.println("Usage: java Client batch read|write <manifest or glob> [concurrency=8] [retries=2] [host=...] [port=69] [dir=ClientFiles] [blksize=512] [windowsize=1] [timeout=0] [test=false]");
+			return 2;
+		}
+		Map<String, String> options = new TreeMap<String, String>();
+		for (int i = 2; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq <= 0) {
+				System.err.println("Options are name=value, e.g. concurrency=16 retries=3");
+				return 2;
+			}
+			options.put(args[i].substring(0, eq).trim(), args[i].substring(eq + 1).trim());
+		}
+		try {
+			BatchTransfer batch = new BatchTransfer(args[0].equals("read"), args[1], options);
+			batch.loadManifest();
+			return batch.transferAll() ? 0 : 1;
+		} catch (IOException e) {
+			System.err.println("Batch failed: " + e.getMessage());
+			return 2;
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return 2;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
+		}
+	}
+
+	private static boolean isGlob(String s) {
+		for (char c : "*?[{".toCharArray()) {
+			if (s.indexOf(c) >= 0) return true;
+		}
+		return false;
+	}
+
+	private void loadManifest() throws IOException {
+		if (!read && isGlob(manifest)) {
+			for (File f : glob(manifest)) entries.add(new Entry(f.getName(), f));
+		}
+		else {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("#")) continue;
+					if (read) {
+						entries.add(new Entry(line, new File(directory, line)));
+					}
+					else {
+						File f = new File(line);
+						entries.add(new Entry(f.getName(), f));
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		if (entries.isEmpty()) throw new IllegalArgumentException("No files in " + manifest);
+	}
+
+	//regular files matching pattern, searched for from the folder before its first wildcard
+	private static List<File> glob(String pattern) throws IOException {
+		pattern = pattern.replace('\\', '/');
+		int wildcard = pattern.length();
+		for (char c : "*?[{".toCharArray()) {
+			int i = pattern.indexOf(c);
+			if (i >= 0) wildcard = Math.min(wildcard, i);
+		}
+		int slash = pattern.lastIndexOf('/', wildcard);
+		Path base = Paths.get(slash >= 0 ? pattern.substring(0, slash + 1) : ".");
+		// Matched against paths relative to base, so "./" or an absolute prefix don't get in the way
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(slash + 1));
+		final Path root = base;
+		final List<File> files = new ArrayList<File>();
+		if (!Files.isDirectory(base)) return files;
+		Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && matcher.matches(root.relativize(file))) files.add(file.toFile());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files);
+		return files;
+	}
+
+	//transfers every entry, returns whether they all completed
+	private boolean transferAll() throws InterruptedException {
+		if (read && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Could not create folder " + directory);
+		}
+		console.println(String.format("%s %d files with %s:%d, %d at a time", read ? "Reading" : "Writing",
+				entries.size(), host.getHostAddress(), port, concurrency));
+		TFTPInfoPrinter.setVerboseMode(false);
+		final TFTPClient client = new TFTPClient(concurrency);
+		client.setPort(port);
+		client.setBlockSize(blockSize);
+		client.setWindowSize(windowSize);
+		client.setTimeout(timeout);
+		// Client reports every step on the console, with this many at once only the summary is wanted
+		client.setQuiet(true);
+		final CountDownLatch done = new CountDownLatch(entries.size());
+
+		// Files the downloads are saved in, each one by a single entry
+		Set<File> claimed = new HashSet<File>();
+		long start = System.nanoTime();
+		try {
+			for (Entry e : entries) {
+				String refused = null;
+				// Not ours to overwrite, and not ours to delete if the transfer failed
+				if (read && e.file.exists()) refused = " already exists";
+				// Two downloads into the same file would each delete it when the other got there first
+				else if (read && !claimed.add(e.file.getAbsoluteFile())) refused = " is downloaded by an earlier entry";
+				if (refused != null) {
+					e.failure = new IOException(e.file.getPath() + refused);
+					done.countDown();
+				}
+				else {
+					submit(client, e, done);
+				}
+			}
+			done.await();
+		} finally {
+			client.close();
+		}
+		long wall = System.nanoTime() - start;
+		return printSummary(wall);
+	}
+
+	private void submit(final TFTPClient client, final Entry e, final CountDownLatch done) {
+		e.attempts++;
+		final long start = System.nanoTime();
+		BiConsumer<TransferStats, Throwable> finished = new BiConsumer<TransferStats, Throwable>() {
+			public void accept(TransferStats stats, Throwable failure) {
+				// Time spent waiting for a free slot isn't the file's
+				e.nanos += stats != null ? stats.getNanos() : System.nanoTime() - start;
+				e.stats = stats;
+				e.failure = failure;
+				if (e.isCompleted()) {
+					done.countDown();
+					return;
+				}
+				// Only this entry writes the file, so whatever is there is the failed download's
+				if (read) e.file.delete();
+				boolean mayPass = failure != null || stats.isTimedOut() || stats.getErrorCode() == 0;
+				if (mayPass && e.attempts <= retries) {
+					submit(client, e, done);
+				}
+				else {
+					done.countDown();
+				}
+			}
+		};
+		if (read) client.download(host, e.name, e.file).whenComplete(finished);
+		else client.upload(host, e.file, e.name).whenComplete(finished);
+	}
+
+	//prints every file's outcome and the totals, returns whether every file completed
+	private boolean printSummary(long wallNanos) {
+		int width = 4;
+		for (Entry e : entries) width = Math.max(width, e.name.length());
+		console.println(String.format("%-" + width + "s %8s %12s %10s  %s", "file", "attempts", "bytes", "ms", "outcome"));
+		int completed = 0;
+		long bytes = 0, busyNanos = 0;
+		for (Entry e : entries) {
+			long b = e.stats != null ? e.stats.getBytes() : 0;
+			console.println(String.format("%-" + width + "s %8d %12d %10.1f  %s", e.name, e.attempts, b, e.nanos / 1e6, e.outcome()));
+			if (e.isCompleted()) completed++;
+			bytes += b;
+			busyNanos += e.nanos;
+		}
+		console.println(String.format("%d of %d files completed, %d failed, %d bytes in %.1f ms (%.1f ms of transfers, %.1fx in parallel)",
+				completed, entries.size(), entries.size() - completed, bytes, wallNanos / 1e6, busyNanos / 1e6,
+				wallNanos > 0 ? (double) busyNanos / wallNanos : 0));
+		return completed == entries.size();
+	}
+}
@@ -0,0 +1,209 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Blocks of the files being served, shared by every transfer so a file that many clients are
+ * fetching is read from disk once. Files are held in chunks of CHUNK_SIZE bytes, keyed by the
+ * file's path, length and modification time and the chunk's index, so a file that changed is
+ * never served from the old chunks. Those are dropped as soon as the change is seen, or when
+ * invalidate is called after an upload.
+ *
+ * Chunks are evicted least recently used first to stay within the size limit. Transfers only
+ * hold on to a chunk while copying one block out of it, so the limit holds however many are
+ * running. Files bigger than a quarter of the cache are not cached at all, so one large download
+ * can't push out every small file everyone else is fetching. Thread safe.
+ */
+public class BlockCache {
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private static BlockCache shared;
+	private static boolean sharedCreated = false;
+
+	private final long maxBytes;
+	// Guarded by this
+	private final LinkedHashMap<Key, byte[]> chunks = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+	private final Map<String, FileId> files = new HashMap<String, FileId>();
+	private long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public BlockCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	//the cache shared by every transfer on this server, sized by TFTPConfig, null if it is turned off
+	public static synchronized BlockCache getShared() {
+		if (!sharedCreated) {
+			long size = TFTPConfig.getBlockCacheSize();
+			if (size > 0) shared = new BlockCache(size);
+			sharedCreated = true;
+		}
+		return shared;
+	}
+
+	//whether a file of this size is worth caching
+	public boolean accepts(long fileSize) {
+		return fileSize <= maxBytes / 4;
+	}
+
+	/***
+	 * Identity of a file about to be served through the cache. If the file at this path has
+	 * changed since it was last seen, the chunks cached for the old version are dropped.
+	 */
+	public FileId open(File file, long length) {
+		FileId id = new FileId(file.getAbsolutePath(), length, file.lastModified());
+		synchronized (this) {
+			FileId previous = files.get(id.path);
+			// Every transfer of the same version shares one id, which is how a stale one is recognised
+			if (id.equals(previous)) return previous;
+			files.put(id.path, id);
+			if (previous != null) removeChunks(id.path);
+		}
+		return id;
+	}
+
+	/***
+	 * Returns the chunk of the file at key's index, reading it from channel on a miss.
+	 * key may be a probe reused by the caller, it is never stored.
+	 * @return the chunk, or null if the file has changed or been invalidated since it was opened,
+	 * in which case the caller should read the file itself from then on.
+	 */
+	public byte[] getChunk(Key key, FileChannel channel) throws IOException {
+		byte[] chunk;
+		synchronized (this) {
+			if (files.get(key.file.path) != key.file) return null;
+			chunk = chunks.get(key);
+		}
+		if (chunk != null) {
+			hits.incrementAndGet();
+			return chunk;
+		}
+		misses.incrementAndGet();
+		// Read outside the lock, so other transfers aren't held up by the disk. If two miss
+		// the same chunk at once both read it and the first one stored is kept.
+		long start = key.index * CHUNK_SIZE;
+		chunk = new byte[(int) Math.min(CHUNK_SIZE, key.file.length - start)];
+		ByteBuffer dest = ByteBuffer.wrap(chunk);
+		while (dest.hasRemaining()) {
+			if (channel.read(dest, start + dest.position()) == -1) break;
+		}
+		synchronized (this) {
+			// The file may have been invalidated while it was being read
+			if (files.get(key.file.path) != key.file) return chunk;
+			byte[] existing = chunks.get(key);
+			if (existing != null) return existing;
+			chunks.put(new Key(key.file, key.index), chunk);
+			bytes += chunk.length;
+			Iterator<byte[]> eldest = chunks.values().iterator();
+			while (bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().length;
+				eldest.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		return chunk;
+	}
+
+	//drops everything cached for the file, e.g. once an upload has replaced it
+	public synchronized void invalidate(File file) {
+		String path = file.getAbsolutePath();
+		files.remove(path);
+		removeChunks(path);
+	}
+
+	private void removeChunks(String path) {
+		Iterator<Map.Entry<Key, byte[]>> it = chunks.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, byte[]> entry = it.next();
+			if (entry.getKey().file.path.equals(path)) {
+				bytes -= entry.getValue().length;
+				it.remove();
+				invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	public long getEvictions() {
+		return evictions.get();
+	}
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public String toString() {
+		long h = getHits(), m = getMisses();
+		return String.format("%d/%d KB used, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidated",
+				getBytes() / 1024, maxBytes / 1024, h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), getEvictions(), getInvalidations());
+	}
+
+	/***
+	 * A version of a file: the same path with another length or modification time is another file.
+	 */
+	public static final class FileId {
+		final String path;
+		final long length;
+		final long modified;
+
+		FileId(String path, long length, long modified) {
+			this.path = path;
+			this.length = length;
+			this.modified = modified;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof FileId)) return false;
+			FileId other = (FileId) o;
+			return path.equals(other.path) && length == other.length && modified == other.modified;
+		}
+
+		public int hashCode() {
+			return path.hashCode() * 31 + (int) (length ^ modified);
+		}
+	}
+
+	/***
+	 * Chunk index within a file. A reader keeps one and moves its index, so looking up a block
+	 * doesn't allocate a key.
+	 */
+	public static final class Key {
+		final FileId file;
+		long index;
+
+		public Key(FileId file, long index) {
+			this.file = file;
+			this.index = index;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return index == other.index && file.equals(other.file);
+		}
+
+		public int hashCode() {
+			return file.hashCode() * 31 + (int) index;
+		}
+	}
+}
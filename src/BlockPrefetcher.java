@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Reads the next blocks of a file being sent ahead of time, so the DATA packets are ready when the
+ * ACK they wait for comes in. Made by FileBlockSource.prefetch, the counterpart of FileBlockSink.
+ *
+ * A thread from a small pool shared by every transfer keeps up to depth DATA packets read and
+ * encoded (header and block) for the blocks after the ones handed out so far. next() takes the next
+ * one, and only waits for the file if the reader hasn't got to it yet, which is counted as a stall
+ * in the metrics along with how many packets were ready each time. Packets the receiver has
+ * acknowledged are given back with recycle, so the same few are read into again and again. With a depth of 0 next() reads the block itself, as before.
+ *
+ * Closing the source stops the reader. One transfer takes the packets, from a single thread.
+ */
+public class BlockPrefetcher {
+	private static final ExecutorService readers;
+
+	static {
+		final AtomicInteger count = new AtomicInteger();
+		int threads = Math.max(1, TFTPConfig.getReaderThreads());
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TFTP Reader #" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		readers = pool;
+	}
+
+	private final FileBlockSource source;
+	private final int blockSize;
+	private final InetAddress address;
+	private final int port;
+	private final int depth;
+	private final TFTPMetrics metrics;
+	private final Runnable fill;
+	// Packets being read into, only used by the reader thread that has the prefetcher
+	private final DatagramPacket[] batch;
+
+	// A lock rather than synchronized, so a virtual thread waiting for the disk doesn't hold on to its carrier.
+	// Signalled whenever packets are made ready, or the reader stops
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	// Everything below is guarded by lock
+	private final ArrayDeque<DatagramPacket> ready = new ArrayDeque<DatagramPacket>();
+	private final ArrayDeque<DatagramPacket> free = new ArrayDeque<DatagramPacket>();
+	// Block number and file position of the next block to read
+	private int nextBlock = 1;
+	private long position = 0;
+	// Set once the last block (shorter than blockSize) has been read
+	private boolean lastRead = false;
+	// Set while a reader thread has the prefetcher, so only one ever reads from the source
+	private boolean filling = false;
+	private boolean closed = false;
+	private IOException error;
+
+	//packets are made for blocks of blockSize, sent to address and port, with depth of them read ahead
+	BlockPrefetcher(FileBlockSource source, int blockSize, InetAddress address, int port, int depth, TFTPMetrics metrics) {
+		this.source = source;
+		this.blockSize = blockSize;
+		this.address = address;
+		this.port = port;
+		this.depth = Math.max(0, depth);
+		this.metrics = metrics;
+		batch = new DatagramPacket[this.depth];
+		fill = new Runnable() {
+			public void run() {
+				fill();
+			}
+		};
+		lock.lock();
+		try {
+			schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//DATA packet for the next block, its length tells whether it is the last one
+	public DatagramPacket next() throws IOException {
+		if (depth == 0) {
+			DatagramPacket packet;
+			int block;
+			long from;
+			lock.lock();
+			try {
+				packet = take();
+				block = nextBlock++;
+				from = position;
+			} finally {
+				lock.unlock();
+			}
+			int n = read(packet, block, from);
+			lock.lock();
+			try {
+				position += n;
+			} finally {
+				lock.unlock();
+			}
+			return packet;
+		}
+		lock.lock();
+		try {
+			metrics.prefetchTaken(ready.size());
+			DatagramPacket packet;
+			while ((packet = ready.poll()) == null) {
+				if (error != null) throw new IOException(error.getMessage(), error);
+				if (lastRead && !filling) throw new IllegalStateException("Every block has been read");
+				changed.await();
+			}
+			// Read another in place of the one taken
+			schedule();
+			return packet;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the disk");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//takes back the packets in acknowledged, which the receiver has, to read later blocks into
+	public void recycle(Queue<DatagramPacket> acknowledged) {
+		lock.lock();
+		try {
+			DatagramPacket p;
+			while ((p = acknowledged.poll()) != null) free.add(p);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//stops reading ahead, waiting for a read in progress to finish so the source can be closed
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			while (filling) changed.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private DatagramPacket take() {
+		DatagramPacket packet = free.poll();
+		if (packet == null) packet = new DatagramPacket(new byte[blockSize + 4], blockSize + 4, address, port);
+		return packet;
+	}
+
+	//reads block number block from position from into packet, returns the bytes read
+	private int read(DatagramPacket packet, int block, long from) throws IOException {
+		byte[] data = packet.getData();
+		DataPacket.writeHeader(data, block);
+		int n = source.read(data, 4, blockSize, from);
+		packet.setLength(n + 4);
+		if (n < blockSize) {
+			lock.lock();
+			try {
+				lastRead = true;
+			} finally {
+				lock.unlock();
+			}
+		}
+		return n;
+	}
+
+	//called holding lock, hands the prefetcher to a reader thread once half the packets read ahead are used,
+	//so the reader is woken once per few blocks rather than for every one
+	private void schedule() {
+		if (depth > 0 && !filling && !closed && !lastRead && error == null && ready.size() <= depth / 2) {
+			filling = true;
+			readers.execute(fill);
+		}
+	}
+
+	//run on a reader thread, reads blocks until depth of them are ready or the file has been read.
+	//Takes every packet it can fill at once and hands them over together, so the transfer's thread
+	//and the reader meet once per batch rather than once per block
+	private void fill() {
+		while (true) {
+			int count;
+			int block;
+			long from;
+			lock.lock();
+			try {
+				count = depth - ready.size();
+				if (closed || lastRead || count <= 0) {
+					filling = false;
+					changed.signalAll();
+					return;
+				}
+				for (int i = 0; i < count; i++) batch[i] = take();
+				block = nextBlock;
+				from = position;
+			} finally {
+				lock.unlock();
+			}
+			int filled = 0;
+			long read = 0;
+			IOException failure = null;
+			try {
+				// Every block but the last is full, so each one starts blockSize after the one before
+				while (filled < count) {
+					int n = read(batch[filled], block + filled, from + read);
+					filled++;
+					read += n;
+					if (n < blockSize) break;
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+			lock.lock();
+			try {
+				for (int i = 0; i < count; i++) {
+					if (i < filled) ready.add(batch[i]);
+					else free.add(batch[i]);
+					batch[i] = null;
+				}
+				nextBlock += filled;
+				position += read;
+				if (failure != null) {
+					error = failure;
+					filling = false;
+				}
+				changed.signalAll();
+				if (failure != null) return;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -1,25 +1,59 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.Scanner;
 
 public class Client {
-	private static final int bufferSize = 516;
-	private static final int blockSize = 512;
+	private static final TFTPMetrics metrics = TFTPMetrics.get(TFTPMetrics.CLIENT);
+	// Takes what a quiet client would have printed
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+	// Block size can be changed by the blksize option, so these are set per transfer
+	private int bufferSize = 516;
+	private int blockSize = 512;
+	private int windowSize = 1;
+	private int requestedBlockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+	private int requestedWindowSize = 1;
+	private int requestedTimeout = 0;
+	private Map<String, String> requestedOptions;
+	// Retransmission timeout for the current transfer, adjusted as round trip times are measured
+	private RttEstimator rtt = new RttEstimator();
+	// File size from the tsize option or the file being sent (-1 if unknown), used for the disk space check and progress
+	private long transferSize = -1;
+	private long bytesReceived = 0;
+	private int progressShown = 0;
+	// Set once the whole file has gone through, with its size, for the metrics
+	private boolean completed = false;
+	private long bytesTransferred = 0;
+	// How the last transfer failed: the code of the ERROR that ended it and whether it timed out
+	private int errorCode = TransferStats.NO_ERROR;
+	private boolean timedOut = false;
+	// Folder files are read from and downloaded to
+	private String directory = "ClientFiles";
 	private boolean testMode = false;
-	private int wellKnownPort;
+	private int wellKnownPort = 69;
+	// Server the requests go to, this machine unless set
+	private InetAddress host;
 	private DatagramPacket sendPacket, receivePacket;
 	private DatagramSocket sendAndReceiveSocket;
+	// Where each step of a transfer is reported, the console unless quiet
+	private PrintStream console = System.out;
+	private PrintStream consoleErr = System.err;
 
 	public boolean isTestMode() {
 		return testMode;
@@ -30,6 +64,78 @@ public class Client {
 		else wellKnownPort = 69;
 		this.testMode = testMode;
 	}
+	
+	public boolean isQuiet() {
+		return console == DISCARD;
+	}
+	
+	//quiet leaves each step of the transfers off the console, for programs running many of them at once
+	//that only want the TransferStats. Packets are shown or not as set in TFTPInfoPrinter
+	public void setQuiet(boolean quiet) {
+		console = quiet ? DISCARD : System.out;
+		consoleErr = quiet ? DISCARD : System.err;
+	}
+	
+	//server to send requests to, null for this machine
+	public void setServer(InetAddress host) {
+		this.host = host;
+	}
+	
+	//port the server takes requests on, 69 (or 23 in test mode) unless set
+	public void setServerPort(int port) {
+		wellKnownPort = port;
+	}
+	
+	public int getBlockSize() {
+		return requestedBlockSize;
+	}
+	
+	//block size to ask the server for with the blksize option, 512 sends no option
+	public void setBlockSize(int blockSize) {
+		if (blockSize < TransferOptions.MIN_BLOCK_SIZE || blockSize > TransferOptions.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block size must be between " + TransferOptions.MIN_BLOCK_SIZE + " and " + TransferOptions.MAX_BLOCK_SIZE);
+		}
+		requestedBlockSize = blockSize;
+	}
+	
+	public int getWindowSize() {
+		return requestedWindowSize;
+	}
+	
+	public int getTimeout() {
+		return requestedTimeout;
+	}
+	
+	//retransmission timeout in seconds to ask the server for with the timeout option, 0 sends no option
+	//and lets the timeout adapt to the measured round trip time instead
+	public void setTimeout(int seconds) {
+		if (seconds != 0 && (seconds < TransferOptions.MIN_TIMEOUT || seconds > TransferOptions.MAX_TIMEOUT)) {
+			throw new IllegalArgumentException("Timeout must be between " + TransferOptions.MIN_TIMEOUT + " and " + TransferOptions.MAX_TIMEOUT + " seconds");
+		}
+		requestedTimeout = seconds;
+	}
+	
+	//round trip and timeout measurements for the last transfer
+	public RttEstimator getRttEstimator() {
+		return rtt;
+	}
+	
+	public String getDirectory() {
+		return directory;
+	}
+	
+	//folder simple filenames are uploaded from and downloads are saved in, ClientFiles by default
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+	
+	//number of blocks in flight per ACK to ask the server for with the windowsize option, 1 sends no option
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > TransferOptions.MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Window size must be between 1 and " + TransferOptions.MAX_WINDOW_SIZE);
+		}
+		requestedWindowSize = windowSize;
+	}
 
 	
 	/*
@@ -38,35 +144,75 @@ public class Client {
 	 */
 	public Client() {
 		try {
-			sendAndReceiveSocket = new DatagramSocket();
+			sendAndReceiveSocket = new MeteredDatagramSocket(metrics);
 		} catch (SocketException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}	
 	}
-	//receives a packet on the socket given with a timeout of 5 seconds, eventually gives up after a few timeouts
+	
+	/*
+	 * Constructor
+	 * Initializes the Datagram Socket on localPort (0 for any free port), throwing instead
+	 * of exiting if it can't be opened, for programs that run transfers inside their own process
+	 */
+	public Client(int localPort) throws SocketException {
+		sendAndReceiveSocket = new MeteredDatagramSocket(localPort, metrics);
+	}
+	//receives a packet on the socket given, waiting for the current retransmission timeout and backing off
+	//each time it expires, eventually gives up after a few timeouts
 	//returns false if unsuccessful, true if successful
 	private boolean packetReceiveWithTimeout(DatagramSocket socket, DatagramPacket packet, DatagramPacket resendPacket) throws IOException
 	{
-		socket.setSoTimeout(5000);		//set timeout to 5000 ms (5 seconds)
-		int numTimeouts = 0;
+		return packetReceiveWithTimeout(socket, packet, resendPacket, null);
+	}
+	
+	//same as above, but every packet in resendPackets is resent on a timeout (e.g. a whole window of DATA)
+	private boolean packetReceiveWithTimeout(DatagramSocket socket, DatagramPacket packet, Iterable<DatagramPacket> resendPackets) throws IOException
+	{
+		return packetReceiveWithTimeout(socket, packet, null, resendPackets);
+	}
+	
+	//resends either resendPacket or resendPackets, so a single packet isn't wrapped in a new list for every block
+	private boolean packetReceiveWithTimeout(DatagramSocket socket, DatagramPacket packet, DatagramPacket resendPacket, Iterable<DatagramPacket> resendPackets) throws IOException
+	{
+		// receive() shrinks the packet's length to what arrived, so a reused packet is opened back up to its whole buffer
+		packet.setLength(packet.getData().length);
+		int resends = 0;
+		long waitStart = System.currentTimeMillis();
 		boolean receivedOrSent = false;
-		while(numTimeouts < 5 & !receivedOrSent)
+		while(!receivedOrSent)
 		{
 			receivedOrSent = true;
+			socket.setSoTimeout(rtt.getTimeout());
 			try{
 				socket.receive(packet);
+				rtt.endSample();
 			} catch(SocketTimeoutException e)
 			{
-				receivedOrSent = false;	
-				numTimeouts++;
-				System.out.println("Timed out, retrying transfer.");	
-				socket.send(resendPacket);
+				receivedOrSent = false;
+				rtt.backoff();
+				metrics.timedOut();
+				// Given up on only after enough resends and enough time, however short the timeouts were
+				if (rtt.shouldGiveUp(resends, waitStart)) break;
+				resends++;
+				console.println("Timed out, retrying transfer.");	
+				if (resendPacket != null) {
+					socket.send(resendPacket);
+					metrics.retransmitted(1);
+				}
+				else {
+					for (DatagramPacket p : resendPackets) {
+						socket.send(p);
+						metrics.retransmitted(1);
+					}
+				}
 			}
 		}
-		if(numTimeouts >= 5)
+		if(!receivedOrSent)
 		{
-			System.out.println("Transfer failed, timed out too many times.");
+			console.println("Transfer failed, timed out too many times.");
+			timedOut = true;
 			return false;
 		}
 		return true;
@@ -78,37 +224,55 @@ public class Client {
 	{
 		socket.setSoTimeout(5000);		//set timeout to 5000 ms (5 seconds)
 		int numTimeouts = 0;
+		long waitStart = System.currentTimeMillis();
 		boolean receivedOrSent = false;
-		while(numTimeouts < 5 & !receivedOrSent)
+		while(!receivedOrSent)
 		{
 			receivedOrSent = true;
 			try{
 				socket.send(packet);
 			} catch(SocketTimeoutException e)
 			{
-				receivedOrSent = false;	
+				receivedOrSent = false;
+				if (rtt.shouldGiveUp(numTimeouts, waitStart)) break;
 				numTimeouts++;
-				System.out.println("Timed out, retrying transfer.");					
+				console.println("Timed out, retrying transfer.");					
 			}
 		}
-		if(numTimeouts >= 5)
+		if(!receivedOrSent)
 		{
-			System.out.println("Transfer failed, timed out too many times.");
+			console.println("Transfer failed, timed out too many times.");
 			return false;
 		}
+		rtt.startSample();
 		return true;
 	}
 	
-	private DatagramPacket sendRequest(byte[] reqType, String filename, String mode) throws UnknownHostException {
-		RequestPacket p = new RequestPacket(reqType, filename, mode);
+	//tsize is sent as the size of the file for a write, or 0 for a read to ask the server for the size
+	private DatagramPacket sendRequest(byte[] reqType, String filename, String mode, long tsize) throws UnknownHostException {
+		// Transfer uses 512 byte blocks unless the server OACKs the blksize option,
+		// but the receive buffer has to fit the largest block the server may choose.
+		requestedOptions = TransferOptions.request(requestedBlockSize, requestedWindowSize, requestedTimeout, tsize);
+		blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+		windowSize = 1;
+		bufferSize = Math.max(requestedBlockSize, blockSize) + 4;
+		try {
+			// Leave room in the socket buffer for a whole window of blocks arriving at once,
+			// twice over since the kernel counts its own overhead per datagram against it
+			sendAndReceiveSocket.setReceiveBufferSize(Math.max(64 * 1024, 2 * requestedWindowSize * bufferSize));
+		} catch (SocketException e) {
+			e.printStackTrace(consoleErr);
+		}
+		
+		RequestPacket p = new RequestPacket(reqType, filename, mode, requestedOptions);
 		byte[] message = p.encode();
 		
-		DatagramPacket request = new DatagramPacket(message, message.length, InetAddress.getLocalHost(), wellKnownPort);
+		DatagramPacket request = new DatagramPacket(message, message.length, host != null ? host : InetAddress.getLocalHost(), wellKnownPort);
 		boolean sent = false;
 		try {
 			sent = packetSendWithTimeout(sendAndReceiveSocket, request);
 		} catch (IOException e) {
-			e.printStackTrace();
+			e.printStackTrace(consoleErr);
 		}
 		if(sent)
 			TFTPInfoPrinter.printSent(request);
@@ -116,40 +280,110 @@ public class Client {
 		return request;
 	}
 	
-	public void readFromServer(String filename, String mode) throws IOException{		
-		System.out.println("Initiating read request with file " + filename);
-		
+	//applies the options in the server's OACK, or sends error 8 and returns false if they can't be used
+	private boolean acceptOack(byte[] data, DatagramPacket from) throws IOException {
+		TransferOptions options = new TransferOptions();
+		if (!OackPacket.isValid(data) || !options.acceptOack(requestedOptions, new OackPacket(data).getOptions())) {
+			consoleErr.println("Server's option acknowledgement was not acceptable.");
+			ErrorPacket ep = new ErrorPacket((byte)8, "Option acknowledgement not accepted.");
+			sendError(ep, from.getAddress(), from.getPort());
+			return false;
+		}
+		blockSize = options.getBlockSize();
+		windowSize = options.getWindowSize();
+		if (options.getTransferSize() >= 0) transferSize = options.getTransferSize();
+		if (options.getTimeout() != 0) rtt = options.newRttEstimator();
+		return true;
+	}
+	
+	//prints how far the transfer has got each time it passes another 10%, if the size is known
+	private void showProgress(long bytes) {
+		if (transferSize <= 0) return;
+		int percent = (int) (Math.min(bytes, transferSize) * 100 / transferSize);
+		if (percent / 10 > progressShown / 10) {
+			progressShown = percent;
+			console.println("Progress: " + percent + "% (" + Math.min(bytes, transferSize) + " of " + transferSize + " bytes)");
+		}
+	}
+	
+	//sends the ERROR that ends a transfer, remembering its code for the transfer's stats
+	private void sendError(ErrorPacket ep, InetAddress address, int port) throws IOException {
+		errorCode = ep.getErrorCode();
+		byte[] data = ep.encode();
+		sendAndReceiveSocket.send(new DatagramPacket(data, data.length, address, port));
+	}
+	
+	//resets what is tracked per transfer
+	private void startTransfer() {
+		rtt = new RttEstimator();
+		transferSize = -1;
+		progressShown = 0;
+		completed = false;
+		bytesTransferred = 0;
+		errorCode = TransferStats.NO_ERROR;
+		timedOut = false;
+		metrics.transferStarted();
+	}
+	
+	//downloads filename into the client's folder
+	public TransferStats readFromServer(String filename, String mode) throws IOException{		
+		return readFromServer(filename, mode, new File(directory, filename));
+	}
+	
+	//downloads filename into target, which mustn't exist yet
+	public TransferStats readFromServer(String filename, String mode, File target) throws IOException{		
+		console.println("Initiating read request with file " + filename);
+		startTransfer();
+		bytesReceived = 0;
+		long start = System.nanoTime();
+		long nanos = 0;
+		try {
+			receiveFromServer(filename, target, mode);
+		} finally {
+			nanos = System.nanoTime() - start;
+			metrics.transferFinished(completed, bytesTransferred, nanos);
+		}
+		return new TransferStats(filename, true, completed, bytesTransferred, nanos, errorCode, timedOut, rtt);
+	}
+	
+	private void receiveFromServer(String filename, File target, String mode) throws IOException {
 		InetAddress serverAddress = null;
 		int serverPort = -1;
 		
 		byte[] receivedData;
-		byte[] receivedOpcode;
 		int currentBlockNumber = 1;
 		
-		if(new File("ClientFiles/" + filename).exists()){
-			System.err.println('"' + filename + '"' + " already exists on Client.");
+		if(target.exists()){
+			consoleErr.println('"' + target.getPath() + '"' + " already exists on Client.");
 			return;
 		}
-		BufferedOutputStream out = null;
+		RandomAccessFile file = null;
+		FileBlockSink out = null;
 		
 		try {
-			out = new BufferedOutputStream(new FileOutputStream("ClientFiles/" + filename));
+			file = new RandomAccessFile(target, "rw");
+			out = new FileBlockSink(file.getChannel());
 		} catch (IOException e) {
 			if (e.getMessage().contains("(Access is denied)")){
-				System.err.println("Access to ClientFiles folder was denied");
+				consoleErr.println("Access to " + target.getAbsoluteFile().getParent() + " folder was denied");
 				return;
 			}
 			else {
-				System.err.println("Unknown file error");
+				consoleErr.println("Unknown file error");
 			}
 		}
 		
-		boolean duplicateDataPacket = false; 
-		sendPacket = sendRequest(RequestPacket.readOpcode, filename, mode);
+		// With a window size above 1 only the last block of each window is acknowledged.
+		int blocksSinceAck = 0;
+		boolean reAcked = false;
+		sendPacket = sendRequest(RequestPacket.readOpcode, filename, mode, 0);
+		// Every block is received into the same packet and every ACK is written into the same packet, so the loop doesn't allocate
+		DatagramPacket dataPacket = new DatagramPacket(new byte[bufferSize], bufferSize);
+		byte[] ack = new byte[4];
+		DatagramPacket ackPacket = null;
 		while (true) {
-			receivedData = new byte[bufferSize];
-			receivePacket = new DatagramPacket(receivedData, receivedData.length);
-			// receive block
+			receivePacket = dataPacket;
+			// receive block, the request or last ACK is resent on a timeout
 			
 			if(!packetReceiveWithTimeout(sendAndReceiveSocket, receivePacket, sendPacket))
 			{
@@ -161,11 +395,12 @@ public class Client {
 			if (serverAddress == null && serverPort == -1) {
 				serverAddress = receivePacket.getAddress();
 				serverPort = receivePacket.getPort();
+				ackPacket = new DatagramPacket(ack, ack.length, serverAddress, serverPort);
 			}
 			
 			if(!receivePacket.getAddress().equals(serverAddress) || receivePacket.getPort() != serverPort)
 			{
-				System.err.println("Packet from unknown address or port, discarding.");
+				consoleErr.println("Packet from unknown address or port, discarding.");
 				ErrorPacket ep = new ErrorPacket((byte)5, "Packet from unknown address or port, discarding.");
 				DatagramPacket errPkt = new DatagramPacket(ep.encode(), ep.encode().length, receivePacket.getAddress(), receivePacket.getPort());
 				sendAndReceiveSocket.send(errPkt);
@@ -174,14 +409,15 @@ public class Client {
 			}
 			TFTPInfoPrinter.printReceived(receivePacket);
 			
-			// validate packet
-			receivedData = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
-			receivedOpcode = Arrays.copyOf(receivedData, 2);
+			// validate packet where it was received, only an error or OACK is copied out of the buffer
+			receivedData = receivePacket.getData();
+			int length = receivePacket.getLength();
 
 			
-			if (Arrays.equals(receivedOpcode, ErrorPacket.opcode)){
-				ErrorPacket ep = new ErrorPacket(receivedData);
-				System.err.println(ep.getErrorMessage());
+			if (ErrorPacket.hasOpcode(receivedData, length)){
+				ErrorPacket ep = new ErrorPacket(Arrays.copyOf(receivedData, length));
+				consoleErr.println(ep.getErrorMessage());
+				errorCode = ep.getErrorCode();
 				// Handle error.
 				
 				// File not found on server
@@ -195,118 +431,176 @@ public class Client {
 				out.close();
 				return;
 			}
+			// Server accepted some options, ACK the OACK with block 0 and wait for the first DATA
+			else if (OackPacket.hasOpcode(receivedData, length) && currentBlockNumber == 1) {
+				if (!acceptOack(Arrays.copyOf(receivedData, length), receivePacket)) {
+					out.close();
+					return;
+				}
+				if (transferSize > 0) {
+					// Give up now if the file can't fit, rather than when the disk fills up part way through
+					if (transferSize > target.getAbsoluteFile().getParentFile().getUsableSpace()) {
+						String msg = "Unable to write file " + filename + ", not enough disk space for " + transferSize + " bytes";
+						consoleErr.println(msg);
+						ErrorPacket ep = new ErrorPacket((byte) 3, msg);
+						sendError(ep, serverAddress, serverPort);
+						out.close();
+						target.delete();
+						return;
+					}
+				}
+				AckPacket.writePacket(ack, 0);
+				sendPacket = ackPacket;
+				if(!packetSendWithTimeout(sendAndReceiveSocket, sendPacket))
+				{
+					out.close();
+					return;
+				}
+				TFTPInfoPrinter.printSent(sendPacket);
+				continue;
+			}
 			// The received packet should be an DATA packet at this point, and this have the Opcode defined in dataOP.
 			// If it is not an error packet or an DATA packet, something happened (these cases are in later iterations).
-			else if (!Arrays.equals(receivedOpcode, DataPacket.opcode)) {
+			else if (!DataPacket.hasOpcode(receivedData, length)) {
 				// Send ErrorPacket with error code 04 and stop transfer.
-				System.err.println("Was expecting a DATA packet.");
+				consoleErr.println("Was expecting a DATA packet.");
 				ErrorPacket ep = new ErrorPacket((byte)4, "Was expecting a DATA packet.");
-				sendAndReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendError(ep, serverAddress, serverPort);
 				out.close();
 				return;
 			}
 			
 			// If the data packet is malformed, send error code 04 and stop transfer.
-			if (!DataPacket.isValid(receivedData)) {
-				System.err.println("DATA packet was malformed");
+			if (!DataPacket.isValid(receivedData, length, blockSize)) {
+				consoleErr.println("DATA packet was malformed");
 				ErrorPacket ep = new ErrorPacket((byte)4, "DATA packet was malformed.");
-				sendAndReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendError(ep, serverAddress, serverPort);
 				out.close();
 				return;
 			}
-			DataPacket dp = new DataPacket(receivedData);
+			int blockNum = DataPacket.readBlockNum(receivedData);
 			
-			int blockNum = dp.getBlockNum();
-			//System.out.println("Received block of data, Block#: " + currentBlockNumber);
-			duplicateDataPacket = false;
-			
-			if (blockNum != currentBlockNumber) {
-				
-				if (blockNum == 0) {
-					
-					currentBlockNumber -= 65536;
-				}
-				
-				 // If they're still not equal, another problem occurred.
-				if (blockNum != currentBlockNumber)
-				{
-					if(currentBlockNumber > blockNum)
-					{
-						//received duplicate data packet
-						duplicateDataPacket = true;
-						if (blockNum == 0) currentBlockNumber += 65536; // Restore block number since packet was a duplicate
-					}
-					else {
-						// BlockNumber cannot be explained by duplicate or delayed packet, so it is an error.
-						// Send error code 04 and stop transfer
-						ErrorPacket ep = new ErrorPacket((byte)4, "DATA block number not in sequence or duplicate.");
-						System.err.println("DATA block number not in sequence or duplicate.");
-						sendAndReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
-						out.close();
-						return;
+			if (blockNum != (currentBlockNumber & 0xFFFF)) {
+				// Duplicate block means our ACK was lost, a block past the expected one means a gap in the window.
+				// Either way ACK the last block received in order so the server restarts from the one after it.
+				// With a window that is only done once until blocks arrive in order again.
+				if (DataPacket.isEarlierBlock(blockNum, currentBlockNumber) || windowSize > 1) {
+					if (DataPacket.isEarlierBlock(blockNum, currentBlockNumber)) metrics.duplicateData();
+					if (windowSize == 1 || !reAcked) {
+						AckPacket.writePacket(ack, currentBlockNumber - 1);
+						sendPacket = ackPacket;
+						sendAndReceiveSocket.send(sendPacket);
+						TFTPInfoPrinter.printSent(sendPacket);
+						metrics.retransmitted(1);
+						rtt.retransmitted();
+						reAcked = true;
 					}
+					blocksSinceAck = 0;
+					continue;
 				}
+				// BlockNumber cannot be explained by duplicate or delayed packet, so it is an error.
+				// Send error code 04 and stop transfer
+				ErrorPacket ep = new ErrorPacket((byte)4, "DATA block number not in sequence or duplicate.");
+				consoleErr.println("DATA block number not in sequence or duplicate.");
+				sendError(ep, serverAddress, serverPort);
+				out.close();
+				return;
 			}
-			byte[] dataBlock = dp.getDataBlock();
-			
-			// Write dataBlock to file
-			if(!duplicateDataPacket) 	// do not write duplicate dataBlocks to file
-			{
-				try{
-					out.write(dataBlock);
-					
+			// Queue the block to be written so the ACK doesn't wait for the disk, except the final one:
+			// once the server has it the transfer is over, so everything is on disk before it goes
+			int dataLength = length - 4;
+			try{
+				out.write(receivedData, 4, dataLength);
+				bytesReceived += dataLength;
+				showProgress(bytesReceived);
+				if (dataLength < blockSize) out.sync();
+			}
+			catch(IOException e){
+				String msg;
+				ErrorPacket errPckt;
+				if (String.valueOf(e.getMessage()).contains("(Access is denied)")) {
+					msg = "Unable to write file " + filename + ", access denied";
+					errPckt = new ErrorPacket((byte) 2, msg);
 				}
-				catch(IOException e){ //disk full
-					String msg = "Unable to write file " +filename+", disk space full";
-					System.err.println(msg);
-					ErrorPacket errPckt = new ErrorPacket((byte) 3, msg);
-					byte[] err = errPckt.encode();
-					sendPacket = new DatagramPacket(err, err.length, InetAddress.getLocalHost(), receivePacket.getPort());
-					sendAndReceiveSocket.send(sendPacket);
-					if(!packetSendWithTimeout(sendAndReceiveSocket, sendPacket))
-					{
-						out.close();
-						return;
-					}
-					try {
-						out.close();
-					} catch (IOException e2) {
-						
-					}
+				else {
+					msg = "Unable to write file " +filename+", disk space full";
+					errPckt = new ErrorPacket((byte) 3, msg);
+				}
+				consoleErr.println(msg);
+				errorCode = errPckt.getErrorCode();
+				byte[] err = errPckt.encode();
+				sendPacket = new DatagramPacket(err, err.length, serverAddress, serverPort);
+				if(!packetSendWithTimeout(sendAndReceiveSocket, sendPacket))
+				{
+					out.close();
 					return;
 				}
+				try {
+					out.close();
+				} catch (IOException e2) {
+					
+				}
+				return;
 			}
-			// Send ack back
-			// Duplicate dataBlocks are still ACKed, but are not written to file
-			AckPacket ap = new AckPacket(blockNum);
+			currentBlockNumber++;
+			blocksSinceAck++;
+			reAcked = false;
 			
-			// Initial request was sent to wellKnownPort, but steady state file transfer should happen on another port.
-			sendPacket = new DatagramPacket(ap.encode(), ap.encode().length, InetAddress.getLocalHost(), receivePacket.getPort());
-			if(!packetSendWithTimeout(sendAndReceiveSocket, sendPacket))
-			{
-				out.close();
-				return;
+			// check if block is smaller than the block size which signifies end of file
+			boolean lastBlock = dataLength < blockSize;
+			
+			// ACK the last block of each window, and always the final block
+			if (lastBlock || blocksSinceAck >= windowSize) {
+				AckPacket.writePacket(ack, blockNum);
+				sendPacket = ackPacket;
+				if(!packetSendWithTimeout(sendAndReceiveSocket, sendPacket))
+				{
+					out.close();
+					return;
+				}
+				TFTPInfoPrinter.printSent(sendPacket);
+				blocksSinceAck = 0;
 			}
-			TFTPInfoPrinter.printSent(sendPacket);
-			if (!duplicateDataPacket) currentBlockNumber++;
 			
-			// check if block is < 512 bytes which signifies end of file
-			if (dataBlock.length < 512) { 
-				System.out.println("Data was received that was less than 512 bytes in length");
-				System.out.println("Total transfers that took place: " + blockNum);
+			if (lastBlock) { 
+				console.println("Data was received that was less than " + blockSize + " bytes in length");
+				console.println("Total transfers that took place: " + (currentBlockNumber - 1));
 				break; 
 			}
 		}
 		out.close();
-		System.out.println("Transfer complete");
+		completed = true;
+		bytesTransferred = bytesReceived;
+		console.println("Transfer complete");
 	}
 	
-	public void writeToServer(String filename, String mode) throws IOException {
-		
-		int currentBlockNumber = 0;
-		BufferedInputStream in = null;
+	//uploads filename, a simple name in the client's folder or a full path, under the same name
+	public TransferStats writeToServer(String filename, String mode) throws IOException {
+		return writeToServer(filename, mode, null);
+	}
+	
+	//same as above, but the server saves it as remoteName, or under the file's own name if that is null
+	public TransferStats writeToServer(String filename, String mode, String remoteName) throws IOException {
+		if (remoteName == null) {
+			// Only the name is sent to the server, not the folders it is in
+			int idx = Math.max(filename.lastIndexOf('\\'), filename.lastIndexOf('/'));
+			remoteName = filename.substring(idx + 1);
+		}
+		startTransfer();
+		long start = System.nanoTime();
+		long nanos = 0;
+		try {
+			sendToServer(filename, remoteName, mode);
+		} finally {
+			nanos = System.nanoTime() - start;
+			metrics.transferFinished(completed, bytesTransferred, nanos);
+		}
+		return new TransferStats(remoteName, false, completed, bytesTransferred, nanos, errorCode, timedOut, rtt);
+	}
+	
+	private void sendToServer(String filename, String remoteName, String mode) throws IOException {
+		FileBlockSource in = null;
 		byte[] receivedData;
-		byte[] receivedOpcode;
 		InetAddress serverAddress = null;
 		int serverPort = -1;
 		
@@ -316,28 +610,24 @@ public class Client {
 			if (filename.contains("\\") || filename.contains("/")) {
 				
 				if(!(new File(filename).exists())){
-					System.err.println(filename + " does not exist on Client.");
+					consoleErr.println(filename + " does not exist on Client.");
 					return;
 				}
 				
-				in = new BufferedInputStream(new FileInputStream(filename));
-				// for sending to Server
-				int idx = filename.lastIndexOf('\\');
-				if (idx == -1) {
-					idx = filename.lastIndexOf('/');
-				} 
-				filename = filename.substring(idx+1);
+				in = new FileBlockSource(new RandomAccessFile(filename, "r").getChannel());
+				transferSize = in.size();
 				 
 			}
-			// It's in the default ClientFiles folder
+			// It's in the client's folder
 			else {
 				
 
-				if(!(new File("ClientFiles/" + filename).exists())){
-					System.err.println(filename + " does not exist on Client.");
+				if(!(new File(directory, filename).exists())){
+					consoleErr.println(filename + " does not exist on Client.");
 					return;
 				}
-				in = new BufferedInputStream(new FileInputStream("ClientFiles/" + filename));
+				in = new FileBlockSource(new RandomAccessFile(new File(directory, filename), "r").getChannel());
+				transferSize = in.size();
 				
 				
 			}
@@ -346,22 +636,33 @@ public class Client {
 			// Print out error information/handle error.
 			
 			if (e.getMessage().contains("(Access is denied)")) {
-				System.err.println("Cound not read " + filename + " on Client");
+				consoleErr.println("Cound not read " + filename + " on Client");
 			}
 			else {
-				e.printStackTrace();
+				e.printStackTrace(consoleErr);
 			}
 			return;
 		}
 		
-		sendPacket = sendRequest(RequestPacket.writeOpcode, filename, mode);
-		boolean duplicateACKPacket = false;
-		int bytesRead = 0;
+		sendPacket = sendRequest(RequestPacket.writeOpcode, remoteName, mode, transferSize);
+		// The WRQ is answered with ACK 0 (or an OACK), then blocks are sent a window at a time.
+		SendWindow<DatagramPacket> window = new SendWindow<DatagramPacket>(1);
+		// Reads the next blocks ahead once the server has answered and the block size is known, into the
+		// packets the server has acknowledged. And one packet every ACK is received into
+		BlockPrefetcher blocks = null;
+		ArrayDeque<DatagramPacket> freePackets = new ArrayDeque<DatagramPacket>();
+		DatagramPacket ackPacket = new DatagramPacket(new byte[bufferSize], bufferSize);
+		long position = 0;
+		boolean requestAcked = false;
+		boolean lastBlockRead = false;
+		boolean windowRestarted = false;
 		while (true) {
-			// receive ACK from previous dataBlock
-			byte[] data = new byte[bufferSize];
-			receivePacket = new DatagramPacket(data, data.length);	
-			if(!packetReceiveWithTimeout(sendAndReceiveSocket, receivePacket, sendPacket))
+			// receive ACK, the request or unacknowledged blocks are resent on a timeout
+			receivePacket = ackPacket;
+			boolean received;
+			if (window.isEmpty()) received = packetReceiveWithTimeout(sendAndReceiveSocket, receivePacket, sendPacket);
+			else received = packetReceiveWithTimeout(sendAndReceiveSocket, receivePacket, window);
+			if(!received)
 			{
 				in.close();
 				return;
@@ -377,7 +678,7 @@ public class Client {
 						
 			if(!receivePacket.getAddress().equals(serverAddress) || receivePacket.getPort() != serverPort)
 			{
-				System.err.println("Packet from unknown address or port, discarding.");
+				consoleErr.println("Packet from unknown address or port, discarding.");
 				ErrorPacket ep = new ErrorPacket((byte)5, "Packet from unknown address or port, discarding.");
 				DatagramPacket errPkt = new DatagramPacket(ep.encode(), ep.encode().length, receivePacket.getAddress(), receivePacket.getPort());
 				sendAndReceiveSocket.send(errPkt);
@@ -386,12 +687,14 @@ public class Client {
 			}
 			
 			
-			receivedData = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
-			receivedOpcode = Arrays.copyOf(receivedData, 2);
+			// The packet is checked where it was received, only an error or OACK is copied out of the buffer
+			receivedData = receivePacket.getData();
+			int length = receivePacket.getLength();
 			
-			if (Arrays.equals(receivedOpcode, ErrorPacket.opcode)){
-				ErrorPacket ep = new ErrorPacket(receivedData);
-				System.err.println(ep.getErrorMessage());
+			if (ErrorPacket.hasOpcode(receivedData, length)){
+				ErrorPacket ep = new ErrorPacket(Arrays.copyOf(receivedData, length));
+				consoleErr.println(ep.getErrorMessage());
+				errorCode = ep.getErrorCode();
 				// Access denied, can't write to server
 				if (ep.getErrorCode() == 2) {
 					
@@ -404,114 +707,139 @@ public class Client {
 				in.close();
 				return;
 			}
+			// Server accepted some options, the OACK takes the place of ACK 0
+			else if (OackPacket.hasOpcode(receivedData, length) && !requestAcked) {
+				if (!acceptOack(Arrays.copyOf(receivedData, length), receivePacket)) {
+					in.close();
+					return;
+				}
+				// Carry on as if ACK 0 had arrived
+				AckPacket.writePacket(receivedData, 0);
+				length = 4;
+			}
 			// The received packet should be an ACK packet at this point, and this have the Opcode defined in ackOP.
 			// If it is not an error packet or an ACK packet, something happened (these cases are in later iterations).
-			else if (!Arrays.equals(receivedOpcode, AckPacket.opcode)) {
+			else if (!AckPacket.hasOpcode(receivedData, length)) {
 				// Send ErrorPacket with error code 04 and stop transfer.
-				System.err.println("Was expecting an ACK, got unknown opcode instead");
+				consoleErr.println("Was expecting an ACK, got unknown opcode instead");
 				ErrorPacket ep = new ErrorPacket((byte)4, "Was expecting a ACK packet.");
-				sendAndReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendError(ep, serverAddress, serverPort);
 				in.close();
 				return;
 			}
-			if (!AckPacket.isValid(receivedData)) {
-				System.err.println("ACK packet was malformed");
+			if (!AckPacket.isValid(receivedData, length)) {
+				consoleErr.println("ACK packet was malformed");
 				ErrorPacket ep = new ErrorPacket((byte)4, "ACK packet was malformed.");
-				sendAndReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendError(ep, serverAddress, serverPort);
 				in.close();
 				return;
 			}
-			AckPacket ap = new AckPacket(receivedData);
 			// need block number
-			int blockNum = ap.getBlockNum();
+			int blockNum = AckPacket.readBlockNum(receivedData);
 			
-			duplicateACKPacket = false;
-			if (blockNum != currentBlockNumber) {
-				
-				if (blockNum == 0) {
-					
-					currentBlockNumber -= 65536;
+			int acked;
+			if (!requestAcked) {
+				acked = blockNum == 0 ? 1 : -1;
+				if (acked == 1) {
+					requestAcked = true;
+					window = new SendWindow<DatagramPacket>(windowSize);
+					// Initial request was sent to wellKnownPort, but steady state file transfer should happen on another port.
+					blocks = in.prefetch(blockSize, serverAddress, serverPort, metrics);
 				}
-				
-				 // If they're still not equal, another problem occurred.
-				if (blockNum != currentBlockNumber)
-				{
-					if(currentBlockNumber > blockNum)
-					{
-						//received duplicate data packet
-						duplicateACKPacket = true;
-						if (blockNum == 0) currentBlockNumber += 65536;// Restore block number since packet was a duplicate
-					}
-					else {
-						// Send ErrorPacket with error code 04 and stop transfer.
-						ErrorPacket ep = new ErrorPacket((byte)4, "ACK packet was not in sequence or duplicate.");
-						System.err.println("ACK packet was not in sequence or duplicate.");
-						sendAndReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
-						in.close();
-						return;
+			}
+			else {
+				acked = window.acknowledge(blockNum, freePackets);
+				blocks.recycle(freePackets);
+				if (acked > 0) showProgress((long) window.acknowledgedBlocks() * blockSize);
+			}
+			if (acked == -1) {
+				// Send ErrorPacket with error code 04 and stop transfer.
+				ErrorPacket ep = new ErrorPacket((byte)4, "ACK packet was not in sequence or duplicate.");
+				consoleErr.println("ACK packet was not in sequence or duplicate.");
+				sendError(ep, serverAddress, serverPort);
+				in.close();
+				return;
+			}
+			if (acked == 0) {
+				// Just ignore the duplicate ACK. With a window though, the server repeats its last ACK
+				// when part of a window went missing, so restart the window once for it.
+				metrics.duplicateAck();
+				if (windowSize > 1 && !windowRestarted && !window.isEmpty() && window.isLastAcknowledged(blockNum)) {
+					for (DatagramPacket p : window) {
+						sendAndReceiveSocket.send(p);
+						TFTPInfoPrinter.printSent(p);
+						metrics.retransmitted(1);
 					}
+					rtt.retransmitted();
+					windowRestarted = true;
 				}
+				continue;
 			}
+			windowRestarted = false;
 			
-			// Just ignore the duplicate ACK
-			if (!duplicateACKPacket) {
-				// increment block number then send that block
-				currentBlockNumber++;
-				
-				byte[] dataBlock = new byte[blockSize];
-				
-				// Resize dataBlock to total bytes read
-				bytesRead = in.read(dataBlock);
-				if (bytesRead == -1) bytesRead = 0;
-				dataBlock = Arrays.copyOf(dataBlock, bytesRead);
+			if (window.isEmpty()) {
+				// Final block has been acknowledged
+				if (lastBlockRead) break;
+			}
+			else {
+				// The server is missing part of the window, restart the window from the first block it didn't get.
+				for (DatagramPacket p : window) {
+					sendAndReceiveSocket.send(p);
+					TFTPInfoPrinter.printSent(p);
+					metrics.retransmitted(1);
+				}
+				rtt.retransmitted();
+			}
+			
+			// Fill the window with new blocks, with a window size of 1 this sends a single block.
+			while (!lastBlockRead && !window.isFull()) {
+				// Usually read already, the block follows its 4 byte header in the packet
+				try {
+					sendPacket = blocks.next();
+				} catch (IOException e) {
+					// The file couldn't be read, tell the server rather than leaving it to time out.
+					// Closing the file stops the prefetcher as well
+					consoleErr.println("Could not read " + '"' + filename + '"' + ". " + e.getMessage());
+					ErrorPacket ep = new ErrorPacket((byte)0, "Client could not read the file.");
+					sendError(ep, serverAddress, serverPort);
+					in.close();
+					return;
+				}
+				int bytesRead = sendPacket.getLength() - 4;
+				position += bytesRead;
+				if (bytesRead < blockSize) lastBlockRead = true;
 				
-				DataPacket dp = new DataPacket(currentBlockNumber, dataBlock);
-				byte[] sendData = dp.encode();
-				// Initial request was sent to wellKnownPort, but steady state file transfer should happen on another port.
-				sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getLocalHost(), receivePacket.getPort());
 				if(!packetSendWithTimeout(sendAndReceiveSocket, sendPacket))
 				{
 					in.close();
 					return;
 				}
 				TFTPInfoPrinter.printSent(sendPacket);
-				
-				if (bytesRead < 512) break;
+				window.add(sendPacket);
 			}
-			
 		}
-		//receive final ACK
-		byte[] data = new byte[bufferSize];
-		receivePacket = new DatagramPacket(data, data.length);	
-		if(!packetReceiveWithTimeout(sendAndReceiveSocket, receivePacket, sendPacket))
-		{
-			in.close();
-			return;
-		}
-		
-		if(!receivePacket.getAddress().equals(serverAddress) || receivePacket.getPort() != serverPort)
-		{
-			System.err.println("Packet from unknown address or port, discarding.");
-			ErrorPacket ep = new ErrorPacket((byte)5, "Packet from unknown address or port, discarding.");
-			DatagramPacket errPkt = new DatagramPacket(ep.encode(), ep.encode().length, receivePacket.getAddress(), receivePacket.getPort());
-			sendAndReceiveSocket.send(errPkt);
-			TFTPInfoPrinter.printSent(errPkt);
-			// Don't know what to do here.
-			// Need to still wait for final ACK...
-		}
-		TFTPInfoPrinter.printReceived(receivePacket);
 				
 		in.close();
-		System.out.println("Transfer complete");
+		completed = true;
+		bytesTransferred = position;
+		console.println("Transfer complete");
 	}
 	
 	
-	public void shutdown() {
+	//closes the client's socket, it can't make any more transfers after this
+	public void close() {
 		sendAndReceiveSocket.close();
+	}
+	
+	public void shutdown() {
+		close();
 		System.exit(1);
 	}
 	
 	public static void main(String args[]) {
+		if (args.length > 0 && args[0].equals("batch")) {
+			System.exit(BatchTransfer.run(Arrays.copyOfRange(args, 1, args.length)));
+		}
 		Client c = new Client();
 		
 		System.out.println("Hello! Please type which mode to run in; normal or test: (n/t)");
@@ -534,7 +862,39 @@ public class Client {
 			TFTPInfoPrinter.setVerboseMode(true);
 		}
 		
+		System.out.println("Enter the block size to request (" + TransferOptions.MIN_BLOCK_SIZE + "-" + TransferOptions.MAX_BLOCK_SIZE + "), or leave blank for 512:");
+		response = s.nextLine().trim();
+		if (!response.isEmpty()) {
+			try {
+				c.setBlockSize(Integer.parseInt(response));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Invalid block size, using 512.");
+			}
+		}
+		
+		System.out.println("Enter the window size to request (1-" + TransferOptions.MAX_WINDOW_SIZE + "), or leave blank for 1:");
+		response = s.nextLine().trim();
+		if (!response.isEmpty()) {
+			try {
+				c.setWindowSize(Integer.parseInt(response));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Invalid window size, using 1.");
+			}
+		}
+		
+		System.out.println("Enter the timeout to request in seconds (" + TransferOptions.MIN_TIMEOUT + "-" + TransferOptions.MAX_TIMEOUT + "), or leave blank to adapt it to the network:");
+		response = s.nextLine().trim();
+		if (!response.isEmpty()) {
+			try {
+				c.setTimeout(Integer.parseInt(response));
+			} catch (IllegalArgumentException e) {
+				System.out.println("Invalid timeout, adapting it to the network.");
+			}
+		}
+		
 		while (true) {
+			// Packets are printed on another thread, let the last transfer's come out before the prompt
+			TFTPInfoPrinter.flush(1000);
 			System.out.println("Please enter in the file name (or \"shutdown\" to exit):");
 			String fileName = s.nextLine();
 			if (fileName.equals("shutdown")) break;
@@ -546,10 +906,11 @@ public class Client {
 				if (action.equals("r") || action.equals("read")) {
 					//check if a file with that name exists on the client side
 					c.readFromServer(fileName, "octet");
-
+					System.out.println("Retransmission timeout: " + c.getRttEstimator());
 				}
 				else if (action.equals("w") || action.equals("write")) {
 					c.writeToServer(fileName, "octet");
+					System.out.println("Retransmission timeout: " + c.getRttEstimator());
 				}
 				else {
 					System.out.println("Invalid command");
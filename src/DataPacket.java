@@ -11,18 +11,53 @@ public class DataPacket {
 		return blockNum;
 	}
 	
+	// true if blockNum comes before current, allowing for the 16 bit block number wrapping around.
+	// current can keep counting past 65535, only its low 16 bits are compared.
+	public static boolean isEarlierBlock(int blockNum, int current) {
+		int diff = (current - blockNum) & 0xFFFF;
+		return diff != 0 && diff < 0x8000;
+	}
+	
+	// Writes the opcode and block number into the first 4 bytes of buffer, so a DATA packet
+	// can be built in place around a block that was read into buffer at offset 4.
+	public static void writeHeader(byte[] buffer, int blockNum) {
+		buffer[0] = opcode[0];
+		buffer[1] = opcode[1];
+		buffer[2] = (byte) (blockNum >> 8);
+		buffer[3] = (byte) blockNum;
+	}
+	
 	public static boolean isValid(byte[] data) {
-		if (data[0] != opcode[0] || data[1] != opcode[1]) return false;
-		if (data.length > 516) return false;
+		return isValid(data, TransferOptions.DEFAULT_BLOCK_SIZE);
+	}
+	
+	// blockSize is the negotiated block size, a DATA packet can't be bigger than one block.
+	public static boolean isValid(byte[] data, int blockSize) {
+		return isValid(data, data.length, blockSize);
+	}
+	
+	// Same as above for a packet received into a reused buffer, where only the first length bytes are the packet.
+	public static boolean isValid(byte[] data, int length, int blockSize) {
+		if (length < 4) return false;
+		if (!hasOpcode(data, length)) return false;
+		if (length > blockSize + 4) return false;
 		
 		return true;
 	}
 	
+	// true if the first length bytes of data start with the DATA opcode, checked in place without copying
+	public static boolean hasOpcode(byte[] data, int length) {
+		return length >= 2 && data[0] == opcode[0] && data[1] == opcode[1];
+	}
+	
+	// Block number of the DATA packet in data, read in place so the block can be written out of the receive buffer.
+	public static int readBlockNum(byte[] data) {
+		return (data[2] & 0xFF) << 8 | (data[3] & 0xFF);
+	}
+	
 	public DataPacket(byte[] data) {
 		this.data = data;
-		blockNum = data[2] & 0x00FF;
-		blockNum <<= 8;
-		blockNum |= data[3] & 0x0FF;
+		blockNum = readBlockNum(data);
 		dataBlock = new byte[data.length - 4];
 		System.arraycopy(data, 4, dataBlock, 0, data.length - 4);
 	}
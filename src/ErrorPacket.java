@@ -17,11 +17,16 @@ public class ErrorPacket {
 	}
 
 	
+	// true if the first length bytes of data start with the ERROR opcode, checked in place without copying
+	public static boolean hasOpcode(byte[] data, int length) {
+		return length >= 2 && data[0] == opcode[0] && data[1] == opcode[1];
+	}
+	
 	public static boolean isValid(byte[] data) {
 		if (data[0] != opcode[0] || data[1] != opcode[1]) return false;
 		
 		if (data[2] != 0) return false;
-		if (data[3] < 0 || data[3] > 7) return false;
+		if (data[3] < 0 || data[3] > 8) return false; // 8 is option negotiation refused (RFC 2347)
 		
 		try {
 			for (int i = 4; data[i] != 0; i++);
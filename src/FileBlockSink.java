@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Writes the blocks of a file being received behind the transfer's back, so a slow disk doesn't
+ * hold up the ACKs. The counterpart of FileBlockSource.
+ *
+ * write copies the block into one of the sink's buffers and queues it, a thread from a small pool
+ * shared by every transfer writes whatever is queued in one go, in order. Once every buffer is
+ * waiting to be written, write blocks until the disk catches up. A write that fails is reported by
+ * the next call to write or flush, with the message of the original error so it can still be told
+ * apart (access denied or disk full).
+ *
+ * flush waits for every queued block to be written, and sync also forces the file to disk unless the
+ * durability is NONE, so sync is called before the final ACK: once the sender has that the file must
+ * be stored. With GROUPED durability the writer also forces the file every so many bytes or ms while
+ * it is written, so there is never much left for the final sync to wait for. With a capacity of 0
+ * blocks are written straight away by the thread calling write, as before.
+ *
+ * A selector thread must not wait for the disk at all, so offer and whenWritten do the same without
+ * blocking: offer refuses the block when every buffer is waiting to be written, and whenWritten runs
+ * a task on a writer thread once the blocks queued so far are written, instead of waiting for them.
+ *
+ * One transfer writes to each sink, from a single thread.
+ */
+public class FileBlockSink {
+	public enum Durability { NONE, CLOSE, GROUPED }
+
+	private static final ExecutorService writers;
+
+	static {
+		final AtomicInteger count = new AtomicInteger();
+		int threads = Math.max(1, TFTPConfig.getWriterThreads());
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TFTP Writer #" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		writers = pool;
+	}
+
+	private final FileChannel channel;
+	private final int capacity;
+	// Blocks waiting to be written, and buffers free to copy the next ones into
+	private final BlockingQueue<ByteBuffer> pending;
+	private final BlockingQueue<ByteBuffer> free;
+	private int allocated = 0;
+	// Set while a writer thread has the sink, so only one ever writes to the file
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final Runnable drain;
+	// Only used by the writer thread that has the sink
+	private final ByteBuffer[] batch;
+	// Last array written from with a capacity of 0, kept wrapped since it is usually the same receive buffer
+	private ByteBuffer wrapped;
+	// A lock rather than synchronized, so a virtual thread waiting for the disk doesn't hold on to its carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition drained = lock.newCondition();
+	// Blocks queued by the transfer and blocks written (or given up on after an error), guarded by lock
+	private long queued = 0;
+	private long written = 0;
+	// Run by the writer once written catches up with queued, guarded by lock
+	private Runnable whenWritten;
+	private volatile IOException error;
+	private final Durability durability;
+	private final long syncBytes = TFTPConfig.getSyncBytes();
+	private final long syncNanos = TFTPConfig.getSyncMillis() * 1000000;
+	// For GROUPED, bytes written and when the file was last forced, only used by whichever thread writes
+	private long unsynced = 0;
+	private long syncedAt = System.nanoTime();
+
+	public FileBlockSink(FileChannel channel) {
+		this(channel, TFTPConfig.getWriteBehindBlocks(), TFTPConfig.getDurability());
+	}
+
+	//capacity is how many blocks can wait to be written, 0 writes them before write returns
+	public FileBlockSink(FileChannel channel, int capacity, Durability durability) {
+		this.channel = channel;
+		this.capacity = Math.max(0, capacity);
+		this.durability = durability;
+		pending = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, capacity));
+		free = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, capacity));
+		batch = new ByteBuffer[Math.max(1, capacity)];
+		drain = new Runnable() {
+			public void run() {
+				drain();
+			}
+		};
+	}
+
+	//queues len bytes of b from off to be written after the ones before, throws if an earlier write failed
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkError();
+		if (capacity == 0) {
+			if (wrapped == null || wrapped.array() != b) wrapped = ByteBuffer.wrap(b);
+			ByteBuffer src = wrapped;
+			src.limit(off + len).position(off);
+			while (src.hasRemaining()) channel.write(src);
+			written(len);
+			return;
+		}
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			if (allocated < capacity) {
+				allocated++;
+			}
+			else {
+				try {
+					// Every buffer is waiting to be written, wait for the disk
+					buffer = free.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for the disk");
+				}
+			}
+		}
+		// Blocks are all the same size but the last, so a buffer only needs replacing if the block size grew
+		if (buffer == null || buffer.capacity() < len) buffer = ByteBuffer.allocate(len);
+		buffer.clear();
+		buffer.put(b, off, len).flip();
+		queue(buffer);
+	}
+
+	//queues the bytes left in src like write, but returns false instead of waiting if every buffer is waiting to be written.
+	//Needs a capacity above 0
+	public boolean offer(ByteBuffer src) throws IOException {
+		checkError();
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			if (allocated == capacity) return false;
+			allocated++;
+		}
+		int len = src.remaining();
+		if (buffer == null || buffer.capacity() < len) buffer = ByteBuffer.allocate(len);
+		buffer.clear();
+		buffer.put(src).flip();
+		queue(buffer);
+		return true;
+	}
+
+	//runs task on a writer thread once every block queued so far has been written (or given up on), without waiting for it here.
+	//Only one task at a time, nothing may be queued after it
+	public void whenWritten(Runnable task) {
+		lock.lock();
+		try {
+			if (written < queued) {
+				whenWritten = task;
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		writers.execute(task);
+	}
+
+	private void queue(ByteBuffer buffer) {
+		lock.lock();
+		try {
+			queued++;
+		} finally {
+			lock.unlock();
+		}
+		pending.add(buffer);
+		if (scheduled.compareAndSet(false, true)) writers.execute(drain);
+	}
+
+	//waits until every block queued is written
+	public void flush() throws IOException {
+		awaitWritten();
+		checkError();
+	}
+
+	//same as above, then forces the file to disk unless the durability is NONE
+	public void sync() throws IOException {
+		flush();
+		if (durability != Durability.NONE) channel.force(true);
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	//waits for the blocks queued to be written, then closes the file, without reporting a failed write
+	public void close() throws IOException {
+		try {
+			awaitWritten();
+		} catch (InterruptedIOException e) {
+			// Close anyway, the writer thread gives up on the blocks left once the channel is closed
+		}
+		channel.close();
+	}
+
+	private void checkError() throws IOException {
+		IOException e = error;
+		if (e != null) throw new IOException(e.getMessage(), e);
+	}
+
+	private void awaitWritten() throws InterruptedIOException {
+		lock.lock();
+		try {
+			while (written < queued) drained.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the disk");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//counts bytes just written, and with GROUPED durability forces the file once enough were or long enough passed
+	private void written(long bytes) throws IOException {
+		if (durability != Durability.GROUPED) return;
+		unsynced += bytes;
+		long now = System.nanoTime();
+		if (unsynced >= syncBytes || now - syncedAt >= syncNanos) {
+			channel.force(false);
+			unsynced = 0;
+			syncedAt = now;
+		}
+	}
+
+	//run on a writer thread, writes everything queued in as few calls as possible until the queue is empty
+	private void drain() {
+		while (true) {
+			int n = 0;
+			ByteBuffer b;
+			while (n < batch.length && (b = pending.poll()) != null) batch[n++] = b;
+			if (n == 0) {
+				scheduled.set(false);
+				// A block queued after the poll but before the flag was cleared found it still set, so take it too
+				if (pending.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+				continue;
+			}
+			if (error == null) {
+				try {
+					long remaining = 0;
+					for (int i = 0; i < n; i++) remaining += batch[i].remaining();
+					long total = remaining;
+					while (remaining > 0) remaining -= channel.write(batch, 0, n);
+					written(total);
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				free.offer(batch[i]);
+				batch[i] = null;
+			}
+			Runnable task = null;
+			lock.lock();
+			try {
+				written += n;
+				drained.signalAll();
+				if (written == queued) {
+					task = whenWritten;
+					whenWritten = null;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (task != null) task.run();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/***
+ * Reads the blocks of a file being served straight into the packet buffers that carry them.
+ * Given a BlockCache that takes the file, blocks are copied out of the chunks it shares between
+ * transfers. Otherwise files from 64 KB up to 2 GB are memory mapped, so each block is a single
+ * copy out of the page cache with no read call and no allocation, and others use positional reads
+ * on the channel. Either way blocks can be read in any order, e.g. to resend a window.
+ * Not thread safe, each transfer opens its own, and once prefetch is called only its reader thread reads.
+ */
+public class FileBlockSource {
+	// Below this mapping costs more than it saves, a few reads do the whole file
+	private static final long MIN_MAP_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final long size;
+	private final MappedByteBuffer mapped;
+	// Last array read into without a mapping, kept wrapped since the same packet usually comes back
+	private ByteBuffer wrapped;
+	// Shared cache the file is read through, and the key for the chunk being looked up, null if not cached
+	private final BlockCache cache;
+	private BlockCache.Key chunkKey;
+	// Reading ahead of the transfer, null unless prefetch was called
+	private BlockPrefetcher prefetcher;
+
+	public FileBlockSource(FileChannel channel) throws IOException {
+		this(channel, null, null);
+	}
+
+	//reads the file through cache if it isn't null and takes files of this size, file being where channel was opened
+	public FileBlockSource(FileChannel channel, BlockCache cache, File file) throws IOException {
+		this.channel = channel;
+		size = channel.size();
+		if (cache != null && cache.accepts(size)) {
+			this.cache = cache;
+			chunkKey = new BlockCache.Key(cache.open(file, size), 0);
+		}
+		else {
+			this.cache = null;
+		}
+		if (chunkKey == null && TFTPConfig.isMemoryMapEnabled() && size >= MIN_MAP_SIZE && size <= Integer.MAX_VALUE) {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		else {
+			mapped = null;
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isMapped() {
+		return mapped != null;
+	}
+
+	public boolean isCached() {
+		return chunkKey != null;
+	}
+
+	//copies up to length bytes starting at position in the file into dest at offset
+	//returns the number of bytes copied, less than length only at the end of the file
+	public int read(byte[] dest, int offset, int length, long position) throws IOException {
+		int n = (int) Math.max(0, Math.min(length, size - position));
+		if (chunkKey != null) {
+			int done = 0;
+			while (done < n) {
+				long p = position + done;
+				byte[] chunk = getChunk(p);
+				if (chunk == null) break;
+				int from = (int) (p % BlockCache.CHUNK_SIZE);
+				int count = Math.min(n - done, chunk.length - from);
+				System.arraycopy(chunk, from, dest, offset + done, count);
+				done += count;
+			}
+			if (done == n) return n;
+		}
+		if (mapped != null) {
+			// Each transfer has its own source, so the mapping's position can be moved freely
+			mapped.position((int) position);
+			mapped.get(dest, offset, n);
+			return n;
+		}
+		if (wrapped == null || wrapped.array() != dest) wrapped = ByteBuffer.wrap(dest);
+		wrapped.limit(offset + n);
+		wrapped.position(offset);
+		return read(wrapped, position);
+	}
+
+	//same as above for a buffer, filling dest from its position up to its limit
+	public int read(ByteBuffer dest, long position) throws IOException {
+		int n = (int) Math.max(0, Math.min(dest.remaining(), size - position));
+		if (chunkKey != null) {
+			int start = dest.position();
+			int done = 0;
+			while (done < n) {
+				long p = position + done;
+				byte[] chunk = getChunk(p);
+				if (chunk == null) break;
+				int from = (int) (p % BlockCache.CHUNK_SIZE);
+				int count = Math.min(n - done, chunk.length - from);
+				dest.put(chunk, from, count);
+				done += count;
+			}
+			if (done == n) return n;
+			// The cache gave up on the file part way, read the whole block again below
+			dest.position(start);
+		}
+		if (mapped != null) {
+			mapped.limit((int) position + n);
+			mapped.position((int) position);
+			dest.put(mapped);
+			mapped.limit(mapped.capacity());
+			return n;
+		}
+		int total = 0;
+		while (total < n) {
+			int r = channel.read(dest, position + total);
+			if (r == -1) break;
+			total += r;
+		}
+		return total;
+	}
+
+	//chunk of the cache holding position, or null once the cache has dropped the file (it changed on disk)
+	//after which every read goes to the channel
+	private byte[] getChunk(long position) throws IOException {
+		chunkKey.index = position / BlockCache.CHUNK_SIZE;
+		byte[] chunk = cache.getChunk(chunkKey, channel);
+		if (chunk == null) chunkKey = null;
+		return chunk;
+	}
+
+	//starts reading DATA packets of blockSize ahead for address and port, with TFTPConfig.getPrefetchBlocks() of them
+	//ready at a time, from the start of the file. The source is the prefetcher's from then on, and closing it stops it
+	public BlockPrefetcher prefetch(int blockSize, InetAddress address, int port, TFTPMetrics metrics) {
+		prefetcher = new BlockPrefetcher(this, blockSize, address, port, TFTPConfig.getPrefetchBlocks(), metrics);
+		return prefetcher;
+	}
+
+	//the mapping (if any) stays valid until it is garbage collected, so closing is safe while it is in use
+	public void close() throws IOException {
+		if (prefetcher != null) prefetcher.close();
+		channel.close();
+	}
+}
@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/***
+ * Counts how many recorded values fall in each power of two range (0, 1, 2-3, 4-7, 8-15 ...),
+ * enough to see the spread of transfer times or rates without keeping every value.
+ * Recording is a couple of LongAdder increments, so many threads can record at once without
+ * contending. Percentiles are read from the buckets, so they are only as precise as a bucket.
+ */
+public class Histogram {
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	}, 0);
+
+	public Histogram() {
+		for (int i = 0; i < BUCKETS; i++) buckets[i] = new LongAdder();
+	}
+
+	//negative values are recorded as 0
+	public void record(long value) {
+		if (value < 0) value = 0;
+		buckets[bucketOf(value)].increment();
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	private static int bucketOf(long value) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	//largest value that goes in the bucket
+	private static long upperBound(int bucket) {
+		return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+	public long getMax() {
+		return max.get();
+	}
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0.0 : (double) sum.sum() / n;
+	}
+
+	/***
+	 * Upper bound of the bucket holding the given percentile (0-100) of the values recorded,
+	 * never more than the largest value seen. 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.sum();
+		if (n == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i].sum();
+			if (seen >= rank) return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+
+	//one line per non-empty bucket, e.g. "64-127: 12"
+	public String[] getBuckets() {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = buckets[i].sum();
+			if (n == 0) continue;
+			long low = i == 0 ? 0 : 1L << (i - 1);
+			lines.add((low == upperBound(i) ? Long.toString(low) : low + "-" + upperBound(i)) + ": " + n);
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	//values recorded while reset runs may be lost, fine for monitoring
+	public void reset() {
+		for (LongAdder bucket : buckets) bucket.reset();
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	public String toString() {
+		return String.format("count %d, mean %.1f, p50 %d, p90 %d, p99 %d, max %d",
+				getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+	}
+}
@@ -1,3 +1,4 @@
+import java.io.File;
 import java.util.Scanner;
 
 public class HostInput extends Thread 
@@ -62,7 +63,7 @@ public class HostInput extends Thread
 	private int getModeNumber(){
 		int mode = -1;
 		System.out.println("Enter Error Simulator mode:");
-		System.out.println("\t0 : normal operation\n\t1 : lose a packet\n\t2 : delay a packet\n\t3 : duplicate a packet\n\t4 : change packet opcode\n\t5 : change packet block number\n\t6 : replace a zero byte\n\t7 : change port during transfer\n\tr : reset for next transfer");
+		System.out.println("\t0 : normal operation\n\t1 : lose a packet\n\t2 : delay a packet\n\t3 : duplicate a packet\n\t4 : change packet opcode\n\t5 : change packet block number\n\t6 : replace a zero byte\n\t7 : change port during transfer\n\tr : reset, closing every session\n\ts : show sessions and relay statistics\n\tl <file> : load a scenario for every transfer, l alone clears it");
 		do{
 			String m = s.nextLine();
 			
@@ -71,6 +72,18 @@ public class HostInput extends Thread
 			{
 				return -1;
 			}
+			if (m.equals("s"))
+			{
+				host.printStatistics();
+				continue;
+			}
+			// Scenario, kept until another is loaded
+			if (m.equals("l") || m.startsWith("l "))
+			{
+				String file = m.substring(1).trim();
+				host.loadScenario(file.isEmpty() ? null : new File(file));
+				continue;
+			}
 			try{
 				mode = Integer.parseInt(m);
 				if(mode < 0 || mode > 7){
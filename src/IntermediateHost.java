@@ -1,150 +1,450 @@
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+/***
+ * Error simulator between the client (test mode, port 23) and the server (port 69). Relays every
+ * transfer that comes through, any number at once, on one selector thread: each client endpoint
+ * gets a RelaySession with a channel of its own, which is the TID the client and the server both
+ * see for the host, so packets are told apart by the channel they arrive on and who sent them.
+ * A session ends a few seconds after its transfer does (or after tftp.hostIdleTimeout ms without
+ * a packet), so nothing has to be reset between transfers.
+ *
+ * The error modes set through HostInput apply to the next packet matching them, in whichever
+ * session it comes. With -Dtftp.capture=<file> every packet received and sent is written to a
+ * pcap file (see PcapWriter). A Scenario (-Dtftp.scenario=<file>, or "l <file>" at the console) sets errors
+ * for every transfer instead, and is loaded again whenever its file is saved. With -Dtftp.impairment=<file> every packet also goes through a
+ * NetworkImpairment (loss, burst loss, delay, reordering, duplication, a bandwidth cap). Packets
+ * delayed, by an error mode or the impairment, are handed to a PacketScheduler that sends them
+ * when due on a thread of its own, so the relay carries on meanwhile. The "s" command prints each session's and the overall relay rate and the
+ * latency the host adds, measured from a packet being read to it being sent on.
+ */
 public class IntermediateHost {
-	
-	private DatagramSocket receiveSocket, sendAndReceiveSocket, sendAndReceiveSocketAlt;
-	private int mode = 0;
+	private static final int MAX_PACKET_SIZE = TransferOptions.MAX_BLOCK_SIZE + 4;
+	// How often sessions are checked for having ended
+	private static final long SWEEP_MS = 100;
+	// A finished session is kept this long for the last ACK or DATA to be sent again if it was lost
+	private static final long FINISHED_LINGER_MS = 3000;
+
+	private final Selector selector;
+	private final DatagramChannel receiveChannel, sendChannelAlt;
+	// Only the packets relayed are counted, the host can't tell how a transfer ended
+	private final TFTPMetrics metrics = TFTPMetrics.get(TFTPMetrics.HOST);
+	private volatile int mode = 0;
 	private int corruptSeg = 0;
 	private byte[] code = new byte[2];
 	private int delay = 0;
 	private byte[] newBlock = {0,0};
-	
+
 	private final int serverWellKnownPort = 69;
 	private final int hostWellKnownPort = 23;
-	
-	public IntermediateHost()
+	private final InetSocketAddress serverAddress;
+	private final long idleNanos = TimeUnit.MILLISECONDS.toNanos(TFTPConfig.getHostIdleTimeout());
+
+	// Keyed by client endpoint, only changed by the selector thread
+	private final Map<InetSocketAddress, RelaySession> sessions = new ConcurrentHashMap<InetSocketAddress, RelaySession>();
+	private volatile boolean resetRequested = false;
+	// Every packet relayed, closed sessions included
+	private final Histogram latencyMicros = new Histogram();
+	private volatile long sessionsClosed = 0;
+	private volatile long packetsRelayed = 0;
+	private volatile long bytesRelayed = 0;
+	private volatile long strayPackets = 0;
+	private volatile long sendsDropped = 0;
+	private volatile int openSessions = 0;
+	// DATA and ACKs the client and server sent again, in sessions closed so far
+	private volatile long dataResent = 0;
+	private volatile long acksResent = 0;
+	private volatile boolean sessionLog = true;
+	// Guarded by this, the totals at the last statistics report
+	private long reportTime = System.nanoTime();
+	private long reportPackets = 0;
+	private long reportBytes = 0;
+
+	// null without an impairment file, then every packet goes straight on
+	private final NetworkImpairment impairment;
+	// Sends the packets held back by the error modes and the impairment
+	private final PacketScheduler scheduler = new PacketScheduler("Packet Scheduler", metrics);
+	// null unless packets are being captured
+	private volatile PcapWriter capture;
+	private final long[] sendAt = new long[2];
+
+	private volatile Scenario scenario;
+	// File the scenario came from and when it was last changed, checked for changes every second
+	private volatile File scenarioFile;
+	private long scenarioModified;
+	private long scenarioChecked = 0;
+
+	public IntermediateHost() throws IOException
 	{
-		try{
-			receiveSocket = new DatagramSocket(23);
-			sendAndReceiveSocket = new DatagramSocket();
-			sendAndReceiveSocket.setSoTimeout(5000);
-			sendAndReceiveSocketAlt = new DatagramSocket(50);
-		}catch(SocketException e)
-		{
-			e.printStackTrace();
-			System.exit(1);
+		serverAddress = new InetSocketAddress(InetAddress.getLocalHost(), serverWellKnownPort);
+		selector = Selector.open();
+		receiveChannel = DatagramChannel.open();
+		receiveChannel.bind(new InetSocketAddress(hostWellKnownPort));
+		receiveChannel.configureBlocking(false);
+		receiveChannel.register(selector, SelectionKey.OP_READ);
+		sendChannelAlt = DatagramChannel.open();
+		sendChannelAlt.bind(new InetSocketAddress(50));
+		String impairmentFile = TFTPConfig.getImpairmentFile();
+		impairment = impairmentFile != null ? NetworkImpairment.load(impairmentFile) : null;
+		if (impairment != null) {
+			System.out.println("Impairing packets as set in " + impairmentFile + ":");
+			for (NetworkImpairment.Rule r : impairment.getRules()) System.out.println("  " + r.getName());
 		}
+		String scenarioName = TFTPConfig.getScenarioFile();
+		if (scenarioName != null) loadScenario(new File(scenarioName));
+		setCapture(PcapWriter.get());
 	}
-	
-	public void receiveAndSend() throws Exception
+
+	//relays packets until the process ends, taking error modes from the console
+	public void receiveAndSend() throws IOException
 	{
-		int clientPort = -1, serverPort = 69;
 		HostInput errorModeCommand = new HostInput("Host Input Handler", this);
+		errorModeCommand.setDaemon(true);
 		errorModeCommand.start();
-		
-		byte[] data = new byte[516];
-		
-		
-		DatagramPacket p = new DatagramPacket(data, data.length);
-		receiveSocket.receive(p);
-		
-		clientPort = p.getPort();
-		TFTPInfoPrinter.printReceived(p);
-		
+		relay();
+	}
+
+	//relays packets until the process ends, without the console, for a program running the host
+	public void relay() throws IOException
+	{
+		// Packets are handled one at a time, so every session shares the buffer
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+		long lastSweep = System.nanoTime();
 		while (true) {
-			InetAddress addr = InetAddress.getLocalHost();
-			int port = -1;
-			if (mode == -1) break;
-			// from client
-			if (p.getPort() == clientPort) {
-				port = serverPort;
-			}
-			// from server
-			else if (p.getPort() == serverPort) {
-				port = clientPort;
-			}
-			if (mode != 0 && isTargetPacket(p.getData())) {
-				sendSpecially(p.getData(), p.getLength(), addr, port);
+			selector.select(SWEEP_MS);
+			if (resetRequested) {
+				resetRequested = false;
+				for (RelaySession s : relaying()) close(s);
 			}
 
-			else {
-				DatagramPacket sendPacket = new DatagramPacket(p.getData(), p.getLength(), addr, port);
-				sendAndReceiveSocket.send(sendPacket);
-				TFTPInfoPrinter.printSent(sendPacket);
-			}
-			
-			p = new DatagramPacket(data, data.length);
-			while (mode != -1) {
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (!key.isValid()) continue;
+				RelaySession session = (RelaySession) key.attachment();
+				DatagramChannel channel = (DatagramChannel) key.channel();
 				try {
-					sendAndReceiveSocket.receive(p);
-					break;
-				} catch (SocketTimeoutException e) {
-					
+					// Take everything queued on the channel before moving on
+					while (key.isValid()) {
+						buffer.clear();
+						SocketAddress from = channel.receive(buffer);
+						if (from == null) break;
+						long received = System.nanoTime();
+						buffer.flip();
+						metrics.packetReceived(buffer);
+						PcapWriter c = capture;
+						if (c != null) c.capture(buffer, (InetSocketAddress) from, (InetSocketAddress) channel.getLocalAddress());
+						TFTPInfoPrinter.printReceived(buffer, (InetSocketAddress) from);
+						if (session == null) fromClientRequest(buffer, (InetSocketAddress) from, received);
+						else fromSession(session, buffer, (InetSocketAddress) from, received);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					if (session != null) close(session);
 				}
 			}
-			// Get out of loop as trasnfer has been marked as finished.
-			if (mode == -1) {
-				break;
+
+			long now = System.nanoTime();
+			if (now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_MS)) {
+				lastSweep = now;
+				for (RelaySession s : relaying()) {
+					if (now - s.getExpires() >= 0) close(s);
+				}
+				if (now - scenarioChecked >= TimeUnit.SECONDS.toNanos(1)) {
+					scenarioChecked = now;
+					reloadScenario();
+				}
 			}
-			
-			
+		}
+	}
+
+	//a packet on port 23: a new request, or a request sent again before the server answered the first
+	private void fromClientRequest(ByteBuffer packet, InetSocketAddress from, long received) throws IOException {
+		RelaySession session = sessions.get(from);
+		if (session != null && session.hasServerAnswered()) {
+			// The client has moved on to another transfer from the same port. The old session is
+			// kept a little longer, for packets of its transfer still on their way (or scheduled)
+			sessions.remove(from);
+			long linger = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FINISHED_LINGER_MS);
+			if (session.getExpires() - linger > 0) session.setExpires(linger);
+			session = null;
+		}
+		if (session == null) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(0));
+			channel.configureBlocking(false);
+			session = new RelaySession(from, channel, serverAddress);
+			channel.register(selector, SelectionKey.OP_READ, session);
+			sessions.put(from, session);
+			openSessions++;
+		}
+		relay(session, packet, true, received);
+	}
+
+	//a packet on a session's channel, from the client or the server
+	private void fromSession(RelaySession session, ByteBuffer packet, InetSocketAddress from, long received) throws IOException {
+		boolean fromClient = from.equals(session.getClient());
+		if (!fromClient) {
 			// On the first transfer, the server port will still be the well known port.
 			// If this is the cause, change it to the port for steady state transfer.
-			if (serverPort == serverWellKnownPort) serverPort = p.getPort();
-			
-			
-			TFTPInfoPrinter.printReceived(p);
+			if (!session.hasServerAnswered()) {
+				session.serverAnswered(from);
+			}
+			else if (!from.equals(session.getServer())) {
+				strayPackets++;
+				return;
+			}
+		}
+		relay(session, packet, fromClient, received);
+	}
+
+	private void relay(RelaySession session, ByteBuffer packet, boolean toServer, long received) throws IOException {
+		int length = packet.remaining();
+		int direction = toServer ? NetworkImpairment.TO_SERVER : NetworkImpairment.TO_CLIENT;
+		int opcode = length >= 2 ? (packet.get(0) & 0xFF) << 8 | (packet.get(1) & 0xFF) : -1;
+		boolean finished = session.observe(packet, direction);
+		InetSocketAddress to = toServer ? session.getServer() : session.getClient();
+		Scenario current = scenario;
+		Scenario.Rule scripted = current == null ? null : current.match(direction, opcode,
+				(opcode == PacketView.DATA || opcode == PacketView.ACK) && length >= 4 ? (packet.get(2) & 0xFF) << 8 | (packet.get(3) & 0xFF) : -1,
+				session.ruleUses(current));
+		if (mode != 0 && isTargetPacket(packet.array())) {
+			int m = mode;
+			mode = 0;
+			sendSpecially(m, corruptSeg, newBlock, delay, session.getChannel(), packet.array(), length, to);
+		}
+		else if (scripted != null && scripted.mode != 0) {
+			sendSpecially(scripted.mode, scripted.corruptSeg, scripted.newBytes, scripted.delay, session.getChannel(), packet.array(), length, to);
+		}
+		else {
+			// A scenario's own impairment takes the place of the one the host started with
+			NetworkImpairment impaired = current != null && current.getImpairment() != null ? current.getImpairment() : impairment;
+			NetworkImpairment.Rule rule = impaired != null ? impaired.ruleFor(direction, opcode) : null;
+			if (rule == null) send(session.getChannel(), packet, to);
+			else impair(rule, session.getChannel(), packet, to, received);
+		}
+		long now = System.nanoTime();
+		session.relayed(toServer, length, now - received, now);
+		latencyMicros.record(TimeUnit.NANOSECONDS.toMicros(now - received));
+		packetsRelayed++;
+		bytesRelayed += length;
+		session.setExpires(now + (finished ? TimeUnit.MILLISECONDS.toNanos(FINISHED_LINGER_MS) : idleNanos));
+	}
+
+	//sends each copy of the packet the impairment lets through, the ones not due yet are left to the scheduler
+	private void impair(NetworkImpairment.Rule rule, DatagramChannel channel, ByteBuffer packet, InetSocketAddress to, long received) throws IOException {
+		int copies = rule.apply(packet.remaining(), received, sendAt);
+		for (int i = 0; i < copies; i++) {
+			if (sendAt[i] - System.nanoTime() <= 0) {
+				send(channel, packet, to);
+			}
+			else {
+				scheduler.schedule(channel, packet, to, sendAt[i]);
+			}
+		}
+	}
+
+	private void send(DatagramChannel channel, ByteBuffer packet, InetSocketAddress to) throws IOException {
+		int start = packet.position();
+		// A full socket buffer drops the packet, as the network would
+		boolean sent = channel.send(packet, to) != 0;
+		if (!sent) sendsDropped++;
+		packet.position(start);
+		metrics.packetSent(packet);
+		PcapWriter c = capture;
+		if (sent && c != null) c.capture(packet, (InetSocketAddress) channel.getLocalAddress(), to);
+		TFTPInfoPrinter.printSent(packet, to);
+	}
+
+	//every session with a channel open, including those a newer session of the same client replaced
+	private List<RelaySession> relaying() {
+		List<RelaySession> all = new ArrayList<RelaySession>();
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null) all.add((RelaySession) key.attachment());
+		}
+		return all;
+	}
+
+	private void close(RelaySession session) {
+		// Already closed after an error, its key stays in the selector until the next select
+		if (!session.getChannel().isOpen()) return;
+		sessions.remove(session.getClient(), session);
+		try {
+			session.getChannel().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		sessionsClosed++;
+		openSessions--;
+		dataResent += session.getDataResent();
+		acksResent += session.getAcksResent();
+		if (sessionLog && session.getPackets() > 0) System.out.println("Session " + session);
+	}
+
+	//captures every packet relayed from now on to c, null stops capturing
+	public void setCapture(PcapWriter c) {
+		capture = c;
+		scheduler.setCapture(c);
+	}
+
+	//whether each session is printed when it closes, and what the error modes do to its packets
+	public void setSessionLog(boolean enabled) {
+		sessionLog = enabled;
+	}
+
+	//sessions with their channel open, including those still lingering after their transfer
+	public int getOpenSessions() {
+		return openSessions;
+	}
+	//DATA the clients and servers sent again, in sessions closed so far
+	public long getDataResent() {
+		return dataResent;
+	}
+	//ACKs the clients and servers sent again, in sessions closed so far
+	public long getAcksResent() {
+		return acksResent;
+	}
+
+	//makes s the rules for every transfer from the next packet on, null for none
+	public void setScenario(Scenario s) {
+		scenario = s;
+		System.out.println(s != null ? "Scenario " + s + " loaded" : "Scenario cleared");
+	}
+
+	//loads the scenario in file and keeps loading it again whenever the file changes, null clears it.
+	//Returns false, keeping the scenario there was, if the file can't be read or has a mistake
+	public boolean loadScenario(File file) {
+		if (file == null) {
+			scenarioFile = null;
+			setScenario(null);
+			return true;
+		}
+		long modified = file.lastModified();
+		try {
+			setScenario(Scenario.load(file));
+		} catch (IOException e) {
+			System.err.println("Could not read scenario " + file + ": " + e);
+			return false;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Scenario not loaded, " + e.getMessage());
+			return false;
+		}
+		synchronized (this) {
+			scenarioModified = modified;
 		}
+		scenarioFile = file;
+		return true;
 	}
+
+	//on the selector thread, loads the scenario file again if it was saved since it was loaded
+	private void reloadScenario() {
+		File file = scenarioFile;
+		if (file == null) return;
+		long modified = file.lastModified();
+		boolean changed;
+		synchronized (this) {
+			changed = modified != 0 && modified != scenarioModified;
+			// Not tried again until it changes once more, even if it can't be loaded
+			if (changed) scenarioModified = modified;
+		}
+		if (changed) {
+			try {
+				setScenario(Scenario.load(file));
+			} catch (IOException e) {
+				System.err.println("Could not read scenario " + file + ": " + e);
+			} catch (IllegalArgumentException e) {
+				System.err.println("Scenario not loaded again, " + e.getMessage());
+			}
+		}
+	}
+
 	public void resetForNextTransfer() {
 		mode = 0;
+		resetRequested = true;
+		selector.wakeup();
+	}
+
+	//prints every session open and the relay's totals, the rate being over the time since the last report
+	public synchronized void printStatistics() {
+		List<RelaySession> open = new ArrayList<RelaySession>(sessions.values());
+		System.out.println(open.size() + " sessions open, " + sessionsClosed + " closed");
+		for (RelaySession s : open) {
+			System.out.println("  " + s);
+		}
+		long now = System.nanoTime();
+		long packets = packetsRelayed, bytes = bytesRelayed;
+		double seconds = (now - reportTime) / 1e9;
+		System.out.println(String.format("Relayed %d packets, %d bytes; %.0f packets/s, %.1f KB/s over the last %.1f s; "
+				+ "added latency mean %.1f us, p50 %d us, p99 %d us, max %d us; %d stray packets, %d sends dropped",
+				packets, bytes, seconds > 0 ? (packets - reportPackets) / seconds : 0.0, seconds > 0 ? (bytes - reportBytes) / 1024 / seconds : 0.0,
+				seconds, latencyMicros.getMean(), latencyMicros.getPercentile(50), latencyMicros.getPercentile(99), latencyMicros.getMax(),
+				strayPackets, sendsDropped));
+		System.out.println("Sent again by the clients and servers, in closed sessions: " + dataResent + " DATA, " + acksResent + " ACKs");
+		PcapWriter c = capture;
+		if (c != null) System.out.println("Packet capture: " + c);
+		Scenario current = scenario;
+		if (current != null) {
+			System.out.println("Scenario " + current + ":");
+			for (Scenario.Rule r : current.getRules()) System.out.println("  " + r);
+		}
+		System.out.println(scheduler);
+		NetworkImpairment impaired = current != null && current.getImpairment() != null ? current.getImpairment() : impairment;
+		if (impaired != null) {
+			System.out.println("Impairment from " + impaired.getSource() + ":");
+			for (NetworkImpairment.Rule r : impaired.getRules()) System.out.println("  " + r);
+		}
+		reportTime = now;
+		reportPackets = packets;
+		reportBytes = bytes;
 	}
-	
-	private void sendSpecially(byte[] data, int length, InetAddress addr, int port) {
-		DatagramPacket sendPacket = new DatagramPacket(data, length, addr, port);
+
+	//does what error mode (1-5, as set by setMode) says to the packet of length bytes in data
+	private void sendSpecially(int mode, int corruptSeg, byte[] newBlock, int delay, DatagramChannel channel, byte[] data, int length, InetSocketAddress to) {
+		ByteBuffer sendPacket = ByteBuffer.wrap(data, 0, length);
+		boolean log = sessionLog;
 
 		// Drop packet
 		if (mode == 1) {
-			System.out.println("Dropping packet...");
-			byte[] opcode = {data[0], data[1]};
-			// If a request is dropped, need to reset.
-			if (Arrays.equals(opcode, RequestPacket.readOpcode) || Arrays.equals(opcode, RequestPacket.writeOpcode)){
-				mode = -1;
-			}
-			// Do nothing (packet dropped)
+			if (log) System.out.println("Dropping packet...");
+			// Do nothing (packet dropped), a dropped request is sent again by the client on the same session
 		}
-		// Delay packet
+		// Delay packet, the scheduler sends it while the other packets carry on
 		else if (mode == 2) {
-			System.out.println("Delaying packet...");
-			try {
-
-				TimeUnit.MILLISECONDS.sleep(delay);
-				sendAndReceiveSocket.send(sendPacket);
-			} catch (InterruptedException ie) {
-				
-			} catch (IOException ioe) {
-				
-			}
-			
+			if (log) System.out.println("Delaying packet...");
+			scheduler.schedule(channel, sendPacket, to, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
 		}
 		// Duplicate packet
 		else if (mode == 3) {
-			System.out.println("Duplicating packet");
+			if (log) System.out.println("Duplicating packet");
 			try {
-				sendAndReceiveSocket.send(sendPacket);
-				TimeUnit.MILLISECONDS.sleep(delay);
-				sendAndReceiveSocket.send(sendPacket);
-			} catch (InterruptedException ie) {
-				
+				send(channel, sendPacket, to);
 			} catch (IOException ioe) {
 
 			}
-			
-
+			scheduler.schedule(channel, sendPacket, to, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
 		}
 		// Corrupt the packet
 		else if (mode == 4) {
-			System.out.println("Corrupting packet");
-			System.out.println("CorruptSeg=" + corruptSeg);
-			
+			if (log) {
+				System.out.println("Corrupting packet");
+				System.out.println("CorruptSeg=" + corruptSeg);
+			}
+
 			//corrupt packet
 			if(corruptSeg == 1){
 				//change opcode
@@ -160,29 +460,24 @@ public class IntermediateHost {
 				//change end 0 byte to a value
 				data[length - 1] = 1;
 			}
-			
+
 			try {
-				// May or may not be necessary.
-				sendPacket.setData(data);
-				sendPacket.setLength(length);
-				sendAndReceiveSocket.send(sendPacket);
+				send(channel, sendPacket, to);
 			} catch (IOException ioe) {
-				
+
 			}
 		}
 		// send from different socket
 		else if (mode == 5) {
-			System.out.println("Sending from a different port: " + sendAndReceiveSocketAlt.getLocalPort());
+			if (log) System.out.println("Sending from a different port: " + sendChannelAlt.socket().getLocalPort());
 			try {
-				sendAndReceiveSocketAlt.send(sendPacket);
+				send(sendChannelAlt, sendPacket, to);
 			} catch (IOException e) {
-				
+
 			}
 		}
-		TFTPInfoPrinter.printSent(sendPacket);
-		if (mode != -1) mode = 0;
 	}
-	
+
 	public static void main(String args[]) throws InterruptedException
 	{
 		System.out.println("Choose whether you would like to run in quiet or verbose mode (q/v):");
@@ -195,23 +490,25 @@ public class IntermediateHost {
 		else if (response.equals("n")) {
 			TFTPInfoPrinter.setVerboseMode(true);
 		}
-		IntermediateHost host = new IntermediateHost();
-		//try{
-		//	Thread.sleep(100);
-		//}catch(InterruptedException e){}
 		try {
-			while (true) {
-				host.receiveAndSend();
-				host.resetForNextTransfer();
-			}
-			
+			IntermediateHost host = new IntermediateHost();
+			host.receiveAndSend();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
 	public void setMode(int m, byte[] c, byte[] nc, int d){
-		
+
+		if(m == -1){
+			resetForNextTransfer();
+			System.out.println("Reset, every session closed");
+			return;
+		}
+		code = c;
+		newBlock = nc;
+		delay = d;
+		// mode last, the selector thread reads the rest once it sees it
 		if(m < 4){
 			mode = m;
 		}
@@ -219,12 +516,9 @@ public class IntermediateHost {
 			mode = 5;
 		}
 		else{
-			mode = 4;
 			corruptSeg = m-3;
+			mode = 4;
 		}
-		code = c;
-		newBlock = nc;
-		delay = d;
 		System.out.print("Mode set to " + m + " for packet [ ");
 		for(int i = 0; i < c.length; i++){
 			System.out.print(c[i] + " ");
@@ -235,7 +529,7 @@ public class IntermediateHost {
 		}
 		System.out.println("] with delay of " + d);
 	}
-	
+
 	public boolean isTargetPacket(byte[] data){
 		boolean state = true;
 		for(int i = 0; i < code.length; i++){
@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/***
+ * A DatagramSocket that counts every packet it sends and receives in a TFTPMetrics,
+ * so each send in the transfer code doesn't have to, and captures them to the process's
+ * PcapWriter if there is one.
+ */
+public class MeteredDatagramSocket extends DatagramSocket {
+	private final TFTPMetrics metrics;
+	private final PcapWriter capture = PcapWriter.get();
+
+	//bound to any free port
+	public MeteredDatagramSocket(TFTPMetrics metrics) throws SocketException {
+		super();
+		this.metrics = metrics;
+	}
+
+	public MeteredDatagramSocket(int port, TFTPMetrics metrics) throws SocketException {
+		super(port);
+		this.metrics = metrics;
+	}
+
+	public void send(DatagramPacket p) throws IOException {
+		super.send(p);
+		metrics.packetSent(p.getData(), p.getOffset(), p.getLength());
+		if (capture != null) {
+			capture.capture(p.getData(), p.getOffset(), p.getLength(), (InetSocketAddress) getLocalSocketAddress(), (InetSocketAddress) p.getSocketAddress());
+		}
+	}
+
+	public void receive(DatagramPacket p) throws IOException {
+		super.receive(p);
+		metrics.packetReceived(p.getData(), p.getOffset(), p.getLength());
+		if (capture != null) {
+			capture.capture(p.getData(), p.getOffset(), p.getLength(), (InetSocketAddress) p.getSocketAddress(), (InetSocketAddress) getLocalSocketAddress());
+		}
+	}
+}
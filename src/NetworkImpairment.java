@@ -0,0 +1,328 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/***
+ * Impairs the packets the IntermediateHost relays the whole time, rather than one scripted error:
+ * random loss, burst loss (Gilbert-Elliott), delay with jitter, reordering, duplication and a
+ * bandwidth cap, so throughput can be measured as the network gets worse.
+ *
+ * Loaded from a properties file (-Dtftp.impairment=<file>) with keys <direction>.<opcode>.<param>,
+ * direction being toServer, toClient or *, opcode RRQ, WRQ, DATA, ACK, ERROR, OACK or *:
+ *   loss=2               % of packets dropped at random
+ *   burstEnter=1 burstExit=25 burstLoss=100
+ *                        Gilbert-Elliott burst loss: % chance per packet to go from the good to the
+ *                        bad state and back, and % of packets lost in the bad state
+ *   delay=20 jitter=5    ms added to each packet, and by how much it varies
+ *   jitterDistribution=uniform   uniform (delay +- jitter), normal (jitter is the standard deviation)
+ *                        or exponential (delay plus a random wait averaging jitter)
+ *   reorder=1 reorderDelay=20   % of packets held back reorderDelay ms more, so later ones overtake them
+ *   duplicate=1          % of packets sent twice
+ *   rate=500 rateBurst=16 rateQueue=1000
+ *                        cap in KB/s, KB that can go through at once after a quiet spell, and the
+ *                        most ms a packet waits for the cap before it is dropped instead
+ *   seed=1               seed for the random draws, so a run can be repeated
+ * For each packet every param is taken from the most specific key that sets it: toClient.DATA.loss,
+ * then toClient.*.loss, *.DATA.loss, *.*.loss. Burst state and the bandwidth cap belong to the key
+ * that set them, so toClient.*.rate caps everything sent to the client together, while
+ * toClient.DATA.rate would only cap the DATA.
+ *
+ * A direction and opcode no key applies to has no Rule at all, and the host sends those packets
+ * on as if there was no impairment. Only used by the host's selector thread, not thread safe,
+ * apart from the counters which the "s" command reads.
+ */
+public class NetworkImpairment {
+	public static final int TO_SERVER = 0;
+	public static final int TO_CLIENT = 1;
+	private static final String[] DIRECTIONS = {"toServer", "toClient"};
+	// Index 0 is a packet with no valid opcode, which only * keys apply to
+	private static final String[] OPCODES = {"?", "RRQ", "WRQ", "DATA", "ACK", "ERROR", "OACK"};
+	private static final String[] PARAMS = {"loss", "burstEnter", "burstExit", "burstLoss", "delay", "jitter", "jitterDistribution",
+			"reorder", "reorderDelay", "duplicate", "rate", "rateBurst", "rateQueue"};
+
+	private final Rule[][] rules = new Rule[DIRECTIONS.length][OPCODES.length];
+	private final Random random;
+	private final String source;
+
+	//reads the impairment from a properties file, throws IllegalArgumentException for a key or value it doesn't understand
+	public static NetworkImpairment load(String file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return new NetworkImpairment(properties, file);
+	}
+
+	public NetworkImpairment(Properties properties, String source) {
+		this.source = source;
+		String seed = properties.getProperty("seed");
+		random = seed != null ? new Random(Long.parseLong(seed.trim())) : new Random();
+		// "direction.opcode" -> param -> value, as written
+		Map<String, Map<String, String>> keys = new HashMap<String, Map<String, String>>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.equals("seed")) continue;
+			String[] parts = key.split("\\.");
+			if (parts.length != 3) throw new IllegalArgumentException(key + ": keys are <direction>.<opcode>.<param>");
+			String direction = parts[0].equals("*") ? "*" : canonical(parts[0], DIRECTIONS, key);
+			String opcode = parts[1].equals("*") ? "*" : canonical(parts[1], OPCODES, key);
+			String param = canonical(parts[2], PARAMS, key);
+			String group = direction + "." + opcode;
+			Map<String, String> params = keys.get(group);
+			if (params == null) {
+				params = new HashMap<String, String>();
+				keys.put(group, params);
+			}
+			params.put(param, properties.getProperty(key).trim());
+		}
+		// State shared by every rule that took its burst or rate params from the same key, in the same direction
+		Map<String, Object> shared = new HashMap<String, Object>();
+		for (int d = 0; d < DIRECTIONS.length; d++) {
+			for (int o = 0; o < OPCODES.length; o++) {
+				String[] groups = o == 0
+						? new String[] {DIRECTIONS[d] + ".*", "*.*"}
+						: new String[] {DIRECTIONS[d] + "." + OPCODES[o], DIRECTIONS[d] + ".*", "*." + OPCODES[o], "*.*"};
+				Rule rule = new Rule(DIRECTIONS[d] + "." + OPCODES[o]);
+				boolean any = false;
+				for (String param : PARAMS) {
+					for (String group : groups) {
+						Map<String, String> params = keys.get(group);
+						if (params != null && params.containsKey(param)) {
+							rule.set(param, params.get(param), group);
+							any = true;
+							break;
+						}
+					}
+				}
+				if (any) {
+					rule.share(shared, DIRECTIONS[d]);
+					rules[d][o] = rule;
+				}
+			}
+		}
+	}
+
+	//param names are matched ignoring case, as written in the documentation otherwise
+	private static String canonical(String name, String[] names, String key) {
+		for (String n : names) {
+			if (n.equalsIgnoreCase(name)) return n;
+		}
+		throw new IllegalArgumentException(key + ": unknown " + name);
+	}
+
+	//the rule for packets going direction (TO_SERVER or TO_CLIENT) with opcode, null if they aren't impaired
+	public Rule ruleFor(int direction, int opcode) {
+		return rules[direction][opcode >= 1 && opcode < OPCODES.length ? opcode : 0];
+	}
+
+	//every rule in use, for the statistics
+	public List<Rule> getRules() {
+		List<Rule> list = new ArrayList<Rule>();
+		for (Rule[] byOpcode : rules) {
+			for (Rule r : byOpcode) {
+				if (r != null) list.add(r);
+			}
+		}
+		return list;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	private double percent(String value, String name) {
+		double p = Double.parseDouble(value);
+		if (p < 0 || p > 100) throw new IllegalArgumentException(name + " is a % from 0 to 100: " + value);
+		return p / 100;
+	}
+
+	//Gilbert-Elliott channel: whether it is in the bad state, changed once per packet
+	private static class BurstState {
+		boolean bad = false;
+	}
+
+	//token bucket in bytes, refilled at rate bytes per second up to burst. Goes negative by the bytes
+	//still queued for the cap, which is how long the next packet has to wait behind them
+	private static class TokenBucket {
+		final double rate;
+		final double burst;
+		double tokens;
+		long refilled = System.nanoTime();
+
+		TokenBucket(double rate, double burst) {
+			this.rate = rate;
+			this.burst = burst;
+			tokens = burst;
+		}
+
+		//nanos a packet of length bytes waits for the cap, -1 if that is over maxWait and it is dropped
+		long take(int length, long now, long maxWait) {
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+			refilled = now;
+			long wait = tokens >= length ? 0 : (long) ((length - tokens) / rate * 1e9);
+			if (wait > maxWait) return -1;
+			tokens -= length;
+			return wait;
+		}
+	}
+
+	/***
+	 * What happens to the packets of one direction and opcode. apply decides each packet's fate:
+	 * dropped, or sent once or twice, each copy at a time of its own.
+	 */
+	public class Rule {
+		private final String name;
+		private double loss = 0;
+		private double burstEnter = 0;
+		private double burstExit = 0;
+		private double burstLoss = 1;
+		private long delay = 0;
+		private long jitter = 0;
+		private String jitterDistribution = "uniform";
+		private double reorder = 0;
+		private long reorderDelay = 20000000;
+		private double duplicate = 0;
+		private double rate = 0;
+		private double rateBurst = 16 * 1024;
+		private long rateQueue = 1000000000;
+		// Keys burstEnter and rate came from, so rules set by the same key share their state
+		private String burstKey, rateKey;
+		private BurstState burst;
+		private TokenBucket bucket;
+
+		private volatile long packets = 0;
+		private volatile long lost = 0;
+		private volatile long burstLost = 0;
+		private volatile long rateDropped = 0;
+		private volatile long delayed = 0;
+		private volatile long reordered = 0;
+		private volatile long duplicated = 0;
+
+		Rule(String name) {
+			this.name = name;
+		}
+
+		private void set(String param, String value, String key) {
+			try {
+				if (param.equals("loss")) loss = percent(value, param);
+				else if (param.equals("burstEnter")) burstEnter = percent(value, param);
+				else if (param.equals("burstExit")) burstExit = percent(value, param);
+				else if (param.equals("burstLoss")) burstLoss = percent(value, param);
+				else if (param.equals("delay")) delay = millis(value);
+				else if (param.equals("jitter")) jitter = millis(value);
+				else if (param.equals("reorder")) reorder = percent(value, param);
+				else if (param.equals("reorderDelay")) reorderDelay = millis(value);
+				else if (param.equals("duplicate")) duplicate = percent(value, param);
+				else if (param.equals("rate")) rate = Double.parseDouble(value) * 1024;
+				else if (param.equals("rateBurst")) rateBurst = Double.parseDouble(value) * 1024;
+				else if (param.equals("rateQueue")) rateQueue = millis(value);
+				else if (param.equals("jitterDistribution")) {
+					jitterDistribution = canonical(value, new String[] {"uniform", "normal", "exponential"}, key + "." + param);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(key + "." + param + ": not a number: " + value);
+			}
+			if (param.equals("burstEnter")) burstKey = key;
+			if (param.equals("rate")) rateKey = key;
+		}
+
+		private long millis(String value) {
+			double ms = Double.parseDouble(value);
+			if (ms < 0) throw new IllegalArgumentException("Times can't be negative: " + value);
+			return (long) (ms * 1000000);
+		}
+
+		private void share(Map<String, Object> shared, String direction) {
+			if (burstEnter > 0) {
+				String key = direction + "|burst|" + burstKey;
+				burst = (BurstState) shared.get(key);
+				if (burst == null) {
+					burst = new BurstState();
+					shared.put(key, burst);
+				}
+			}
+			if (rate > 0) {
+				String key = direction + "|rate|" + rateKey;
+				bucket = (TokenBucket) shared.get(key);
+				if (bucket == null) {
+					bucket = new TokenBucket(rate, Math.max(rateBurst, TransferOptions.MAX_BLOCK_SIZE + 4));
+					shared.put(key, bucket);
+				}
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/***
+		 * Decides what happens to a packet of length bytes read at now (System.nanoTime()).
+		 * @param sendAt filled with the time to send each copy at, room for 2
+		 * @return how many copies to send, 0 if the packet is lost
+		 */
+		public int apply(int length, long now, long[] sendAt) {
+			packets++;
+			if (loss > 0 && random.nextDouble() < loss) {
+				lost++;
+				return 0;
+			}
+			if (burst != null) {
+				// Move between the states first, so a burst starts with the packet that entered it
+				if (burst.bad) {
+					if (random.nextDouble() < burstExit) burst.bad = false;
+				}
+				else if (random.nextDouble() < burstEnter) {
+					burst.bad = true;
+				}
+				if (burst.bad && random.nextDouble() < burstLoss) {
+					burstLost++;
+					return 0;
+				}
+			}
+			long at = now;
+			if (bucket != null) {
+				long wait = bucket.take(length, now, rateQueue);
+				if (wait < 0) {
+					rateDropped++;
+					return 0;
+				}
+				at += wait;
+			}
+			if (delay > 0 || jitter > 0) {
+				at += Math.max(0, delay + jitter());
+				delayed++;
+			}
+			if (reorder > 0 && random.nextDouble() < reorder) {
+				at += reorderDelay;
+				reordered++;
+			}
+			sendAt[0] = at;
+			if (duplicate > 0 && random.nextDouble() < duplicate) {
+				duplicated++;
+				sendAt[1] = at;
+				return 2;
+			}
+			return 1;
+		}
+
+		private long jitter() {
+			if (jitter == 0) return 0;
+			if (jitterDistribution.equals("normal")) return (long) (random.nextGaussian() * jitter);
+			if (jitterDistribution.equals("exponential")) return (long) (-Math.log(1 - random.nextDouble()) * jitter);
+			return (long) ((random.nextDouble() * 2 - 1) * jitter);
+		}
+
+		public String toString() {
+			return String.format("%s: %d packets, %d lost, %d lost in bursts, %d over the rate cap, %d delayed, %d reordered, %d duplicated",
+					name, packets, lost, burstLost, rateDropped, delayed, reordered, duplicated);
+		}
+	}
+}
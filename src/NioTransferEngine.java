@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Event driven alternative to starting a ServerThread per request.
+ * A small number of selector threads each drive many NioTransferSessions,
+ * every session owning a non-blocking DatagramChannel as its TID.
+ * Nothing that waits for the disk runs on them: uploads are written and published by the
+ * FileBlockSink writers, which hand the outcome back to the session's selector thread.
+ */
+public class NioTransferEngine {
+	// How often the selector threads check sessions for expired timeouts, well under the lowest RTO
+	private static final long TIMEOUT_SWEEP_MS = 20;
+
+	private final Worker[] workers;
+	private final int maxSessions;
+	private final AtomicInteger activeSessions = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong sendsDropped = new AtomicLong();
+	private int nextWorker = 0;
+
+	public NioTransferEngine(int selectorThreads, int maxSessions) throws IOException {
+		this.maxSessions = maxSessions;
+		workers = new Worker[Math.max(1, selectorThreads)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker("NIO Selector #" + (i + 1));
+		}
+	}
+
+	public void start() {
+		for (Worker w : workers) {
+			w.start();
+		}
+	}
+
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+	public long getRejected() {
+		return rejected.get();
+	}
+	public long getSendsDropped() {
+		return sendsDropped.get();
+	}
+
+	//hands a new request to one of the selector threads, round robin
+	//returns false without starting a session if the engine is already at its session limit
+	public boolean submit(InetAddress clientAddress, int clientPort, byte[] request) throws IOException {
+		if (activeSessions.get() >= maxSessions) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(new InetSocketAddress(0));
+
+		Worker w = workers[nextWorker];
+		NioTransferSession session = new NioTransferSession(this, w, channel, new InetSocketAddress(clientAddress, clientPort), request);
+		nextWorker = (nextWorker + 1) % workers.length;
+		activeSessions.incrementAndGet();
+		w.pending.add(session);
+		w.selector.wakeup();
+		return true;
+	}
+
+	void sessionFinished(NioTransferSession session) {
+		activeSessions.decrementAndGet();
+	}
+
+	//a send the socket buffer had no room for, the packet is lost as it would be on the network
+	void sendDropped() {
+		sendsDropped.incrementAndGet();
+	}
+
+	public void shutdown() {
+		for (Worker w : workers) {
+			w.running = false;
+			w.selector.wakeup();
+		}
+		for (Worker w : workers) {
+			try {
+				w.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	//runs its sessions, and as an Executor, tasks other threads hand back to them
+	private class Worker extends Thread implements Executor {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<NioTransferSession> pending = new ConcurrentLinkedQueue<NioTransferSession>();
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		// Sessions on one selector are handled one at a time, so they can share the receive buffer.
+		private final ByteBuffer receiveBuffer = ByteBuffer.allocate(NioTransferSession.MAX_PACKET_SIZE);
+		private volatile boolean running = true;
+
+		Worker(String name) throws IOException {
+			super(name);
+			selector = Selector.open();
+		}
+
+		public void run() {
+			long lastSweep = System.currentTimeMillis();
+			while (running) {
+				try {
+					selector.select(TIMEOUT_SWEEP_MS);
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				registerPending();
+				Runnable task;
+				while ((task = tasks.poll()) != null) task.run();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					NioTransferSession session = (NioTransferSession) key.attachment();
+					DatagramChannel channel = (DatagramChannel) key.channel();
+					try {
+						// Drain everything queued on this TID before moving on.
+						while (!session.isFinished()) {
+							receiveBuffer.clear();
+							SocketAddress from = channel.receive(receiveBuffer);
+							if (from == null) break;
+							receiveBuffer.flip();
+							session.onReceive(receiveBuffer, (InetSocketAddress) from);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						session.finish(false);
+					}
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= TIMEOUT_SWEEP_MS) {
+					lastSweep = now;
+					for (SelectionKey key : selector.keys()) {
+						NioTransferSession session = (NioTransferSession) key.attachment();
+						try {
+							session.checkTimeout(now);
+						} catch (IOException e) {
+							e.printStackTrace();
+							session.finish(false);
+						}
+					}
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				((NioTransferSession) key.attachment()).finish(false);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		private void registerPending() {
+			NioTransferSession session;
+			while ((session = pending.poll()) != null) {
+				try {
+					session.getChannel().register(selector, SelectionKey.OP_READ, session);
+					session.start();
+				} catch (IOException e) {
+					e.printStackTrace();
+					session.finish(false);
+				}
+			}
+		}
+	}
+}
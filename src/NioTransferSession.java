@@ -0,0 +1,526 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/***
+ * One RRQ or WRQ driven by a NioTransferEngine selector thread.
+ * Follows the same steps as ServerThread.writeToClient/readFromClient, but
+ * each step runs when a packet arrives or a timeout expires instead of blocking.
+ * An upload is written by a FileBlockSink's writer threads, and published by one of them once the
+ * last block is in, so the selector thread never waits for the disk.
+ */
+public class NioTransferSession {
+	static final int MAX_PACKET_SIZE = TransferOptions.MAX_BLOCK_SIZE + 4;
+	private static final TFTPMetrics metrics = TFTPMetrics.get(TFTPMetrics.SERVER);
+	private static final PcapWriter capture = PcapWriter.get();
+
+	private final NioTransferEngine engine;
+	// The selector thread driving this session, where work done elsewhere is handed back
+	private final Executor selectorThread;
+	private final DatagramChannel channel;
+	private final InetSocketAddress client;
+	private final byte[] request;
+
+	private boolean readRequest;
+	private String filename;
+	private PartFile part;			// WRQ only, the upload until it is published under its name
+	private FileChannel file;		// WRQ target, the temporary file of part
+	private FileBlockSink sink;		// WRQ, writes the blocks to file
+	private FileBlockSource source;	// RRQ source
+	private long position = 0;
+
+	private int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+	private int windowSize = 1;
+	private OackPacket oack;
+	private boolean awaitingOackAck = false;
+
+	// Last ACK or OACK sent, kept for retransmission on timeout. Sized once the block size is known.
+	private ByteBuffer sendBuffer;
+	// Reads each packet where the engine received it, without copying it out first
+	private final PacketView received = new PacketView();
+	// RRQ only, DATA blocks sent but not acknowledged yet, each in its own buffer so the window can be resent.
+	// They are direct buffers, so the file is copied into them once and the channel sends them without another copy.
+	private SendWindow<ByteBuffer> window;
+	private final ArrayDeque<ByteBuffer> freeBlocks = new ArrayDeque<ByteBuffer>();
+	private boolean lastBlockRead = false;
+	private boolean windowRestarted = false;
+	// WRQ only, next block expected and how many arrived since the last ACK
+	private int currentBlockNumber;
+	private int blocksSinceAck;
+	private boolean reAcked = false;
+	// WRQ only, set from the last block until a writer thread has published the upload
+	private boolean publishing = false;
+	private long deadline;
+	// When the wait for the client started, and the packets resent since, for giving up on it
+	private long waitStart;
+	private int resends;
+	// Retransmission timeout for this transfer, adjusted as round trip times are measured
+	// unless the client asked for a fixed one with the timeout option
+	private RttEstimator rtt = new RttEstimator();
+	// WRQ only, upload size from the tsize option (-1 if unknown) and how much of it has been written
+	private long transferSize = -1;
+	private long bytesReceived = 0;
+	private boolean finished = false;
+	private final long startTime = System.nanoTime();
+
+	NioTransferSession(NioTransferEngine engine, Executor selectorThread, DatagramChannel channel, InetSocketAddress client, byte[] request) {
+		this.engine = engine;
+		this.selectorThread = selectorThread;
+		this.channel = channel;
+		this.client = client;
+		this.request = request;
+		metrics.transferStarted();
+	}
+
+	DatagramChannel getChannel() {
+		return channel;
+	}
+
+	boolean isFinished() {
+		return finished;
+	}
+
+	//called on the selector thread once the channel is registered
+	void start() throws IOException {
+		if (!RequestPacket.isValid(request)) {
+			System.err.println("Request was invalid.");
+			sendError((byte) 4, "Request was invalid.", client);
+			finish(false);
+			return;
+		}
+		RequestPacket rp = new RequestPacket(request);
+		filename = rp.getFilename();
+		byte[] opcode = {request[0], request[1]};
+		readRequest = Arrays.equals(opcode, RequestPacket.readOpcode);
+
+		Map<String, String> accepted = new LinkedHashMap<String, String>();
+		TransferOptions options = TransferOptions.negotiate(rp.getOptions(), accepted);
+		blockSize = options.getBlockSize();
+		windowSize = options.getWindowSize();
+		transferSize = options.getTransferSize();
+		rtt = options.newRttEstimator();
+		if (readRequest && accepted.containsKey(TransferOptions.TSIZE)) {
+			// For a RRQ the client sends tsize 0 and gets the file's length back
+			accepted.put(TransferOptions.TSIZE, Long.toString(Paths.get("ServerFiles", filename).toFile().length()));
+		}
+		int sendSize = 4;
+		if (!accepted.isEmpty()) {
+			oack = new OackPacket(accepted);
+			sendSize = Math.max(sendSize, oack.encode().length);
+		}
+		sendBuffer = ByteBuffer.allocate(sendSize);
+		if (windowSize > 1) {
+			// Leave room in the socket buffer for a whole window of blocks arriving at once,
+			// twice over since the kernel counts its own overhead per datagram against it
+			channel.socket().setReceiveBufferSize(Math.max(64 * 1024, 2 * windowSize * (blockSize + 4)));
+		}
+
+		if (readRequest) startWriteToClient();
+		else startReadFromClient();
+	}
+
+	private void startWriteToClient() throws IOException {
+		System.out.println("Writing to client: " + filename);
+		Path path = Paths.get("ServerFiles", filename);
+		try {
+			source = new FileBlockSource(FileChannel.open(path, StandardOpenOption.READ), BlockCache.getShared(), path.toFile());
+		} catch (AccessDeniedException e) {
+			String errorString = "Server could not access " + '"' + filename + '"' + ".";
+			System.err.println(errorString);
+			sendError((byte) 2, errorString, client);
+			finish(false);
+			return;
+		} catch (NoSuchFileException e) {
+			String errorString = '"' + filename + '"' + " was not found on the server.";
+			System.err.println(errorString);
+			sendError((byte) 1, errorString, client);
+			finish(false);
+			return;
+		}
+		window = new SendWindow<ByteBuffer>(windowSize);
+		if (oack != null) {
+			// The client has to ACK the OACK with block 0 before the first DATA
+			awaitingOackAck = true;
+			sendOack();
+		}
+		else {
+			fillWindow();
+		}
+	}
+
+	private void startReadFromClient() throws IOException {
+		System.out.println("Reading from client: " + filename);
+		Path path = Paths.get("ServerFiles", filename);
+		// With the size known up front, refuse an upload the disk can't hold now instead of part way through
+		if (transferSize > path.toAbsolutePath().getParent().toFile().getUsableSpace()) {
+			String errorString = "Server disk full, not enough space for " + '"' + filename + '"' + ".";
+			System.err.println(errorString);
+			sendError((byte) 3, errorString, client);
+			finish(false);
+			return;
+		}
+		try {
+			part = new PartFile(path);
+			file = part.getChannel();
+			// With a capacity of 0 the sink would write on this thread, so it always gets some
+			sink = new FileBlockSink(file, Math.max(1, TFTPConfig.getWriteBehindBlocks()), TFTPConfig.getDurability());
+		} catch (FileAlreadyExistsException e) {
+			String errorString = filename + " already exists on Server.";
+			System.err.println(errorString);
+			sendError((byte) 6, errorString, client);
+			finish(false);
+			return;
+		} catch (AccessDeniedException e) {
+			System.err.println("Access to ServerFiles folder was denied");
+			sendError((byte) 2, "Server could not write " + '"' + filename + '"' + ".", client);
+			finish(false);
+			return;
+		}
+		// The OACK takes the place of ACK 0 when options were accepted
+		if (oack != null) sendOack();
+		else sendAck(0);
+		currentBlockNumber = 1;
+	}
+
+	void onReceive(ByteBuffer packet, InetSocketAddress from) throws IOException {
+		if (finished) return;
+		metrics.packetReceived(packet);
+		if (capture != null) capture.capture(packet, from, (InetSocketAddress) channel.getLocalAddress());
+		TFTPInfoPrinter.printReceived(packet, from);
+		if (!from.equals(client)) {
+			System.err.println("Packet from unknown address or port, discarding.");
+			sendError((byte) 5, "Packet from unknown address or port, discarding.", from);
+			return;
+		}
+		// The client is sending the last block again while it waits, the ACK goes out once the upload is published
+		if (publishing) return;
+		// Like a blocking receive, anything from the client restarts the timeout
+		rtt.endSample();
+		restartWait();
+		received.wrap(packet);
+		if (received.length() < 4) {
+			sendError((byte) 4, "Packet was malformed.", client);
+			finish(false);
+			return;
+		}
+		if (received.opcode() == PacketView.ERROR) {
+			if (received.isValid(blockSize)) System.err.println(received.errorMessage());
+			finish(false);
+			return;
+		}
+		if (readRequest) onAck(received);
+		else onData(received);
+	}
+
+	private void onAck(PacketView packet) throws IOException {
+		if (packet.opcode() != PacketView.ACK) {
+			sendError((byte) 4, "Was expecting a ACK packet.", client);
+			finish(false);
+			return;
+		}
+		if (!packet.isValid(blockSize)) {
+			sendError((byte) 4, "ACK packet was malformed.", client);
+			finish(false);
+			return;
+		}
+		int blockNum = packet.blockNumber();
+		if (awaitingOackAck) {
+			if (blockNum != 0) {
+				sendError((byte) 4, "Was expecting ACK 0 for the OACK.", client);
+				finish(false);
+				return;
+			}
+			awaitingOackAck = false;
+			fillWindow();
+			return;
+		}
+		// Blocks that were acknowledged go back to freeBlocks to hold the next ones
+		int acked = window.acknowledge(blockNum, freeBlocks);
+		if (acked == -1) {
+			sendError((byte) 4, "ACK packet block number not in sequence or duplicate.", client);
+			finish(false);
+			return;
+		}
+		if (acked == 0) {
+			// Duplicate ACK, ignore it rather than resending (Sorcerer's Apprentice). With a window though, the
+			// client repeats its last ACK when part of a window went missing, so restart the window once for it.
+			metrics.duplicateAck();
+			if (windowSize > 1 && !windowRestarted && !window.isEmpty() && window.isLastAcknowledged(blockNum)) {
+				resendWindow();
+				windowRestarted = true;
+			}
+			return;
+		}
+		windowRestarted = false;
+		if (lastBlockRead && window.isEmpty()) {
+			System.out.println("Transfer complete");
+			finish(true);
+			return;
+		}
+		// The client is missing part of the window, restart it from the first block it didn't get
+		resendWindow();
+		fillWindow();
+	}
+
+	private void onData(PacketView packet) throws IOException {
+		if (packet.opcode() != PacketView.DATA) {
+			sendError((byte) 4, "Was expecting DATA packet.", client);
+			finish(false);
+			return;
+		}
+		if (!packet.isValid(blockSize)) {
+			sendError((byte) 4, "DATA packet was malformed.", client);
+			finish(false);
+			return;
+		}
+		int blockNum = packet.blockNumber();
+		if (blockNum != (currentBlockNumber & 0xFFFF)) {
+			if (DataPacket.isEarlierBlock(blockNum, currentBlockNumber) || windowSize > 1) {
+				// Duplicate DATA means our ACK was lost, a later block means a gap in the window. Either way ACK the
+				// last block received in order. With a window that is only done once until blocks arrive in order again.
+				if (DataPacket.isEarlierBlock(blockNum, currentBlockNumber)) metrics.duplicateData();
+				if (windowSize == 1 || !reAcked) {
+					sendAck(currentBlockNumber - 1);
+					metrics.retransmitted(1);
+					rtt.retransmitted();
+					reAcked = true;
+				}
+				blocksSinceAck = 0;
+				return;
+			}
+			sendError((byte) 4, "DATA packet block number not in sequence or duplicate.", client);
+			finish(false);
+			return;
+		}
+
+		// The block is copied out of the receive buffer and queued for a writer thread
+		int dataLength = packet.payloadLength();
+		try {
+			if (!sink.offer(packet.payload())) {
+				// Every buffer is still waiting for the disk. Rather than wait for it here the block is taken as lost,
+				// the client sends it again like any lost block and the writers have caught up by then
+				return;
+			}
+			bytesReceived += dataLength;
+		} catch (IOException e) {
+			sendWriteError(e);
+			return;
+		}
+
+		currentBlockNumber++;
+		blocksSinceAck++;
+		reAcked = false;
+		// check if block is smaller than the block size which signifies end of file
+		if (dataLength < blockSize) {
+			publish(blockNum);
+			return;
+		}
+		// Only the last block of each window is acknowledged
+		if (blocksSinceAck >= windowSize) {
+			sendAck(blockNum);
+			blocksSinceAck = 0;
+		}
+	}
+
+	//once the client has the final ACK the file has to be there, so it is published first. That waits for the disk,
+	//so a writer thread does it once the blocks are written and hands the outcome back to the selector thread
+	private void publish(final int lastBlockNum) {
+		publishing = true;
+		sink.whenWritten(new Runnable() {
+			public void run() {
+				IOException failure = null;
+				try {
+					// Reports a block that failed to write
+					sink.flush();
+					part.publish(sink.getDurability());
+				} catch (IOException e) {
+					failure = e;
+				}
+				final IOException result = failure;
+				selectorThread.execute(new Runnable() {
+					public void run() {
+						try {
+							published(lastBlockNum, result);
+						} catch (IOException e) {
+							e.printStackTrace();
+							finish(false);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	//on the selector thread again, sends the final ACK or tells the client why the upload failed
+	private void published(int lastBlockNum, IOException failure) throws IOException {
+		publishing = false;
+		if (finished) return;
+		if (failure instanceof FileAlreadyExistsException) {
+			// Another upload of the same name finished first
+			sendError((byte) 6, filename + " already exists on Server.", client);
+			finish(false);
+			return;
+		}
+		if (failure != null) {
+			System.err.println("Server could not publish " + filename + ": " + failure.getMessage());
+			sendWriteError(failure);
+			return;
+		}
+		sendAck(lastBlockNum);
+		System.out.println("Transfer complete");
+		finish(true);
+	}
+
+	//a block failed to write, or the upload to publish
+	private void sendWriteError(IOException e) throws IOException {
+		String errorString;
+		byte code;
+		if (e instanceof AccessDeniedException || String.valueOf(e.getMessage()).contains("(Access is denied)")) {
+			errorString = "Server could not write " + '"' + filename + '"' + ".";
+			code = 2;
+		} else {
+			errorString = "Server disk full, unable to write.";
+			code = 3;
+		}
+		System.err.println(errorString);
+		sendError(code, errorString, client);
+		finish(false);
+	}
+
+	//resends the last packet if its timeout expired, or gives up after too many timeouts
+	void checkTimeout(long now) throws IOException {
+		// Nothing is sent while publishing, the client waits for the final ACK
+		if (finished || publishing || now < deadline) return;
+		rtt.backoff();
+		metrics.timedOut();
+		// Given up on only after enough resends and enough time, the same as ServerThread
+		if (rtt.shouldGiveUp(resends, waitStart)) {
+			System.out.println("Transfer failed, timed out too many times.");
+			finish(false);
+			return;
+		}
+		resends++;
+		System.out.println("Timed out, retrying transfer.");
+		if (window != null && !window.isEmpty()) {
+			for (ByteBuffer block : window) {
+				send(block, client);
+				metrics.retransmitted(1);
+			}
+		}
+		else {
+			sendBuffer.rewind();
+			send(sendBuffer, client);
+			metrics.retransmitted(1);
+		}
+		deadline = now + rtt.getTimeout();
+	}
+
+	//reads and sends new blocks until the window is full or the file has been read
+	private void fillWindow() throws IOException {
+		if (!lastBlockRead && !window.isFull()) rtt.startSample();
+		while (!lastBlockRead && !window.isFull()) {
+			ByteBuffer block = freeBlocks.poll();
+			if (block == null) block = ByteBuffer.allocateDirect(blockSize + 4);
+			block.clear();
+			PacketEncoder.putDataHeader(block, window.nextBlockNumber());
+			int bytesRead = source.read(block, position);
+			position += bytesRead;
+			if (bytesRead < blockSize) lastBlockRead = true;
+			block.flip();
+			window.add(block);
+			send(block, client);
+		}
+		restartWait();
+	}
+
+	private void resendWindow() throws IOException {
+		for (ByteBuffer block : window) {
+			send(block, client);
+			metrics.retransmitted(1);
+		}
+		rtt.retransmitted();
+		restartWait();
+	}
+
+	//something was sent or received, the wait for the client starts over
+	private void restartWait() {
+		resends = 0;
+		waitStart = System.currentTimeMillis();
+		deadline = waitStart + rtt.getTimeout();
+	}
+
+	private void sendOack() throws IOException {
+		sendBuffer.clear();
+		sendBuffer.put(oack.encode());
+		sendBuffer.flip();
+		sendTracked();
+	}
+
+	private void sendAck(int blockNum) throws IOException {
+		sendBuffer.clear();
+		PacketEncoder.putAck(sendBuffer, blockNum);
+		sendBuffer.flip();
+		sendTracked();
+	}
+
+	//sends the packet in sendBuffer and arms the retransmission timeout for it
+	private void sendTracked() throws IOException {
+		send(sendBuffer, client);
+		rtt.startSample();
+		restartWait();
+	}
+
+	private void sendError(byte code, String message, InetSocketAddress to) throws IOException {
+		ErrorPacket ep = new ErrorPacket(code, message);
+		send(ByteBuffer.wrap(ep.encode()), to);
+	}
+
+	private void send(ByteBuffer packet, InetSocketAddress to) throws IOException {
+		// A full socket buffer drops the packet, as the network would, and it is resent like one the network lost
+		boolean sent = channel.send(packet, to) != 0;
+		if (!sent) engine.sendDropped();
+		packet.rewind();
+		metrics.packetSent(packet);
+		if (sent && capture != null) capture.capture(packet, (InetSocketAddress) channel.getLocalAddress(), to);
+		TFTPInfoPrinter.printSent(packet, to);
+	}
+
+	void finish(boolean success) {
+		if (finished) return;
+		finished = true;
+		metrics.transferFinished(success, readRequest ? position : bytesReceived, System.nanoTime() - startTime);
+		// Every request that got as far as a transfer, read or write, as ServerThread does
+		if (filename != null) System.out.println("Retransmission timeout for " + filename + ": " + rtt);
+		try {
+			// An upload that wasn't published leaves nothing behind. The sink isn't waited for,
+			// its writer gives up on any blocks left once the file is closed
+			if (part != null) part.discard();
+			if (file != null) file.close();
+			if (source != null) source.close();
+			// However the upload ended, whatever the cache held for this name is out of date now
+			BlockCache cache = BlockCache.getShared();
+			if (!readRequest && file != null && cache != null) cache.invalidate(Paths.get("ServerFiles", filename).toFile());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		engine.sessionFinished(this);
+	}
+}
@@ -0,0 +1,45 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * Option acknowledgement (RFC 2347), sent by the server in place of the first
+ * ACK/DATA to confirm which of the requested options it accepted.
+ */
+public class OackPacket {
+	public static final byte[] opcode = {0, 6};
+	private byte[] data;
+	private Map<String, String> options;
+
+	public Map<String, String> getOptions() {
+		return options;
+	}
+
+	// true if the first length bytes of data start with the OACK opcode, checked in place without copying
+	public static boolean hasOpcode(byte[] data, int length) {
+		return length >= 2 && data[0] == opcode[0] && data[1] == opcode[1];
+	}
+
+	public static boolean isValid(byte[] data) {
+		if (data.length < 2) return false;
+		if (data[0] != opcode[0] || data[1] != opcode[1]) return false;
+		return RequestPacket.parseOptions(data, 2) != null;
+	}
+
+	public OackPacket(byte[] data) {
+		this.data = data;
+		options = RequestPacket.parseOptions(data, 2);
+	}
+
+	public OackPacket(Map<String, String> options) {
+		this.options = new LinkedHashMap<String, String>(options);
+		byte[] optionBytes = RequestPacket.encodeOptions(options);
+		data = new byte[2 + optionBytes.length];
+		data[0] = opcode[0];
+		data[1] = opcode[1];
+		System.arraycopy(optionBytes, 0, data, 2, optionBytes.length);
+	}
+
+	public byte[] encode() {
+		return data;
+	}
+}
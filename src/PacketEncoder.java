@@ -0,0 +1,76 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/***
+ * Writes TFTP packets straight into a buffer the caller supplies, the counterpart of PacketView.
+ * Each method puts the packet at the buffer's position and moves the position past it, the way
+ * ByteBuffer.put does, so the caller flips the buffer before sending it. Strings are written one
+ * byte per char. A packet that doesn't fit throws BufferOverflowException.
+ */
+public class PacketEncoder {
+
+	//opcode and block number of a DATA packet, for a block that will be put right after it
+	public static void putDataHeader(ByteBuffer dest, int blockNum) {
+		dest.put(DataPacket.opcode);
+		dest.putShort((short) blockNum);
+	}
+
+	//a whole DATA packet, taking the block from block's position up to its limit
+	public static void putData(ByteBuffer dest, int blockNum, ByteBuffer block) {
+		putDataHeader(dest, blockNum);
+		dest.put(block);
+	}
+
+	public static void putAck(ByteBuffer dest, int blockNum) {
+		dest.put(AckPacket.opcode);
+		dest.putShort((short) blockNum);
+	}
+
+	public static void putError(ByteBuffer dest, int code, CharSequence message) {
+		dest.put(ErrorPacket.opcode);
+		dest.putShort((short) code);
+		putString(dest, message);
+	}
+
+	//a RRQ or WRQ, reqType being RequestPacket.readOpcode or writeOpcode, options may be empty
+	public static void putRequest(ByteBuffer dest, byte[] reqType, CharSequence filename, CharSequence mode, Map<String, String> options) {
+		dest.put(reqType);
+		putString(dest, filename);
+		putString(dest, mode);
+		putOptions(dest, options);
+	}
+
+	public static void putOack(ByteBuffer dest, Map<String, String> options) {
+		dest.put(OackPacket.opcode);
+		putOptions(dest, options);
+	}
+
+	private static void putOptions(ByteBuffer dest, Map<String, String> options) {
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			putString(dest, option.getKey());
+			putString(dest, option.getValue());
+		}
+	}
+
+	//the string followed by its terminating 0
+	private static void putString(ByteBuffer dest, CharSequence s) {
+		int n = s.length();
+		if (n + 1 > dest.remaining()) throw new BufferOverflowException();
+		if (dest.hasArray()) {
+			// Straight into the backing array, put(byte) checks the bounds again for every char
+			byte[] array = dest.array();
+			int offset = dest.arrayOffset() + dest.position();
+			for (int i = 0; i < n; i++) {
+				array[offset + i] = (byte) s.charAt(i);
+			}
+			array[offset + n] = 0;
+			dest.position(dest.position() + n + 1);
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			dest.put((byte) s.charAt(i));
+		}
+		dest.put((byte) 0);
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Sends packets at a time set in advance, on a thread of its own, so the IntermediateHost can
+ * delay or duplicate a packet without holding up every other one it relays. schedule copies the
+ * packet and returns straight away; the scheduler's thread sleeps until the earliest packet is due
+ * (a priority queue by due time, ties in the order they were scheduled) and sends it from the
+ * channel given.
+ *
+ * How late each packet goes out compared to when it was due is recorded, so the delays the host
+ * adds can be trusted: getLateness() has the spread in microseconds. A packet whose channel was
+ * closed while it waited (its session ended) is counted as lost instead.
+ */
+public class PacketScheduler {
+	private final TFTPMetrics metrics;
+	private volatile PcapWriter capture;
+	private final Thread thread;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	// Guarded by lock
+	private final PriorityQueue<Scheduled> queue = new PriorityQueue<Scheduled>();
+	private long sequence = 0;
+	private boolean running = true;
+
+	private final Histogram latenessMicros = new Histogram();
+	private volatile long sent = 0;
+	private volatile long lost = 0;
+	private volatile long sendsDropped = 0;
+
+	private static class Scheduled implements Comparable<Scheduled> {
+		final ByteBuffer packet;
+		final DatagramChannel channel;
+		final InetSocketAddress to;
+		final long due;
+		final long sequence;
+
+		Scheduled(ByteBuffer packet, DatagramChannel channel, InetSocketAddress to, long due, long sequence) {
+			this.packet = packet;
+			this.channel = channel;
+			this.to = to;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		public int compareTo(Scheduled other) {
+			if (due != other.due) return due - other.due < 0 ? -1 : 1;
+			return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+		}
+	}
+
+	//packets sent are counted in metrics, the thread is started straight away
+	public PacketScheduler(String name, TFTPMetrics metrics) {
+		this.metrics = metrics;
+		thread = new Thread(name) {
+			public void run() {
+				sendAll();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//sends a copy of the packet between the buffer's position and limit (left as they are) from channel to to, once System.nanoTime() reaches due
+	public void schedule(DatagramChannel channel, ByteBuffer packet, InetSocketAddress to, long due) {
+		ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+		copy.put(packet.duplicate()).flip();
+		lock.lock();
+		try {
+			Scheduled s = new Scheduled(copy, channel, to, due, sequence++);
+			queue.add(s);
+			// Only a new earliest packet changes how long the thread has to sleep
+			if (queue.peek() == s) changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//packets sent are captured to capture as well, null to stop
+	public void setCapture(PcapWriter capture) {
+		this.capture = capture;
+	}
+
+	//packets waiting to be sent
+	public int getWaiting() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getSent() {
+		return sent;
+	}
+	public long getLost() {
+		return lost;
+	}
+	//microseconds between each packet being due and being sent
+	public Histogram getLateness() {
+		return latenessMicros;
+	}
+
+	//stops the thread, packets still waiting are never sent
+	public void shutdown() {
+		lock.lock();
+		try {
+			running = false;
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void sendAll() {
+		while (true) {
+			Scheduled next;
+			lock.lock();
+			try {
+				while (true) {
+					if (!running) return;
+					next = queue.peek();
+					if (next == null) {
+						changed.awaitUninterruptibly();
+						continue;
+					}
+					long wait = next.due - System.nanoTime();
+					if (wait <= 0) break;
+					try {
+						changed.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				queue.poll();
+			} finally {
+				lock.unlock();
+			}
+			send(next);
+		}
+	}
+
+	private void send(Scheduled s) {
+		try {
+			// A full socket buffer drops the packet, as the network would
+			if (s.channel.send(s.packet, s.to) == 0) {
+				sendsDropped++;
+			}
+			else {
+				PcapWriter c = capture;
+				if (c != null) {
+					s.packet.rewind();
+					c.capture(s.packet, (InetSocketAddress) s.channel.getLocalAddress(), s.to);
+				}
+			}
+		} catch (ClosedChannelException e) {
+			lost++;
+			return;
+		} catch (IOException e) {
+			e.printStackTrace();
+			lost++;
+			return;
+		}
+		latenessMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - s.due));
+		sent++;
+		s.packet.rewind();
+		metrics.packetSent(s.packet);
+		TFTPInfoPrinter.printSent(s.packet, s.to);
+	}
+
+	public String toString() {
+		return String.format("Scheduled sends: %d sent, %d waiting, %d lost (session closed), %d dropped (socket buffer full); "
+				+ "late by mean %.1f us, p50 %d us, p99 %d us, max %d us",
+				sent, getWaiting(), lost, sendsDropped, latenessMicros.getMean(), latenessMicros.getPercentile(50),
+				latenessMicros.getPercentile(99), latenessMicros.getMax());
+	}
+}
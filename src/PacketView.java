@@ -0,0 +1,182 @@
+import java.nio.ByteBuffer;
+
+/***
+ * Flyweight reader for a TFTP packet held in a ByteBuffer, the zero copy counterpart of
+ * DataPacket, AckPacket, RequestPacket and ErrorPacket. Wrapping a packet only records where it
+ * is, every field is read from the buffer when asked for: the payload is a view of the buffer and
+ * the filename, mode and error message are CharSequences over its bytes, so nothing is copied
+ * and, once a view has been used with a buffer, nothing is allocated either.
+ *
+ * One view is meant to be kept per receive buffer and wrapped around each packet that arrives.
+ * The view is only valid until the buffer is reused. Not thread safe.
+ * PacketEncoder writes the same packets into a caller supplied buffer.
+ */
+public class PacketView {
+	public static final int RRQ = 1;
+	public static final int WRQ = 2;
+	public static final int DATA = 3;
+	public static final int ACK = 4;
+	public static final int ERROR = 5;
+	public static final int OACK = 6;
+
+	private ByteBuffer buffer;
+	private int start;		// absolute index of the opcode in buffer
+	private int length;
+	private int opcode;
+	// RRQ/WRQ: absolute indexes of the 0 ending the filename and the mode, -1 if missing
+	// ERROR: index of the 0 ending the message in nameEnd
+	private int nameEnd;
+	private int modeEnd;
+
+	private ByteBuffer payload;
+	private final Text filename = new Text();
+	private final Text mode = new Text();
+	private final Text message = new Text();
+
+	/***
+	 * Views the packet between the buffer's position and limit, without moving either.
+	 * @return this view, for chaining
+	 */
+	public PacketView wrap(ByteBuffer buffer) {
+		if (this.buffer != buffer) {
+			this.buffer = buffer;
+			// Made once per buffer so wrapping the next packet doesn't allocate
+			payload = buffer.duplicate();
+		}
+		start = buffer.position();
+		length = buffer.remaining();
+		opcode = length >= 2 ? (buffer.get(start) & 0xFF) << 8 | (buffer.get(start + 1) & 0xFF) : -1;
+		nameEnd = -1;
+		modeEnd = -1;
+		if (opcode == RRQ || opcode == WRQ) {
+			nameEnd = indexOfZero(start + 2);
+			if (nameEnd != -1) modeEnd = indexOfZero(nameEnd + 1);
+			filename.set(start + 2, nameEnd);
+			mode.set(nameEnd + 1, modeEnd);
+		}
+		else if (opcode == ERROR) {
+			nameEnd = length >= 4 ? indexOfZero(start + 4) : -1;
+			message.set(start + 4, nameEnd);
+		}
+		return this;
+	}
+
+	private int indexOfZero(int from) {
+		int end = start + length;
+		for (int i = from; i < end; i++) {
+			if (buffer.get(i) == 0) return i;
+		}
+		return -1;
+	}
+
+	//opcode of the packet (RRQ, WRQ, DATA, ACK, ERROR or OACK), -1 if it is too short to have one
+	public int opcode() {
+		return opcode;
+	}
+
+	//length of the whole packet in bytes
+	public int length() {
+		return length;
+	}
+
+	/***
+	 * Same checks as the isValid method of the matching packet class.
+	 * @param blockSize the negotiated block size, a DATA packet can't be bigger than one block.
+	 */
+	public boolean isValid(int blockSize) {
+		switch (opcode) {
+		case RRQ:
+		case WRQ:
+			// The options after the mode aren't looked at here, RequestPacket parses those
+			return nameEnd > start + 2 && modeEnd != -1;
+		case DATA:
+			return length >= 4 && length <= blockSize + 4;
+		case ACK:
+			return length == 4;
+		case ERROR:
+			// 8 is option negotiation refused (RFC 2347)
+			return length >= 4 && buffer.get(start + 2) == 0 && errorCode() >= 0 && errorCode() <= 8 && nameEnd != -1;
+		default:
+			return false;
+		}
+	}
+
+	//block number of a DATA or ACK packet
+	public int blockNumber() {
+		return (buffer.get(start + 2) & 0xFF) << 8 | (buffer.get(start + 3) & 0xFF);
+	}
+
+	/***
+	 * The block carried by a DATA packet, as a view sharing the wrapped buffer's content.
+	 * The same view object is returned each time, positioned over the current packet's block,
+	 * so it can be handed straight to a channel write.
+	 */
+	public ByteBuffer payload() {
+		payload.limit(start + length);
+		payload.position(start + 4);
+		return payload;
+	}
+
+	//number of bytes in a DATA packet's block
+	public int payloadLength() {
+		return length - 4;
+	}
+
+	//filename of a RRQ or WRQ, read from the buffer as it is used
+	public CharSequence filename() {
+		return filename;
+	}
+
+	//transfer mode of a RRQ or WRQ
+	public CharSequence mode() {
+		return mode;
+	}
+
+	//index in the buffer of the first option of a RRQ or WRQ (RFC 2347), the packet's end if there are none
+	public int optionsOffset() {
+		return modeEnd + 1;
+	}
+
+	//error code of an ERROR packet
+	public int errorCode() {
+		return buffer.get(start + 3);
+	}
+
+	//message of an ERROR packet
+	public CharSequence errorMessage() {
+		return message;
+	}
+
+	/***
+	 * Bytes of a 0 terminated string in the wrapped buffer, read one char per byte.
+	 * toString() is the only call that copies, for when a String is really needed.
+	 */
+	private class Text implements CharSequence {
+		private int from;
+		private int to;
+
+		void set(int from, int to) {
+			this.from = from;
+			this.to = Math.max(from, to);
+		}
+
+		public int length() {
+			return to - from;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= to - from) throw new IndexOutOfBoundsException(Integer.toString(index));
+			return (char) (buffer.get(from + index) & 0xFF);
+		}
+
+		public CharSequence subSequence(int begin, int end) {
+			return toString().substring(begin, end);
+		}
+
+		public String toString() {
+			byte[] bytes = new byte[to - from];
+			for (int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(from + i);
+			return new String(bytes);
+		}
+	}
+}
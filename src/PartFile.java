@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/***
+ * An upload being received into a temporary file next to the one it becomes, ".<name>.<random>.part",
+ * so a transfer that fails or times out never leaves a truncated file for a read request to serve.
+ *
+ * publish is called once the last block is in: the file is forced to disk unless the durability is
+ * NONE, then linked under its own name and the temporary name removed. Making the link fails if the
+ * name is taken, so of two uploads of the same name exactly one wins, and a reader sees either no
+ * file or all of it. discard deletes the temporary file of an upload that didn't make it. Being in
+ * the same folder, publishing never has to copy.
+ */
+public class PartFile {
+	// Set once a folder couldn't be opened to force it, so a platform that can't do that says so only once
+	private static final AtomicBoolean folderSyncUnsupported = new AtomicBoolean();
+
+	private final Path target;
+	private final Path temp;
+	private final FileChannel channel;
+	private boolean published = false;
+
+	//starts an upload that becomes target, throws FileAlreadyExistsException if target exists already
+	public PartFile(Path target) throws IOException {
+		this.target = target;
+		if (Files.exists(target)) throw new FileAlreadyExistsException(target.toString());
+		Path folder = target.toAbsolutePath().getParent();
+		// Made like any other new file rather than with Files.createTempFile, which would
+		// leave the published file readable by its owner only
+		Path name;
+		FileChannel opened = null;
+		do {
+			name = folder.resolve("." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+			try {
+				opened = FileChannel.open(name, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+			} catch (FileAlreadyExistsException e) {
+				// Another upload drew the same number, draw again
+			}
+		} while (opened == null);
+		temp = name;
+		channel = opened;
+	}
+
+	//where the blocks are written
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	public Path getTarget() {
+		return target;
+	}
+
+	//makes the upload visible as target, the channel is closed afterwards.
+	//Throws FileAlreadyExistsException if another upload of the same name was published first
+	public void publish(FileBlockSink.Durability durability) throws IOException {
+		if (durability != FileBlockSink.Durability.NONE) channel.force(true);
+		channel.close();
+		// Both uploads passed the check when they started. Making the link fails with FileAlreadyExistsException
+		// if the name is taken by then, checking and taking it in one step, so the first to finish keeps it
+		try {
+			Files.createLink(target, temp);
+		} catch (UnsupportedOperationException e) {
+			// No hard links on this file system. A rename could replace a file published in the meantime,
+			// so this only narrows that window
+			if (Files.exists(target)) throw new FileAlreadyExistsException(target.toString());
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		}
+		published = true;
+		try {
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			// The upload is there under its name all the same
+			System.err.println("Could not remove " + temp + ": " + e);
+		}
+		if (durability != FileBlockSink.Durability.NONE) syncFolder();
+	}
+
+	//forces the folder to disk too, or a crash could still lose the new name. Not every platform can open
+	//a folder (Windows can't), there the name is as durable as the file system makes it, which is reported
+	//once. A folder that was opened but couldn't be forced is reported every time, the upload is published
+	//but may not survive a crash
+	private void syncFolder() {
+		Path parent = target.toAbsolutePath().getParent();
+		FileChannel folder;
+		try {
+			folder = FileChannel.open(parent, StandardOpenOption.READ);
+		} catch (IOException e) {
+			if (folderSyncUnsupported.compareAndSet(false, true)) {
+				System.err.println("Could not open " + parent + " to force new files' names to disk, they may not survive a crash: " + e);
+			}
+			return;
+		}
+		try {
+			folder.force(true);
+		} catch (IOException e) {
+			System.err.println("Could not force " + parent + " to disk, " + target.getFileName() + " may not survive a crash: " + e);
+		} finally {
+			try {
+				folder.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	//throws the upload away unless it was published, however far it got
+	public void discard() {
+		if (published) return;
+		try {
+			channel.close();
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
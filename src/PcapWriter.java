@@ -0,0 +1,376 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Writes every datagram a process sends and receives to a pcap file, so a slow or failing
+ * transfer can be looked at in Wireshark instead of pieced together from the console. Started
+ * with -Dtftp.capture=<file>: the IntermediateHost captures what it relays, the Server and Client
+ * their sockets. Wireshark dissects the packets to and from port 69 as TFTP by itself; for the
+ * legs through the host, Decode As TFTP on port 23.
+ *
+ * The file has nanosecond timestamps (magic 0xa1b23c4d) and link type raw IP, so each packet gets
+ * an IPv4 or IPv6 and a UDP header made up from the addresses and ports at either end. A socket
+ * bound to every address doesn't say which one a packet used, it shows as the loopback address
+ * when the other end is on it, and as 0.0.0.0 (or ::) otherwise.
+ *
+ * capture copies the packet with its headers into a buffer under a lock and returns; a writer
+ * thread of its own swaps the full buffer for an empty one and writes it out, at least every
+ * 100 ms. When the buffer is full the packet is left out and counted rather than making the
+ * transfer wait. Once a file passes tftp.captureMB it is closed and the next one started, with
+ * -1, -2... before the extension, and only the last tftp.captureFiles are kept.
+ */
+public class PcapWriter {
+	public static final int MAGIC = 0xa1b23c4d;
+	// LINKTYPE_RAW, each packet starts with its IPv4 or IPv6 header
+	public static final int LINK_TYPE = 101;
+	private static final int SNAP_LENGTH = 65535;
+	private static final int RECORD_HEADER = 16;
+	private static final int UDP_HEADER = 8;
+	private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final byte[] LOOPBACK4 = {127, 0, 0, 1};
+	private static final byte[] LOOPBACK6 = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+	private static PcapWriter shared;
+	private static boolean configured = false;
+
+	private final File first;
+	private final long rotateBytes;
+	private final int keepFiles;
+	// nanos since the epoch, less System.nanoTime() when the writer was made
+	private final long wallClockBase = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+	private final Thread writer;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition ready = lock.newCondition();
+	private final Condition written = lock.newCondition();
+	// Guarded by lock: the buffer capture fills while the writer thread writes out the other
+	private ByteBuffer filling, writing;
+	private int ipId = 0;
+	private long captured = 0;
+	private long flushed = 0;
+	private boolean closing = false;
+
+	private volatile long dropped = 0;
+	private volatile long bytesWritten = 0;
+	private volatile int files = 0;
+	// Only the writer thread uses these
+	private FileChannel out;
+	private long fileBytes;
+
+	/***
+	 * The capture for this process, made the first time it is asked for if tftp.capture names a
+	 * file, otherwise null. Everything in the process that captures shares it, and it is flushed
+	 * and closed when the process exits.
+	 */
+	public static synchronized PcapWriter get() {
+		if (!configured) {
+			configured = true;
+			String file = TFTPConfig.getCaptureFile();
+			if (file != null) {
+				try {
+					shared = new PcapWriter(new File(file), TFTPConfig.getCaptureBytes(), TFTPConfig.getCaptureFiles(), TFTPConfig.getCaptureBufferSize());
+					final PcapWriter capture = shared;
+					Runtime.getRuntime().addShutdownHook(new Thread() {
+						public void run() {
+							capture.close();
+						}
+					});
+					System.out.println("Capturing packets to " + file);
+				} catch (IOException e) {
+					System.err.println("Could not capture packets to " + file + ": " + e);
+				}
+			}
+		}
+		return shared;
+	}
+
+	//rotateBytes 0 never rotates, keepFiles 0 keeps every file; two buffers of bufferBytes are used
+	public PcapWriter(File file, long rotateBytes, int keepFiles, int bufferBytes) throws IOException {
+		this.first = file;
+		this.rotateBytes = rotateBytes;
+		this.keepFiles = keepFiles;
+		// Room for at least one packet of the largest block size with its headers
+		int size = Math.max(bufferBytes, 2 * (RECORD_HEADER + 40 + UDP_HEADER + SNAP_LENGTH));
+		filling = ByteBuffer.allocate(size);
+		writing = ByteBuffer.allocate(size);
+		openNext();
+		writer = new Thread("Packet Capture") {
+			public void run() {
+				writeAll();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//captures the packet between the buffer's position and limit, which are left as they are
+	public void capture(ByteBuffer packet, InetSocketAddress from, InetSocketAddress to) {
+		record(null, packet, packet.position(), packet.remaining(), from, to);
+	}
+
+	public void capture(byte[] data, int offset, int length, InetSocketAddress from, InetSocketAddress to) {
+		record(data, null, offset, length, from, to);
+	}
+
+	private void record(byte[] array, ByteBuffer buffer, int offset, int length, InetSocketAddress from, InetSocketAddress to) {
+		byte[] source = address(from, to);
+		byte[] destination = address(to, from);
+		if (source.length != destination.length) {
+			source = mapped(source);
+			destination = mapped(destination);
+		}
+		boolean v6 = source.length == 16;
+		int ipLength = (v6 ? 40 : 20) + UDP_HEADER + length;
+		lock.lock();
+		try {
+			if (closing) return;
+			// Taken under the lock, so the packets of every thread are in time order in the file
+			long now = wallClockBase + System.nanoTime();
+			ByteBuffer b = filling;
+			if (b.remaining() < RECORD_HEADER + ipLength) {
+				dropped++;
+				ready.signal();
+				return;
+			}
+			b.putInt((int) (now / 1000000000L));
+			b.putInt((int) (now % 1000000000L));
+			b.putInt(ipLength);
+			b.putInt(ipLength);
+			int ip = b.position();
+			if (v6) {
+				b.putInt(6 << 28);
+				b.putShort((short) (UDP_HEADER + length));
+				b.put((byte) 17);
+				b.put((byte) 64);
+				b.put(source);
+				b.put(destination);
+			}
+			else {
+				b.put((byte) 0x45);
+				b.put((byte) 0);
+				b.putShort((short) ipLength);
+				b.putShort((short) ipId++);
+				// Don't fragment
+				b.putShort((short) 0x4000);
+				b.put((byte) 64);
+				b.put((byte) 17);
+				b.putShort((short) 0);
+				b.put(source);
+				b.put(destination);
+				b.putShort(ip + 10, (short) ~sum(b, ip, 20, 0));
+			}
+			int udp = b.position();
+			b.putShort((short) from.getPort());
+			b.putShort((short) to.getPort());
+			b.putShort((short) (UDP_HEADER + length));
+			b.putShort((short) 0);
+			if (array != null) {
+				b.put(array, offset, length);
+			}
+			else if (buffer.hasArray()) {
+				b.put(buffer.array(), buffer.arrayOffset() + offset, length);
+			}
+			else {
+				for (int i = 0; i < length; i++) b.put(buffer.get(offset + i));
+			}
+			if (v6) {
+				// IPv6 has no header checksum, so UDP's isn't optional: over the addresses, length and protocol too
+				int pseudo = sum(b, ip + 8, 32, (UDP_HEADER + length) + 17);
+				int checksum = ~sum(b, udp, UDP_HEADER + length, pseudo) & 0xFFFF;
+				b.putShort(udp + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+			}
+			captured++;
+			if (b.position() >= b.capacity() / 2) ready.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//the address of end to put in the IP header, other being the address at the other end
+	private static byte[] address(InetSocketAddress end, InetSocketAddress other) {
+		InetAddress a = end.getAddress();
+		if (!a.isAnyLocalAddress()) return a.getAddress();
+		InetAddress o = other.getAddress();
+		if (o.isAnyLocalAddress()) return a.getAddress();
+		if (o.isLoopbackAddress()) return o instanceof Inet4Address ? LOOPBACK4 : LOOPBACK6;
+		return new byte[o.getAddress().length];
+	}
+
+	//an IPv4 address as IPv4-mapped IPv6 (::ffff:a.b.c.d), for a packet between an IPv4 and an IPv6 address
+	private static byte[] mapped(byte[] address) {
+		if (address.length == 16) return address;
+		byte[] v6 = new byte[16];
+		v6[10] = (byte) 0xFF;
+		v6[11] = (byte) 0xFF;
+		System.arraycopy(address, 0, v6, 12, 4);
+		return v6;
+	}
+
+	//ones' complement sum of length bytes from start, folded to 16 bits
+	private static int sum(ByteBuffer b, int start, int length, int initial) {
+		long sum = initial;
+		int end = start + length;
+		for (int i = start; i + 1 < end; i += 2) sum += b.getShort(i) & 0xFFFF;
+		if ((length & 1) != 0) sum += (b.get(end - 1) & 0xFF) << 8;
+		while ((sum >> 16) != 0) sum = (sum & 0xFFFF) + (sum >> 16);
+		return (int) sum;
+	}
+
+	//the writer thread, writes out the filled buffer whenever it is half full and every 100 ms
+	private void writeAll() {
+		while (true) {
+			long upTo;
+			boolean last;
+			lock.lock();
+			try {
+				long deadline = System.nanoTime() + FLUSH_NANOS;
+				long wait;
+				while (!closing && filling.position() < filling.capacity() / 2 && (wait = deadline - System.nanoTime()) > 0) {
+					try {
+						ready.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				ByteBuffer full = filling;
+				filling = writing;
+				writing = full;
+				upTo = captured;
+				last = closing;
+			} finally {
+				lock.unlock();
+			}
+			writing.flip();
+			try {
+				if (writing.hasRemaining()) {
+					// The next file is only started once there is something to put in it
+					if (rotateBytes > 0 && fileBytes >= rotateBytes) openNext();
+					fileBytes += writing.remaining();
+					bytesWritten += writing.remaining();
+					while (writing.hasRemaining()) out.write(writing);
+				}
+				if (last) out.close();
+			} catch (IOException e) {
+				System.err.println("Packet capture stopped: " + e);
+				lock.lock();
+				try {
+					closing = true;
+					flushed = captured;
+					written.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+			writing.clear();
+			lock.lock();
+			try {
+				flushed = upTo;
+				written.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (last) return;
+		}
+	}
+
+	//closes the current file, if any, and starts the next with the pcap header, deleting the oldest past keepFiles
+	private void openNext() throws IOException {
+		if (out != null) out.close();
+		File next = fileNumber(files);
+		out = new FileOutputStream(next).getChannel();
+		files++;
+		if (keepFiles > 0 && files > keepFiles) fileNumber(files - 1 - keepFiles).delete();
+		ByteBuffer header = ByteBuffer.allocate(24);
+		header.putInt(MAGIC);
+		header.putShort((short) 2);
+		header.putShort((short) 4);
+		// Timestamps in UTC, accuracy not given
+		header.putInt(0);
+		header.putInt(0);
+		header.putInt(SNAP_LENGTH);
+		header.putInt(LINK_TYPE);
+		header.flip();
+		while (header.hasRemaining()) out.write(header);
+		fileBytes = 24;
+		bytesWritten += 24;
+	}
+
+	//the file given for 0, then name-1.pcap, name-2.pcap...
+	private File fileNumber(int n) {
+		if (n == 0) return first;
+		String name = first.getName();
+		int dot = name.lastIndexOf('.');
+		String numbered = dot > 0 ? name.substring(0, dot) + "-" + n + name.substring(dot) : name + "-" + n;
+		return new File(first.getParentFile(), numbered);
+	}
+
+	//waits up to timeoutMillis for every packet captured so far to be written to the file
+	public void flush(long timeoutMillis) {
+		lock.lock();
+		try {
+			long target = captured;
+			long wait = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			ready.signal();
+			while (flushed < target && wait > 0) {
+				try {
+					wait = written.awaitNanos(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//writes out what has been captured and closes the file, later packets aren't captured
+	public void close() {
+		lock.lock();
+		try {
+			if (closing) return;
+			closing = true;
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	public long getCaptured() {
+		lock.lock();
+		try {
+			return captured;
+		} finally {
+			lock.unlock();
+		}
+	}
+	//packets left out because the writer couldn't keep up
+	public long getDropped() {
+		return dropped;
+	}
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+	//files started so far, rotated ones included
+	public int getFiles() {
+		return files;
+	}
+
+	public String toString() {
+		return String.format("capturing to %s: %d packets, %d left out (writer behind), %.1f MB written in %d files",
+				first, getCaptured(), dropped, bytesWritten / (1024.0 * 1024), files);
+	}
+}
@@ -0,0 +1,194 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Map;
+
+/***
+ * One transfer going through the IntermediateHost: the client it came from, the channel the host
+ * relays it on (the TID both the client and the server see for the host), and the server's TID
+ * once the server has answered. Until then packets from the client go to the server's well known port.
+ *
+ * The session watches what it relays to tell when the transfer is over: an ERROR, or the ACK of
+ * the DATA shorter than a block (the block size is taken from the server's OACK, 512 without one).
+ * It also counts the packets and bytes relayed each way and the time each one spent in the host,
+ * from being read to being sent on, for the per session figures the host reports, and the DATA
+ * and ACKs the client and server sent again (a block or ACK no later than one already relayed
+ * the same way), which is how hard the transfer had to work around the errors caused.
+ *
+ * Only the host's selector thread changes a session, the counters are volatile so the "s" command
+ * can read them from the input thread.
+ */
+public class RelaySession {
+	private final InetSocketAddress client;
+	private final DatagramChannel channel;
+	private InetSocketAddress server;
+	private boolean serverAnswered = false;
+	private int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+	// Block number of the DATA shorter than a block, -1 until one has been relayed
+	private int lastBlock = -1;
+	private boolean finished = false;
+	// System.nanoTime() after which the session is closed, pushed back by every packet
+	private long expires;
+	// Highest DATA block and ACK relayed each way (by NetworkImpairment direction), -1 before the first
+	private final int[] highestData = {-1, -1};
+	private final int[] highestAck = {-1, -1};
+	// Uses of each rule of scenario by this transfer
+	private Scenario scenario;
+	private int[] ruleUses;
+
+	private final long started = System.nanoTime();
+	private volatile long lastPacket = started;
+	private volatile long packetsToServer = 0;
+	private volatile long packetsToClient = 0;
+	private volatile long bytes = 0;
+	private volatile long latencyNanos = 0;
+	private volatile long maxLatencyNanos = 0;
+	private volatile long dataResent = 0;
+	private volatile long acksResent = 0;
+
+	public RelaySession(InetSocketAddress client, DatagramChannel channel, InetSocketAddress server) {
+		this.client = client;
+		this.channel = channel;
+		this.server = server;
+	}
+
+	public InetSocketAddress getClient() {
+		return client;
+	}
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+	//the server's TID, or its well known port if it hasn't answered yet
+	public InetSocketAddress getServer() {
+		return server;
+	}
+	public boolean hasServerAnswered() {
+		return serverAnswered;
+	}
+	//the first packet back from the server gives its TID, which the rest of the transfer goes to
+	public void serverAnswered(InetSocketAddress tid) {
+		server = tid;
+		serverAnswered = true;
+	}
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+	public void setExpires(long nanos) {
+		expires = nanos;
+	}
+
+	//how many times this transfer used each rule of s, started afresh when the host's scenario changes
+	public int[] ruleUses(Scenario s) {
+		if (s != scenario) {
+			scenario = s;
+			ruleUses = new int[s.getRules().size()];
+		}
+		return ruleUses;
+	}
+
+	//looks at a packet going direction (NetworkImpairment.TO_SERVER or TO_CLIENT) between the buffer's
+	//position and limit before it is relayed, returns whether it ends the transfer
+	public boolean observe(ByteBuffer packet, int direction) {
+		int start = packet.position();
+		int length = packet.remaining();
+		if (length < 2) return finished;
+		int opcode = (packet.get(start) & 0xFF) << 8 | (packet.get(start + 1) & 0xFF);
+		int block = length >= 4 ? (packet.get(start + 2) & 0xFF) << 8 | (packet.get(start + 3) & 0xFF) : -1;
+		if (opcode == PacketView.OACK) {
+			// Once per transfer, so copying it to use OackPacket's parser costs nothing that matters
+			Map<String, String> options = RequestPacket.parseOptions(Arrays.copyOfRange(packet.array(),
+					packet.arrayOffset() + start, packet.arrayOffset() + start + length), 2);
+			if (options != null && options.containsKey(TransferOptions.BLKSIZE)) {
+				try {
+					blockSize = Integer.parseInt(options.get(TransferOptions.BLKSIZE));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		else if (opcode == PacketView.DATA) {
+			if (isResent(highestData, direction, block)) dataResent++;
+			if (length - 4 < blockSize) lastBlock = block;
+		}
+		else if (opcode == PacketView.ACK) {
+			if (isResent(highestAck, direction, block)) acksResent++;
+			if (lastBlock != -1 && block == lastBlock) finished = true;
+		}
+		else if (opcode == PacketView.ERROR) {
+			finished = true;
+		}
+		return finished;
+	}
+
+	//whether block is no later than the highest seen going direction (block numbers wrap at 65536), otherwise it becomes the highest
+	private static boolean isResent(int[] highest, int direction, int block) {
+		int h = highest[direction];
+		if (h != -1 && ((h - block) & 0xFFFF) < 0x8000) return true;
+		highest[direction] = block;
+		return false;
+	}
+
+	//counts a packet of length bytes relayed towards the server or the client, latency being the nanos it spent in the host
+	public void relayed(boolean toServer, int length, long latency, long now) {
+		if (toServer) packetsToServer++;
+		else packetsToClient++;
+		bytes += length;
+		latencyNanos += latency;
+		if (latency > maxLatencyNanos) maxLatencyNanos = latency;
+		lastPacket = now;
+	}
+
+	public long getPackets() {
+		return packetsToServer + packetsToClient;
+	}
+	public long getPacketsToServer() {
+		return packetsToServer;
+	}
+	public long getPacketsToClient() {
+		return packetsToClient;
+	}
+	//DATA packets sent again by the client or server
+	public long getDataResent() {
+		return dataResent;
+	}
+	//ACKs sent again, for a block already acknowledged
+	public long getAcksResent() {
+		return acksResent;
+	}
+	public long getBytes() {
+		return bytes;
+	}
+	//nanos from the session's first packet to its last
+	public long getNanos() {
+		return lastPacket - started;
+	}
+	public long getLastPacket() {
+		return lastPacket;
+	}
+	public double getPacketsPerSecond() {
+		long nanos = getNanos();
+		return nanos > 0 ? getPackets() * 1e9 / nanos : 0.0;
+	}
+	public double getBytesPerSecond() {
+		long nanos = getNanos();
+		return nanos > 0 ? bytes * 1e9 / nanos : 0.0;
+	}
+	public double getMeanLatencyMicros() {
+		long packets = getPackets();
+		return packets == 0 ? 0.0 : latencyNanos / 1e3 / packets;
+	}
+	public double getMaxLatencyMicros() {
+		return maxLatencyNanos / 1e3;
+	}
+
+	public String toString() {
+		return String.format("%s <-> %s%s: %d packets (%d to server, %d to client), %d bytes in %.1f ms, %.0f packets/s, %.1f KB/s, added latency mean %.1f us max %.1f us, resent %d DATA %d ACK",
+				client, server, serverAnswered ? "" : " (no answer)", getPackets(), packetsToServer, packetsToClient, bytes,
+				getNanos() / 1e6, getPacketsPerSecond(), getBytesPerSecond() / 1024, getMeanLatencyMicros(), getMaxLatencyMicros(),
+				dataResent, acksResent);
+	}
+}
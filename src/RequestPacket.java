@@ -1,4 +1,7 @@
+import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class RequestPacket {
 	public static final byte[] readOpcode = {0, 1};
@@ -7,6 +10,7 @@ public class RequestPacket {
 	byte[] reqType;
 	private String filename;
 	private String mode;
+	private Map<String, String> options;
 	
 	public String getFilename() {
 		return filename;
@@ -14,6 +18,10 @@ public class RequestPacket {
 	public String getMode() {
 		return mode;
 	}
+	// Option extensions (RFC 2347) following the mode, empty if there were none.
+	public Map<String, String> getOptions() {
+		return options;
+	}
 	
 	public static boolean isValid(byte[] data) {
 		byte[] opcode = {data[0], data[1]};
@@ -38,7 +46,44 @@ public class RequestPacket {
 			return false; // 0 byte was not found.
 		}
 		
-		return true;
+		// Anything after the mode must be complete option name/value pairs.
+		return parseOptions(data, i + 1) != null;
+	}
+	
+	/***
+	 * Reads 0 terminated option name/value pairs from offset to the end of data.
+	 * Names are not case sensitive, so they are lower cased.
+	 * @return the options in order, or null if a name or value was not terminated.
+	 */
+	static Map<String, String> parseOptions(byte[] data, int offset) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		int i = offset;
+		while (i < data.length) {
+			int nameStart = i;
+			while (i < data.length && data[i] != 0) i++;
+			if (i >= data.length || i == nameStart) return null;
+			String name = new String(data, nameStart, i - nameStart).toLowerCase();
+			
+			int valueStart = ++i;
+			while (i < data.length && data[i] != 0) i++;
+			if (i >= data.length) return null;
+			options.put(name, new String(data, valueStart, i - valueStart));
+			i++;
+		}
+		return options;
+	}
+	
+	static byte[] encodeOptions(Map<String, String> options) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			byte[] name = option.getKey().getBytes();
+			byte[] value = option.getValue().getBytes();
+			out.write(name, 0, name.length);
+			out.write(0);
+			out.write(value, 0, value.length);
+			out.write(0);
+		}
+		return out.toByteArray();
 	}
 	
 	public RequestPacket(byte[] data) {
@@ -57,16 +102,23 @@ public class RequestPacket {
 			buffer[i - j] = data[i];
 		}
 		mode = new String(Arrays.copyOf(buffer,  i - j));
-
+		
+		options = parseOptions(data, i + 1);
+		if (options == null) options = new LinkedHashMap<String, String>();
 	}
 	public RequestPacket(byte[] reqType, String filename, String mode) {
+		this(reqType, filename, mode, new LinkedHashMap<String, String>());
+	}
+	public RequestPacket(byte[] reqType, String filename, String mode, Map<String, String> options) {
 		this.filename = filename;
 		this.mode = mode;
+		this.options = options;
 		byte[] filenameBytes = filename.getBytes();
 		byte[] modeBytes = mode.getBytes();
+		byte[] optionBytes = encodeOptions(options);
 		
-		// opcode + 2 zero bytes + filename bytes + mode bytes
-		data = new byte[4 + filenameBytes.length + modeBytes.length];
+		// opcode + 2 zero bytes + filename bytes + mode bytes + options
+		data = new byte[4 + filenameBytes.length + modeBytes.length + optionBytes.length];
 		
 		if (Arrays.equals(reqType, readOpcode)){
 			data[0] = readOpcode[0];
@@ -84,7 +136,7 @@ public class RequestPacket {
 		// Now extra 3 offset because of opcode + 0 byte
 		System.arraycopy(modeBytes, 0, data, filenameBytes.length + 3, modeBytes.length);
 		data[3 + filenameBytes.length + modeBytes.length] = 0;
-		
+		System.arraycopy(optionBytes, 0, data, 4 + filenameBytes.length + modeBytes.length, optionBytes.length);
 	}
 	public byte[] encode() {
 		return data;
@@ -0,0 +1,118 @@
+/***
+ * Retransmission timeout for one transfer, worked out from measured round trip times
+ * the way TCP does it (Jacobson/Karels smoothing, RFC 6298).
+ * A packet that had to be resent is never timed, since the answer could belong to either
+ * send (Karn's rule), and every timeout doubles the RTO until a clean sample comes back.
+ * Since a measured RTO can be very short, a transfer gives up on its peer after a length of
+ * time (tftp.giveUpTimeout) rather than after a number of timeouts.
+ */
+public class RttEstimator {
+	// Resends a wait always gets before it may be given up on, however little time has passed
+	public static final int MIN_RESENDS = 5;
+
+	private final int minTimeout;
+	private final int maxTimeout;
+	private final long giveUpTimeout = TFTPConfig.getGiveUpTimeout();
+
+	private double srtt = -1;		// smoothed round trip time in ms, -1 until the first sample
+	private double rttvar;
+	private int rto;
+
+	private long sampleStart = -1;	// System.nanoTime() of the packet being timed, -1 if none
+	private int samples = 0;
+	private int timeouts = 0;
+	private int lowestRto;
+	private int highestRto;
+
+	public RttEstimator() {
+		this(TFTPConfig.getInitialTimeout(), TFTPConfig.getMinTimeout(), TFTPConfig.getMaxTimeout());
+	}
+
+	public RttEstimator(int initialTimeout, int minTimeout, int maxTimeout) {
+		this.minTimeout = Math.max(1, minTimeout);
+		this.maxTimeout = Math.max(this.minTimeout, maxTimeout);
+		rto = clamp(initialTimeout);
+		lowestRto = rto;
+		highestRto = rto;
+	}
+
+	//current retransmission timeout in ms, including any backoff
+	public int getTimeout() {
+		return rto;
+	}
+
+	//a packet the peer has to answer was just sent, time it unless another one is already being timed
+	public void startSample() {
+		if (sampleStart == -1) sampleStart = System.nanoTime();
+	}
+
+	//the packet being timed was resent, so its answer can't be timed (Karn's rule)
+	public void retransmitted() {
+		sampleStart = -1;
+	}
+
+	//an answer arrived, update the estimate if a packet was being timed
+	public void endSample() {
+		if (sampleStart == -1) return;
+		double r = (System.nanoTime() - sampleStart) / 1e6;
+		sampleStart = -1;
+		if (srtt < 0) {
+			srtt = r;
+			rttvar = r / 2;
+		}
+		else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+			srtt = 0.875 * srtt + 0.125 * r;
+		}
+		samples++;
+		// at least 1 ms for the variance, the clock granularity of setSoTimeout
+		setRto((int) Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+	}
+
+	//a timeout expired, double the RTO for the retransmission
+	public void backoff() {
+		timeouts++;
+		sampleStart = -1;
+		setRto(rto * 2);
+	}
+
+	//a wait that started at waitStart (System.currentTimeMillis()) just timed out after resends resends,
+	//give up on it only once it has been resent MIN_RESENDS times and the give up timeout has passed
+	public boolean shouldGiveUp(int resends, long waitStart) {
+		return resends >= MIN_RESENDS && System.currentTimeMillis() - waitStart >= giveUpTimeout;
+	}
+
+	private void setRto(int value) {
+		rto = clamp(value);
+		lowestRto = Math.min(lowestRto, rto);
+		highestRto = Math.max(highestRto, rto);
+	}
+
+	private int clamp(int value) {
+		return Math.max(minTimeout, Math.min(maxTimeout, value));
+	}
+
+	public double getSmoothedRtt() {
+		return Math.max(srtt, 0);
+	}
+	public double getRttVariance() {
+		return rttvar;
+	}
+	public int getSamples() {
+		return samples;
+	}
+	public int getTimeouts() {
+		return timeouts;
+	}
+	public int getLowestTimeout() {
+		return lowestRto;
+	}
+	public int getHighestTimeout() {
+		return highestRto;
+	}
+
+	public String toString() {
+		return String.format("RTO %d ms (lowest %d, highest %d), SRTT %.2f ms, RTTVAR %.2f ms, %d samples, %d timeouts",
+				rto, lowestRto, highestRto, getSmoothedRtt(), rttvar, samples, timeouts);
+	}
+}
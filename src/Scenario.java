@@ -0,0 +1,231 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/***
+ * A set of errors for the IntermediateHost to cause, read from a file instead of typed in at the
+ * console one packet at a time. Each line is a rule:
+ *
+ *   <direction> <opcode> <block> <action> [times=N]
+ *
+ *   direction  toServer, toClient or *
+ *   opcode     RRQ, WRQ, DATA, ACK, ERROR, OACK or *
+ *   block      a block number, a range such as 3-10, or * (RRQ, WRQ, ERROR and OACK have none)
+ *   action     drop | delay <ms> | duplicate <ms> | corrupt opcode <n> | corrupt block <n> | corrupt zero | wrongport | pass
+ *   times      how many packets of each transfer the rule applies to, 1 by default, * for all of them
+ *
+ * The actions are the console's error modes 1 to 7, corrupt zero replacing the last byte. The
+ * first rule a packet matches that isn't used up decides what happens to it, and each transfer
+ * (RelaySession) counts the uses afresh, so "toClient DATA 3 drop" loses the third DATA of every
+ * transfer. Lines "impair <key>=<value>" set a NetworkImpairment for the packets no rule takes,
+ * with the same keys as a tftp.impairment file. Blank lines and lines starting with # are skipped.
+ *
+ * Loaded at startup with -Dtftp.scenario=<file>, or swapped while the host runs with the "l"
+ * command or by saving the file again. Transfers already running carry on with the new rules.
+ */
+public class Scenario {
+	public static final int ANY = -1;
+	private static final String[] OPCODES = {"?", "RRQ", "WRQ", "DATA", "ACK", "ERROR", "OACK"};
+
+	private final String name;
+	private final List<Rule> rules;
+	private final NetworkImpairment impairment;
+
+	/***
+	 * What to do with the packets that match. mode, corruptSeg, newBytes and delay mean what they
+	 * mean for IntermediateHost.setMode's error modes.
+	 */
+	public static class Rule {
+		private final String text;
+		private final int direction;
+		private final int opcode;
+		private final int fromBlock, toBlock;
+		private final int times;
+		final int mode;
+		final int corruptSeg;
+		final byte[] newBytes;
+		final int delay;
+
+		Rule(String text, int direction, int opcode, int fromBlock, int toBlock, int times, int mode, int corruptSeg, int value, int delay) {
+			this.text = text;
+			this.direction = direction;
+			this.opcode = opcode;
+			this.fromBlock = fromBlock;
+			this.toBlock = toBlock;
+			this.times = times;
+			this.mode = mode;
+			this.corruptSeg = corruptSeg;
+			this.newBytes = new byte[] {(byte) ((value >> 8) & 0xFF), (byte) (value & 0xFF)};
+			this.delay = delay;
+		}
+
+		boolean matches(int direction, int opcode, int block) {
+			if (this.direction != ANY && this.direction != direction) return false;
+			if (this.opcode != ANY && this.opcode != opcode) return false;
+			if (fromBlock == ANY) return true;
+			return (opcode == PacketView.DATA || opcode == PacketView.ACK) && block >= fromBlock && block <= toBlock;
+		}
+
+		//packets of one transfer the rule applies to, ANY for every one
+		public int getTimes() {
+			return times;
+		}
+
+		public String toString() {
+			return text;
+		}
+	}
+
+	public static Scenario load(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			List<String> lines = new ArrayList<String>();
+			String line;
+			while ((line = in.readLine()) != null) lines.add(line);
+			return new Scenario(file.getName(), lines);
+		} finally {
+			in.close();
+		}
+	}
+
+	//throws IllegalArgumentException naming the line that can't be understood
+	public Scenario(String name, List<String> lines) {
+		this.name = name;
+		List<Rule> parsed = new ArrayList<Rule>();
+		Properties impair = new Properties();
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			try {
+				if (line.startsWith("impair ")) {
+					String setting = line.substring(7).trim();
+					int eq = setting.indexOf('=');
+					if (eq <= 0) throw new IllegalArgumentException("impair takes <key>=<value>");
+					impair.setProperty(setting.substring(0, eq).trim(), setting.substring(eq + 1).trim());
+				}
+				else {
+					parsed.add(parseRule(line));
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(name + ":" + (i + 1) + ": " + e.getMessage());
+			}
+		}
+		rules = Collections.unmodifiableList(parsed);
+		impairment = impair.isEmpty() ? null : new NetworkImpairment(impair, name);
+	}
+
+	private static Rule parseRule(String line) {
+		String[] words = line.split("\\s+");
+		if (words.length < 4) throw new IllegalArgumentException("rules are <direction> <opcode> <block> <action> [times=N]");
+		int direction;
+		if (words[0].equals("*")) direction = ANY;
+		else if (words[0].equalsIgnoreCase("toServer")) direction = NetworkImpairment.TO_SERVER;
+		else if (words[0].equalsIgnoreCase("toClient")) direction = NetworkImpairment.TO_CLIENT;
+		else throw new IllegalArgumentException("unknown direction " + words[0]);
+
+		int opcode = ANY;
+		if (!words[1].equals("*")) {
+			for (int o = 1; o < OPCODES.length; o++) {
+				if (OPCODES[o].equalsIgnoreCase(words[1])) opcode = o;
+			}
+			if (opcode == ANY) throw new IllegalArgumentException("unknown opcode " + words[1]);
+		}
+
+		int fromBlock = ANY, toBlock = ANY;
+		if (!words[2].equals("*")) {
+			int dash = words[2].indexOf('-');
+			fromBlock = number(dash < 0 ? words[2] : words[2].substring(0, dash), 65535);
+			toBlock = dash < 0 ? fromBlock : number(words[2].substring(dash + 1), 65535);
+			if (toBlock < fromBlock) throw new IllegalArgumentException("empty block range " + words[2]);
+		}
+
+		// The action and its values, then times=
+		int end = words.length;
+		int times = 1;
+		if (words[end - 1].startsWith("times=")) {
+			String t = words[end - 1].substring(6);
+			times = t.equals("*") ? ANY : number(t, Integer.MAX_VALUE);
+			end--;
+		}
+		String action = words[3].toLowerCase();
+		int mode, corruptSeg = 0, value = 0, delay = 0, args = 0;
+		if (action.equals("pass")) {
+			mode = 0;
+		}
+		else if (action.equals("drop")) {
+			mode = 1;
+		}
+		else if (action.equals("delay") || action.equals("duplicate")) {
+			mode = action.equals("delay") ? 2 : 3;
+			args = 1;
+			if (end > 4) delay = number(words[4], Integer.MAX_VALUE);
+		}
+		else if (action.equals("corrupt")) {
+			mode = 4;
+			String what = end > 4 ? words[4].toLowerCase() : "";
+			if (what.equals("opcode")) corruptSeg = 1;
+			else if (what.equals("block")) corruptSeg = 2;
+			else if (what.equals("zero")) corruptSeg = 3;
+			else throw new IllegalArgumentException("corrupt takes opcode <n>, block <n> or zero");
+			args = corruptSeg == 3 ? 1 : 2;
+			if (corruptSeg != 3 && end > 5) value = number(words[5], 65535);
+		}
+		else if (action.equals("wrongport")) {
+			mode = 5;
+		}
+		else {
+			throw new IllegalArgumentException("unknown action " + words[3]);
+		}
+		if (end != 4 + args) throw new IllegalArgumentException("wrong number of values for " + action);
+		return new Rule(line, direction, opcode, fromBlock, toBlock, times, mode, corruptSeg, value, delay);
+	}
+
+	private static int number(String s, int max) {
+		try {
+			int n = Integer.parseInt(s);
+			if (n < 0 || n > max) throw new IllegalArgumentException(s + " is out of range 0-" + max);
+			return n;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("not a number: " + s);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	//the impairment set with impair lines, null if there are none
+	public NetworkImpairment getImpairment() {
+		return impairment;
+	}
+
+	/***
+	 * The first rule for a packet going direction with opcode and block (or -1 if it has none)
+	 * that the transfer hasn't used up, counting the use. uses is the transfer's count per rule.
+	 * null if no rule applies.
+	 */
+	public Rule match(int direction, int opcode, int block, int[] uses) {
+		for (int i = 0; i < rules.size(); i++) {
+			Rule r = rules.get(i);
+			if ((r.times == ANY || uses[i] < r.times) && r.matches(direction, opcode, block)) {
+				uses[i]++;
+				return r;
+			}
+		}
+		return null;
+	}
+
+	public String toString() {
+		return name + " (" + rules.size() + " rules" + (impairment != null ? ", impaired" : "") + ")";
+	}
+}
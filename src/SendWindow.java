@@ -0,0 +1,80 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+
+/***
+ * DATA packets that have been sent but not acknowledged yet, oldest first (RFC 7440).
+ * Block numbers keep counting past 65535 here, only the 16 bit value goes on the wire.
+ * With a window size of 1 this is plain stop-and-wait.
+ *
+ * @param <T> however the caller holds an encoded packet
+ */
+public class SendWindow<T> implements Iterable<T> {
+	private final int windowSize;
+	private final ArrayDeque<T> packets = new ArrayDeque<T>();
+	private int firstBlockNumber = 1;
+
+	public SendWindow(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public boolean isFull() {
+		return packets.size() >= windowSize;
+	}
+	public boolean isEmpty() {
+		return packets.isEmpty();
+	}
+	public int size() {
+		return packets.size();
+	}
+	//block number the next packet added must carry
+	public int nextBlockNumber() {
+		return firstBlockNumber + packets.size();
+	}
+	//oldest unacknowledged packet, the one to resend when a timeout expires
+	public T first() {
+		return packets.peekFirst();
+	}
+
+	//number of blocks acknowledged so far
+	public int acknowledgedBlocks() {
+		return firstBlockNumber - 1;
+	}
+	//true if blockNum is the block acknowledged just before the current window
+	public boolean isLastAcknowledged(int blockNum) {
+		return ((firstBlockNumber - 1) & 0xFFFF) == blockNum;
+	}
+
+	public void add(T packet) {
+		packets.addLast(packet);
+	}
+
+	/***
+	 * Removes every packet up to and including the acknowledged block.
+	 * @return how many packets were acknowledged, 0 for a duplicate of an earlier ACK,
+	 * or -1 if the block number was never sent.
+	 */
+	public int acknowledge(int blockNum) {
+		return acknowledge(blockNum, null);
+	}
+
+	//same as above, also adding the acknowledged packets to released so their buffers can be reused
+	public int acknowledge(int blockNum, Collection<? super T> released) {
+		for (int i = 0; i < packets.size(); i++) {
+			if (((firstBlockNumber + i) & 0xFFFF) == blockNum) {
+				for (int j = 0; j <= i; j++) {
+					T packet = packets.removeFirst();
+					if (released != null) released.add(packet);
+				}
+				firstBlockNumber += i + 1;
+				return i + 1;
+			}
+		}
+		if (DataPacket.isEarlierBlock(blockNum, firstBlockNumber)) return 0;
+		return -1;
+	}
+
+	public Iterator<T> iterator() {
+		return packets.iterator();
+	}
+}
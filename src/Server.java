@@ -5,22 +5,57 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.Scanner;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Server {
 
+	public static final int THREAD_ENGINE = 0;
+	public static final int NIO_ENGINE = 1;
+	public static final int VIRTUAL_THREAD_ENGINE = 2;
+
 	private static final int KNOWN_PORT = 69;
 	//private static InetAddress KNOWN_ADDRESS = null;
 	DatagramSocket sendSocket, receiveSocket;
 	DatagramPacket receivePacket, sendPacket;
 	boolean run = true;
+	private int engine = THREAD_ENGINE;
+	private NioTransferEngine nioEngine;
+	private TransferAdmission admission;
+	private final TFTPMetrics metrics = TFTPMetrics.get(TFTPMetrics.SERVER);
 	/*
 	 * Constructor
 	 * Creates new receive socket
 	 */
 	public Server()
 	{
+		this(THREAD_ENGINE);
+	}
+	
+	/*
+	 * Constructor
+	 * Creates new receive socket, transfers are run by the given engine
+	 */
+	public Server(int engine)
+	{
+		this.engine = engine;
+		if (engine == NIO_ENGINE) {
+			try {
+				nioEngine = new NioTransferEngine(Runtime.getRuntime().availableProcessors(), TFTPConfig.getMaxTransfers(50000));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		else if (engine == VIRTUAL_THREAD_ENGINE) {
+			// Virtual threads aren't pooled, only counted, so they get a limit in the NIO engine's range
+			admission = new TransferAdmission(TFTPConfig.getMaxTransfers(50000), transferThreadFactory(engine));
+		}
+		else {
+			admission = new TransferAdmission(TFTPConfig.getMaxTransfers(256), TFTPConfig.getAdmissionQueueSize(), transferThreadFactory(engine));
+		}
 		try{
-			receiveSocket = new DatagramSocket(KNOWN_PORT);
+			receiveSocket = new MeteredDatagramSocket(KNOWN_PORT, metrics);
 		}catch(SocketException e)
 		{
 			e.printStackTrace();
@@ -39,9 +74,33 @@ public class Server {
 		run = false;
 	}
 	
+	//prints the admission counters for the current engine
+	public void printStats()
+	{
+		if (nioEngine != null) {
+			System.out.println("Active transfers: " + nioEngine.getActiveSessions() + "/" + nioEngine.getMaxSessions());
+			System.out.println("Rejected (busy): " + nioEngine.getRejected());
+			System.out.println("Sends dropped (socket buffer full): " + nioEngine.getSendsDropped());
+		}
+		else {
+			System.out.println("Active transfers: " + admission.getActiveTransfers() + "/" + admission.getMaxTransfers());
+			System.out.println("Queue depth: " + admission.getQueueDepth());
+			System.out.println("Admitted: " + admission.getAdmitted());
+			System.out.println("Rejected (busy): " + admission.getRejected());
+			System.out.println(String.format("Queue wait: avg %.2f ms, max %.2f ms", admission.getAverageWaitMillis(), admission.getMaxWaitMillis()));
+		}
+		BlockCache cache = BlockCache.getShared();
+		if (cache != null) System.out.println("Block cache: " + cache);
+		PcapWriter capture = PcapWriter.get();
+		if (capture != null) System.out.println("Packet capture: " + capture);
+		System.out.println("Transfers: " + metrics);
+	}
+	
 	private void shutdown()
 	{
 		receiveSocket.close();
+		if (nioEngine != null) nioEngine.shutdown();
+		if (admission != null) admission.shutdown();
 		System.out.println("Socket closed, server will no longer accept requests");
 	}
 	/*
@@ -49,12 +108,13 @@ public class Server {
 	 */
 	public void receiveAndSend()
 	{
-		byte data[] = new byte[100];
+		byte data[] = new byte[516];
 		byte data2[];
 		int threadCounter = 1;
 		int loopCounter = 0;
 		ServerInput waitForExitCommand = new ServerInput("Input Handler", this);
 		waitForExitCommand.start();
+		if (nioEngine != null) nioEngine.start();
 		//once user input is added, the server operator can choose to shutdown
 		System.out.println("Server: Waiting for packet..");
 		while(run)
@@ -85,14 +145,57 @@ public class Server {
 			System.out.println("\n");
 
 			
-			//create and run new Server thread
-			Thread serverThread = new ServerThread("Server Thread #" + threadCounter,receivePacket,data2);
-			threadCounter++;
-			System.out.println("Server: Created " + serverThread);
-			serverThread.start();
+			boolean accepted = false;
+			if (engine == NIO_ENGINE) {
+				// Hand the request to a selector thread instead of creating a thread for it
+				try {
+					accepted = nioEngine.submit(receivePacket.getAddress(), receivePacket.getPort(), data2);
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+			}
+			else {
+				//create new Server thread, it runs on the transfer pool once a slot is free
+				Thread serverThread = new ServerThread("Server Thread #" + threadCounter,receivePacket,data2);
+				threadCounter++;
+				System.out.println("Server: Created " + serverThread);
+				accepted = admission.tryAdmit(serverThread);
+			}
+			if (!accepted) {
+				sendBusy(receivePacket);
+			}
 		}
 		shutdown();
 	}
+	//tell the client straight away that the server can't take the transfer, rather than letting it time out
+	private void sendBusy(DatagramPacket request)
+	{
+		System.err.println("Server busy, rejecting request from " + request.getAddress() + ":" + request.getPort());
+		ErrorPacket ep = new ErrorPacket((byte)0, "Server busy, try again later.");
+		byte[] err = ep.encode();
+		DatagramPacket errPkt = new DatagramPacket(err, err.length, request.getAddress(), request.getPort());
+		try {
+			receiveSocket.send(errPkt);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		TFTPInfoPrinter.printSent(errPkt);
+	}
+	
+	//threads for the transfer pool, virtual ones when that engine was chosen
+	private static ThreadFactory transferThreadFactory(final int engine)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				String name = "Transfer Worker #" + count.incrementAndGet();
+				if (engine == VIRTUAL_THREAD_ENGINE) return VirtualThreads.newThread(name, r);
+				return new Thread(r, name);
+			}
+		};
+	}
+	
 	public static void main(String args[])
 	{
 		System.out.println("Choose whether you would like to run in quiet or verbose mode (q/v):");
@@ -105,7 +208,22 @@ public class Server {
 		else if (response.equals("n")) {
 			TFTPInfoPrinter.setVerboseMode(true);
 		}
-		Server server = new Server();
+		
+		System.out.println("Choose the transfer engine, a thread per transfer, a virtual thread per transfer or non-blocking NIO (t/v/n):");
+		response = s.nextLine().toLowerCase();
+		int engine = THREAD_ENGINE;
+		if (response.equals("n") || response.equals("nio")) {
+			engine = NIO_ENGINE;
+		}
+		else if (response.equals("v") || response.equals("virtual")) {
+			if (VirtualThreads.isSupported()) {
+				engine = VIRTUAL_THREAD_ENGINE;
+			}
+			else {
+				System.out.println("Virtual threads need Java 21 or later, using a thread per transfer instead.");
+			}
+		}
+		Server server = new Server(engine);
 		server.receiveAndSend();
 		s.close();
 	}
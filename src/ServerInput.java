@@ -17,9 +17,10 @@ public class ServerInput extends Thread
 		Scanner s = new Scanner(System.in);
 		while(true)
 		{
-			System.out.println("Enter \"stop\" to stop running the server.");
+			System.out.println("Enter \"stop\" to stop running the server, or \"stats\" to show transfer counters.");
 			input = s.nextLine();
 			if(input.equals("stop")) break;
+			if(input.equals("stats")) server.printStats();
 		}
 		s.close();
 		server.stop();
@@ -1,23 +1,41 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 public class ServerThread extends Thread{
-	private static final int bufferSize = 516;
-	private static final int blockSize = 512;
+	private static final TFTPMetrics metrics = TFTPMetrics.get(TFTPMetrics.SERVER);
+	// Block size can be changed by the blksize option, so these are set per transfer
+	private int bufferSize = 516;
+	private int blockSize = 512;
+	private int windowSize = 1;
+	// Retransmission timeout for this transfer, adjusted as round trip times are measured
+	// unless the client asked for a fixed one with the timeout option
+	private RttEstimator rtt = new RttEstimator();
+	// Upload size from the tsize option (-1 if unknown), and how much of it has been written
+	private long transferSize = -1;
+	private long bytesReceived = 0;
+	// Temporary file the upload is written to until it is published under its name
+	private PartFile part;
+	// Set once the whole file has gone through, with its size, for the metrics
+	private boolean completed = false;
+	private long bytesTransferred = 0;
 	
 	private DatagramPacket receivePacket, sendPacket;
+	private OackPacket oack;
 	private DatagramSocket sendReceiveSocket;
 	private String file;
 	private byte[] receivedData;
@@ -29,27 +47,57 @@ public class ServerThread extends Thread{
 		this.receivedData = receivedData;
 	}
 	
-	//receives a packet on the socket given with a timeout of 5 seconds, eventually gives up after a few timeouts
+	//receives a packet on the socket given, waiting for the current retransmission timeout and backing off
+	//each time it expires, eventually gives up after a few timeouts
 	//returns false if unsuccessful, true if successful
 	private boolean packetReceiveWithTimeout(DatagramSocket socket, DatagramPacket packet, DatagramPacket resendPacket) throws IOException
 	{
-		socket.setSoTimeout(5000);		//set timeout to 5000 ms (5 seconds)
-		int numTimeouts = 0;
+		return packetReceiveWithTimeout(socket, packet, resendPacket, null);
+	}
+	
+	//same as above, but every packet in resendPackets is resent on a timeout (e.g. a whole window of DATA)
+	private boolean packetReceiveWithTimeout(DatagramSocket socket, DatagramPacket packet, Iterable<DatagramPacket> resendPackets) throws IOException
+	{
+		return packetReceiveWithTimeout(socket, packet, null, resendPackets);
+	}
+	
+	//resends either resendPacket or resendPackets, so a single packet isn't wrapped in a new list for every block
+	private boolean packetReceiveWithTimeout(DatagramSocket socket, DatagramPacket packet, DatagramPacket resendPacket, Iterable<DatagramPacket> resendPackets) throws IOException
+	{
+		// receive() shrinks the packet's length to what arrived, so a reused packet is opened back up to its whole buffer
+		packet.setLength(packet.getData().length);
+		int resends = 0;
+		long waitStart = System.currentTimeMillis();
 		boolean receivedOrSent = false;
-		while(numTimeouts < 5 & !receivedOrSent)
+		while(!receivedOrSent)
 		{
 			receivedOrSent = true;
+			socket.setSoTimeout(rtt.getTimeout());
 			try{
 				socket.receive(packet);
+				rtt.endSample();
 			} catch(SocketTimeoutException e)
 			{
-				receivedOrSent = false;	
-				numTimeouts++;
+				receivedOrSent = false;
+				rtt.backoff();
+				metrics.timedOut();
+				// Given up on only after enough resends and enough time, however short the timeouts were
+				if (rtt.shouldGiveUp(resends, waitStart)) break;
+				resends++;
 				System.out.println("Timed out, retrying transfer.");
-				socket.send(resendPacket);
+				if (resendPacket != null) {
+					socket.send(resendPacket);
+					metrics.retransmitted(1);
+				}
+				else {
+					for (DatagramPacket p : resendPackets) {
+						socket.send(p);
+						metrics.retransmitted(1);
+					}
+				}
 			}
 		}
-		if(numTimeouts >= 5)
+		if(!receivedOrSent)
 		{
 			System.out.println("Transfer failed, timed out too many times.");
 			return false;
@@ -63,34 +111,49 @@ public class ServerThread extends Thread{
 	{
 		socket.setSoTimeout(5000);		//set timeout to 5000 ms (5 seconds)
 		int numTimeouts = 0;
+		long waitStart = System.currentTimeMillis();
 		boolean receivedOrSent = false;
-		while(numTimeouts < 5 & !receivedOrSent)
+		while(!receivedOrSent)
 		{
 			receivedOrSent = true;
 			try{
 				socket.send(packet);
 			} catch(SocketTimeoutException e)
 			{
-				receivedOrSent = false;	
+				receivedOrSent = false;
+				if (rtt.shouldGiveUp(numTimeouts, waitStart)) break;
 				numTimeouts++;
 				System.out.print("Timed out, retrying transfer.");					
 			}
 		}
-		if(numTimeouts >= 5)
+		if(!receivedOrSent)
 		{
 			System.out.print("Transfer failed, timed out too many times.");
 			return false;
 		}
+		rtt.startSample();
 		return true;
 	}
 	public void run(){
+		// One socket (TID) per transfer, closed however the transfer ends so sockets aren't leaked
 		try {
-			sendReceiveSocket = new DatagramSocket();
+			sendReceiveSocket = new MeteredDatagramSocket(metrics);
 		} catch (SocketException e1) {
 			e1.printStackTrace();
+			return;
+		}
+		metrics.transferStarted();
+		long start = System.nanoTime();
+		try {
+			handleRequest();
+		} finally {
+			sendReceiveSocket.close();
+			metrics.transferFinished(completed, bytesTransferred, System.nanoTime() - start);
 		}
-		byte[] data = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
-		if (!RequestPacket.isValid(data)){
+	}
+	
+	private void handleRequest(){
+		if (!RequestPacket.isValid(receivedData)){
 			// Send error code 04 and stop transfer
 			System.err.println("Request was invalid.");
 			ErrorPacket ep = new ErrorPacket((byte)4, "Request was invalid.");
@@ -105,15 +168,38 @@ public class ServerThread extends Thread{
 		}
 		RequestPacket rp = new RequestPacket(receivedData);
 		file = rp.getFilename();
+		
+		// Only answer with an OACK if at least one requested option was accepted
+		Map<String, String> accepted = new LinkedHashMap<String, String>();
+		TransferOptions options = TransferOptions.negotiate(rp.getOptions(), accepted);
+		blockSize = options.getBlockSize();
+		bufferSize = options.getPacketSize();
+		windowSize = options.getWindowSize();
+		transferSize = options.getTransferSize();
+		rtt = options.newRttEstimator();
 		// Determination of type of packet received
 		byte[] opcode = {receivedData[0], receivedData[1]};
-		
+		if (accepted.containsKey(TransferOptions.TSIZE) && Arrays.equals(opcode, RequestPacket.readOpcode)) {
+			// For a RRQ the client sends tsize 0 and gets the file's length back
+			accepted.put(TransferOptions.TSIZE, Long.toString(new File("ServerFiles/" + file).length()));
+		}
+		if (!accepted.isEmpty()) oack = new OackPacket(accepted);
+		if (windowSize > 1) {
+			// Leave room in the socket buffer for a whole window of blocks arriving at once,
+			// twice over since the kernel counts its own overhead per datagram against it
+			try {
+				sendReceiveSocket.setReceiveBufferSize(Math.max(64 * 1024, 2 * windowSize * bufferSize));
+			} catch (SocketException e) {
+				e.printStackTrace();
+			}
+		}
 		if (Arrays.equals(opcode, RequestPacket.readOpcode)) {
 			try {
 				writeToClient(file);
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			System.out.println("Retransmission timeout for " + file + ": " + rtt);
 		}
 		else if (Arrays.equals(opcode, RequestPacket.writeOpcode)){
 			try {
@@ -121,6 +207,12 @@ public class ServerThread extends Thread{
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			// An upload that wasn't published leaves nothing behind
+			if (part != null) part.discard();
+			// However the upload ended, whatever the cache held for this name is out of date now
+			BlockCache cache = BlockCache.getShared();
+			if (cache != null) cache.invalidate(new File("ServerFiles/" + file));
+			System.out.println("Retransmission timeout for " + file + ": " + rtt);
 		}
 		else
 		{
@@ -138,26 +230,14 @@ public class ServerThread extends Thread{
 	void writeToClient(String filename) throws IOException
 	{
 		System.out.println("Writing to client: " + filename);
-		InetAddress clientAddress = null;
-		int clientPort = -1;
+		// The request came from the client's TID, the rest of the transfer has to come from there too
+		InetAddress clientAddress = receivePacket.getAddress();
+		int clientPort = receivePacket.getPort();
 		
-		//Create socket to send out packets and receive ACKs
-		try 
-		{
-			sendReceiveSocket = new DatagramSocket();
-		} 
-		catch (SocketException e1) 
-		{
-			e1.printStackTrace();
-			System.exit(1);
-		}
-		
-		int currentBlockNumber = 1; //starting with the first block of 512 bytes
-		byte[] data;
-		byte[] opcode;
-		BufferedInputStream in = null;
+		FileBlockSource in = null;
 		try {
-			in = new BufferedInputStream(new FileInputStream("ServerFiles/" + filename));
+			File source = new File("ServerFiles/" + filename);
+			in = new FileBlockSource(new RandomAccessFile(source, "r").getChannel(), BlockCache.getShared(), source);
 		} 
 		catch(IOException e)
 		{
@@ -209,56 +289,69 @@ public class ServerThread extends Thread{
 			else
 			{
 				e.printStackTrace();
+				return;
 			}
 		} 
 		
+		// Options were accepted, so the client has to ACK the OACK with block 0 before the first DATA
+		if (oack != null && !sendOackAndWaitForAck())
+		{
+			in.close();
+			return;
+		}
 			
-		boolean duplicateACKPacket = false;
-		int bytesRead = 0;
+		SendWindow<DatagramPacket> window = new SendWindow<DatagramPacket>(windowSize);
+		// The next blocks are read while the ACKs are on their way, into the packets the client has
+		// acknowledged so the loop doesn't allocate
+		BlockPrefetcher blocks = in.prefetch(blockSize, clientAddress, clientPort, metrics);
+		ArrayDeque<DatagramPacket> freePackets = new ArrayDeque<DatagramPacket>();
+		// Every ACK is received into the same packet
+		DatagramPacket ackPacket = new DatagramPacket(new byte[bufferSize], bufferSize);
+		long position = 0;
+		boolean lastBlockRead = false;
+		boolean windowRestarted = false;
 		while(true)
 		{
-			byte[] dataBlock = new byte[blockSize];
-
-			// Don't send anything if the ACK previous ACK packet obtained was a duplicate.
-			if (!duplicateACKPacket) {
+			// Fill the window with new blocks, with a window size of 1 this sends a single block.
+			while (!lastBlockRead && !window.isFull())
+			{
+				// Usually read already, the block follows its 4 byte header in the packet
 				try {
-					bytesRead = in.read(dataBlock);
+					sendPacket = blocks.next();
 				} catch (IOException e) {
-					
+					// The file couldn't be read, tell the client rather than leaving it to time out
+					String errorString = "Server could not read " + '"' + filename + '"' + ".";
+					System.err.println(errorString + " " + e.getMessage());
+					ErrorPacket ep = new ErrorPacket((byte) 0, errorString);
+					DatagramPacket errPkt = new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort);
+					sendReceiveSocket.send(errPkt);
+					TFTPInfoPrinter.printSent(errPkt);
+					in.close();
+					return;
 				}
-				
-				if (bytesRead == -1) bytesRead = 0; 
-				dataBlock = Arrays.copyOf(dataBlock, bytesRead);
-				
-				DataPacket dp = new DataPacket(currentBlockNumber, dataBlock);
-				data = dp.encode();
+				int bytesRead = sendPacket.getLength() - 4;
+				position += bytesRead;
+				if (bytesRead < blockSize) lastBlockRead = true;
 				
 				//send the data to the client
-				sendPacket = new DatagramPacket(data, data.length, receivePacket.getAddress(), receivePacket.getPort());
 				if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
 				{
 					in.close();
 					return;
 				}
 				TFTPInfoPrinter.printSent(sendPacket);
+				window.add(sendPacket);
 			}
 			
-			//receive the ACK from the client
-			byte[] ack = new byte[bufferSize];
-			receivePacket = new DatagramPacket(ack, ack.length);
-			if(!packetReceiveWithTimeout(sendReceiveSocket, receivePacket, sendPacket))
+			//receive the ACK from the client, the unacknowledged blocks are resent on a timeout
+			receivePacket = ackPacket;
+			if(!packetReceiveWithTimeout(sendReceiveSocket, receivePacket, window))
 			{
 				in.close();
 				return;
 			}
 			
 			TFTPInfoPrinter.printReceived(receivePacket);		
-			
-			// Initial transfer, setup address to check for in future packets.
-			if (clientAddress == null && clientPort == -1) {
-				clientAddress = receivePacket.getAddress();
-				clientPort = receivePacket.getPort();
-			}
 				
 			if(!receivePacket.getAddress().equals(clientAddress) || receivePacket.getPort() != clientPort)
 			{
@@ -268,18 +361,18 @@ public class ServerThread extends Thread{
 				DatagramPacket errPkt = new DatagramPacket(ep.encode(), ep.encode().length, receivePacket.getAddress(), receivePacket.getPort());
 				sendReceiveSocket.send(errPkt);
 				TFTPInfoPrinter.printSent(errPkt);
-				// reuse duplicate packet logic to prevent reading from file again.
-				duplicateACKPacket = true;
 				continue;
 			}
 			
 			
-			opcode = Arrays.copyOf(receivePacket.getData(), 2);
+			// The packet is checked where it was received, only an error is copied out of the buffer
+			byte[] received = receivePacket.getData();
+			int length = receivePacket.getLength();
 
-			if (Arrays.equals(opcode, ErrorPacket.opcode)){
+			if (ErrorPacket.hasOpcode(received, length)){
 				// Determine error code
 				
-				ErrorPacket ep = new ErrorPacket(Arrays.copyOf(receivePacket.getData(), receivePacket.getLength()));
+				ErrorPacket ep = new ErrorPacket(Arrays.copyOf(received, length));
 				System.err.println(ep.getErrorMessage());
 				// As the server, 
 				in.close();
@@ -287,80 +380,130 @@ public class ServerThread extends Thread{
 			}
 			// The received packet should be an ACK packet at this point, and this have the Opcode defined in ackOP.
 			// If it is not an error packet or an ACK packet, something happened (these cases are in later iterations).
-			else if (!Arrays.equals(opcode, AckPacket.opcode)) {
+			else if (!AckPacket.hasOpcode(received, length)) {
 				// Send ErrorPacket with error code 04 and stop transfer.
 				ErrorPacket ep = new ErrorPacket((byte)4, "Was expecting a ACK packet.");
-				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort));
 				in.close();
 				return;
 			}
-			byte[] dataReceived = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
-
-			
-			if (!AckPacket.isValid(dataReceived)) {
+			if (!AckPacket.isValid(received, length)) {
 				// Send ErrorPacket with error code 04 and stop transfer.
 				ErrorPacket ep = new ErrorPacket((byte)4, "ACK packet was malformed.");
-				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort));
 				in.close();
 				return;
 			}
-			AckPacket ap = new AckPacket(dataReceived);
-			
-			int blockNum = ap.getBlockNum();
-			
-			duplicateACKPacket = false; // Set to false, so next loop will continue transferring properly if next ACK isn't also duplicate.
-			
-			System.out.println("Current Block Number: " + currentBlockNumber);
-			System.out.println("Received Block Number: " + blockNum);
-			
-			if (blockNum != currentBlockNumber) {
-				
-				if (blockNum == 0) {
-				
-					currentBlockNumber -= 65536;
-				}
-				 // If they're still not equal, another problem occurred.
-				if (blockNum != currentBlockNumber)
-				{
-					if(currentBlockNumber > blockNum)
-					{
-						//received duplicate data packet
-						duplicateACKPacket = true;
-						if (blockNum == 0) currentBlockNumber += 65536;
-					}
-					else {
-						// Send ErrorPacket with error code 04 and stop transfer.
-						ErrorPacket ep = new ErrorPacket((byte)4, "ACK packet block number not in sequence or duplicate.");
-						sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
-						in.close();
-						return;
+			int blockNum = AckPacket.readBlockNum(received);
+			int acked = window.acknowledge(blockNum, freePackets);
+			blocks.recycle(freePackets);
+			if (acked == -1) {
+				// Send ErrorPacket with error code 04 and stop transfer.
+				ErrorPacket ep = new ErrorPacket((byte)4, "ACK packet block number not in sequence or duplicate.");
+				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort));
+				in.close();
+				return;
+			}
+			if (acked == 0) {
+				// Duplicate ACKs are ignored rather than resending (Sorcerer's Apprentice). With a window though, the
+				// client repeats its last ACK when part of a window went missing, so restart the window once for it.
+				metrics.duplicateAck();
+				if (windowSize > 1 && !windowRestarted && !window.isEmpty() && window.isLastAcknowledged(blockNum)) {
+					for (DatagramPacket p : window) {
+						sendReceiveSocket.send(p);
+						TFTPInfoPrinter.printSent(p);
+						metrics.retransmitted(1);
 					}
+					rtt.retransmitted();
+					windowRestarted = true;
 				}
+				continue;
 			}
+			windowRestarted = false;
 			
-			if (bytesRead < 512) break;
-			//get ready to send the next block of bytes
-			
-			if (!duplicateACKPacket) currentBlockNumber++;
-			
+			if (window.isEmpty()) {
+				if (lastBlockRead) break;
+			}
+			else {
+				// The client is missing part of the window, restart the window from the first block it didn't get.
+				for (DatagramPacket p : window) {
+					sendReceiveSocket.send(p);
+					TFTPInfoPrinter.printSent(p);
+					metrics.retransmitted(1);
+				}
+				rtt.retransmitted();
+			}
 		}
 		in.close();
+		completed = true;
+		bytesTransferred = position;
 		System.out.println("Transfer complete");
 	}
 	
+	//sends the OACK for a read request and waits for the client to acknowledge it with ACK 0
+	//returns false if the client refused the options or the transfer failed
+	private boolean sendOackAndWaitForAck() throws IOException
+	{
+		InetAddress clientAddress = receivePacket.getAddress();
+		int clientPort = receivePacket.getPort();
+		byte[] data = oack.encode();
+		sendPacket = new DatagramPacket(data, data.length, clientAddress, clientPort);
+		if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
+		{
+			return false;
+		}
+		TFTPInfoPrinter.printSent(sendPacket);
+		
+		while(true)
+		{
+			byte[] ack = new byte[bufferSize];
+			receivePacket = new DatagramPacket(ack, ack.length);
+			if(!packetReceiveWithTimeout(sendReceiveSocket, receivePacket, sendPacket))
+			{
+				return false;
+			}
+			TFTPInfoPrinter.printReceived(receivePacket);
+			
+			if(!receivePacket.getAddress().equals(clientAddress) || receivePacket.getPort() != clientPort)
+			{
+				System.err.println("Packet from unknown address or port, discarding.");
+				ErrorPacket ep = new ErrorPacket((byte)5, "Packet from unknown address or port, discarding.");
+				DatagramPacket errPkt = new DatagramPacket(ep.encode(), ep.encode().length, receivePacket.getAddress(), receivePacket.getPort());
+				sendReceiveSocket.send(errPkt);
+				TFTPInfoPrinter.printSent(errPkt);
+				continue;
+			}
+			
+			byte[] dataReceived = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
+			byte[] opcode = Arrays.copyOf(dataReceived, 2);
+			if (Arrays.equals(opcode, ErrorPacket.opcode) && ErrorPacket.isValid(dataReceived))
+			{
+				// Client refused the options (error code 8) or gave up
+				System.err.println(new ErrorPacket(dataReceived).getErrorMessage());
+				return false;
+			}
+			if (Arrays.equals(opcode, AckPacket.opcode) && AckPacket.isValid(dataReceived) && new AckPacket(dataReceived).getBlockNum() == 0)
+			{
+				return true;
+			}
+			ErrorPacket ep = new ErrorPacket((byte)4, "Was expecting ACK 0 for the OACK.");
+			sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort));
+			return false;
+		}
+	}
+	
 	public void readFromClient(String filename) throws IOException{
 		System.out.println("Reading from client: " + filename);
 		
-		InetAddress clientAddress = null;
-		int clientPort = -1;
+		// The request came from the client's TID, the rest of the transfer has to come from there too
+		InetAddress clientAddress = receivePacket.getAddress();
+		int clientPort = receivePacket.getPort();
 	
 		// Already received request
 		// Send ACK with blockNumber 0 ... N;
 		// Receive dataBlock (blockNumber++)
 		byte[] receivedData;
-		byte[] opcode;
-		int currentBlockNumber = 0;
-		sendReceiveSocket = new DatagramSocket();
+		int currentBlockNumber = 1;
 		if(new File("ServerFiles/" + filename).exists()){
 			String errorString = filename + " already exists on Server.";
 			ErrorPacket ep = new ErrorPacket((byte) 6, errorString);
@@ -377,40 +520,59 @@ public class ServerThread extends Thread{
 			return;
 		}
 		
-		BufferedOutputStream out = null;
+		// With the size known up front, refuse an upload the disk can't hold now instead of part way through
+		if (transferSize > new File("ServerFiles").getUsableSpace()) {
+			String errorString = "Server disk full, not enough space for " + '"' + filename + '"' + ".";
+			System.err.println(errorString);
+			ErrorPacket ep = new ErrorPacket((byte) 3, errorString);
+			sendPacket = new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort);
+			sendReceiveSocket.send(sendPacket);
+			TFTPInfoPrinter.printSent(sendPacket);
+			return;
+		}
+		
+		FileBlockSink out = null;
 		try {
-			out = new BufferedOutputStream(new FileOutputStream("ServerFiles/" + filename));
+			part = new PartFile(Paths.get("ServerFiles", filename));
+			out = new FileBlockSink(part.getChannel());
 		} catch (IOException e) {
-			if (e.getMessage().contains("(Access is denied)")){
+			if (e instanceof AccessDeniedException || String.valueOf(e.getMessage()).contains("(Access is denied)")){
 				System.err.println("Access to ServerFiles folder was denied");
 				return;
 			}
 			else {
 				System.err.println("Unknown file error");
+				return;
 			}
 		}
-		boolean err5 = false;
-		boolean duplicateDataPacket = false;
+		// With a window size above 1 only the last block of each window is acknowledged.
+		int blocksSinceAck = 0;
+		boolean reAcked = false;
+		
+		// Every block is received into the same packet and every ACK is written into the same packet, so the loop doesn't allocate
+		DatagramPacket dataPacket = new DatagramPacket(new byte[bufferSize], bufferSize);
+		byte[] ack = new byte[4];
+		// Initial request was sent to wellKnownPort, but steady state file transfer should happen on another port.
+		DatagramPacket ackPacket = new DatagramPacket(ack, ack.length, clientAddress, clientPort);
+		
+		// Send ack back, the first one is an OACK instead if options were accepted
+		if (oack != null) {
+			sendPacket = new DatagramPacket(oack.encode(), oack.encode().length, clientAddress, clientPort);
+		}
+		else {
+			AckPacket.writePacket(ack, 0);
+			sendPacket = ackPacket;
+		}
+		if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
+		{
+			out.close();
+			return;
+		}
+		TFTPInfoPrinter.printSent(sendPacket);
+		
 		while (true) {
-			if(!err5)
-			{
-				// Send ack back
-				AckPacket ap = new AckPacket(currentBlockNumber);
-				byte[] ack = ap.encode();
-				
-				// Initial request was sent to wellKnownPort, but steady state file transfer should happen on another port.
-				sendPacket = new DatagramPacket(ack, ack.length, InetAddress.getLocalHost(), receivePacket.getPort());
-				if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
-				{
-					out.close();
-					return;
-				}
-				TFTPInfoPrinter.printSent(sendPacket);
-				if (!duplicateDataPacket) currentBlockNumber++;
-			}
-			receivedData = new byte[bufferSize];
-			receivePacket = new DatagramPacket(receivedData, receivedData.length);
-			// receive block
+			receivePacket = dataPacket;
+			// receive block, the last ACK is resent on a timeout
 			if(!packetReceiveWithTimeout(sendReceiveSocket, receivePacket, sendPacket))
 			{
 				out.close();
@@ -418,33 +580,23 @@ public class ServerThread extends Thread{
 			}
 			
 			TFTPInfoPrinter.printReceived(receivePacket);
-			
-			// Initial transfer, setup address to check for in future packets.
-			if (clientAddress == null && clientPort == -1) {
-				clientAddress = receivePacket.getAddress();
-				clientPort = receivePacket.getPort();
-			}
 									
 			if(!receivePacket.getAddress().equals(clientAddress) || receivePacket.getPort() != clientPort)
 			{
 				System.err.println("Packet from unknown address or port, discarding.");
-				// Reuse duplicate packet logic to prevent incrementing block number.
 				ErrorPacket ep = new ErrorPacket((byte)5, "Packet from unknown address or port, discarding.");
 				DatagramPacket errPkt = new DatagramPacket(ep.encode(), ep.encode().length, receivePacket.getAddress(), receivePacket.getPort());
 				sendReceiveSocket.send(errPkt);
 				TFTPInfoPrinter.printSent(errPkt);
-				err5 = true;
 				continue;
 			}
-			err5 = false;
 			
-			// validate packet
-			receivedData = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
-
-			opcode = Arrays.copyOf(receivedData, 2);
+			// validate packet where it was received, only an error is copied out of the buffer
+			receivedData = receivePacket.getData();
+			int length = receivePacket.getLength();
 
-			if (Arrays.equals(opcode, ErrorPacket.opcode)){
-				ErrorPacket ep = new ErrorPacket(receivedData);
+			if (ErrorPacket.hasOpcode(receivedData, length)){
+				ErrorPacket ep = new ErrorPacket(Arrays.copyOf(receivedData, length));
 				System.err.println(ep.getErrorMessage());
 				
 				out.close();
@@ -452,116 +604,124 @@ public class ServerThread extends Thread{
 			}
 			// The received packet should be an DATA packet at this point, and this have the Opcode defined in ackOP.
 			// If it is not an error packet or an DATA packet, something happened (these cases are in later iterations).
-			else if (!Arrays.equals(opcode, DataPacket.opcode)) {
+			else if (!DataPacket.hasOpcode(receivedData, length)) {
 				// Send ErrorPacket with error code 04 and stop transfer.
 				ErrorPacket ep = new ErrorPacket((byte)4, "Was expecting DATA packet.");
-				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort));
 				out.close();
 				return;
 			}
 			
-			if (!DataPacket.isValid(receivedData)) {
+			if (!DataPacket.isValid(receivedData, length, blockSize)) {
 				// Send ErrorPacket with error code 04 and stop transfer.
 				ErrorPacket ep = new ErrorPacket((byte)4, "DATA packet was malformed.");
-				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
+				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort));
 				out.close();
 				return;
 			}
-			DataPacket dp = new DataPacket(receivedData);
-			int blockNum = dp.getBlockNum();
+			int blockNum = DataPacket.readBlockNum(receivedData);
 
-			duplicateDataPacket = false;
-			if (blockNum != currentBlockNumber) {
-				
-				if (blockNum == 0) {
-					
-					currentBlockNumber -= 65536;
-				}
-				
-				 // If they're still not equal, another problem occurred.
-				if (blockNum != currentBlockNumber)
+			if (blockNum != (currentBlockNumber & 0xFFFF)) {
+				// Duplicate block means our ACK was lost, a block past the expected one means a gap in the window.
+				// Either way ACK the last block received in order so the client restarts from the one after it.
+				// With a window that is only done once until blocks arrive in order again.
+				if (DataPacket.isEarlierBlock(blockNum, currentBlockNumber) || windowSize > 1)
 				{
-					if(currentBlockNumber > blockNum)
-					{
-						//received duplicate data packet
-						duplicateDataPacket = true;
-						if (blockNum == 0) currentBlockNumber += 65536; // Restore block number since packet was a duplicate
-					}
-					else {
-						// Send ErrorPacket with error code 04 and stop transfer.
-						ErrorPacket ep = new ErrorPacket((byte)4, "DATA packet block number not in sequence or duplicate.");
-						sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, InetAddress.getLocalHost(), receivePacket.getPort()));
-						out.close();
-						return;
+					if (DataPacket.isEarlierBlock(blockNum, currentBlockNumber)) metrics.duplicateData();
+					if (windowSize == 1 || !reAcked) {
+						AckPacket.writePacket(ack, currentBlockNumber - 1);
+						sendPacket = ackPacket;
+						sendReceiveSocket.send(sendPacket);
+						TFTPInfoPrinter.printSent(sendPacket);
+						metrics.retransmitted(1);
+						rtt.retransmitted();
+						reAcked = true;
 					}
+					blocksSinceAck = 0;
+					continue;
 				}
+				// Send ErrorPacket with error code 04 and stop transfer.
+				ErrorPacket ep = new ErrorPacket((byte)4, "DATA packet block number not in sequence or duplicate.");
+				sendReceiveSocket.send(new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort));
+				out.close();
+				return;
 			}
 			
-			byte[] dataBlock = dp.getDataBlock();
-			
-			// Write dataBlock to file
-			if(!duplicateDataPacket)
-				{
-				try {
-					out.write(dataBlock);
+			// Queue the block to be written so the ACK doesn't wait for the disk, except the final one:
+			// once the client has it the file has to be stored, so it is written out and published first
+			int dataLength = length - 4;
+			try {
+				out.write(receivedData, 4, dataLength);
+				bytesReceived += dataLength;
+				if (dataLength < blockSize) {
+					out.flush();
+					part.publish(out.getDurability());
+				}
+			}
+			catch(IOException e)
+			{
+				String errorString;
+				ErrorPacket ep;
+				if (e instanceof FileAlreadyExistsException) {
+					// Another upload of the same name finished first
+					errorString = filename + " already exists on Server.";
+					ep = new ErrorPacket((byte) 6, errorString);
+				}
+				else if(String.valueOf(e.getMessage()).contains("(Access is denied)"))
+				{ // Hacky solution to get determine if invalid file permissions.
+					errorString = "Server could not write " + '"' + filename + '"' + ".";
+					ep = new ErrorPacket((byte) 2, errorString);
+				}
+				else{
+					errorString = "Server disk full, unable to write.";
+					ep = new ErrorPacket((byte) 3, errorString);
 				}
-				catch(IOException e)
-				{
-					String errorString;
-					ErrorPacket ep;
-					if(e.getMessage().contains("(Access is denied)"))
-					{ // Hacky solution to get determine if invalid file permissions.
-						errorString = "Server could not write " + '"' + filename + '"' + ".";
-						ep = new ErrorPacket((byte) 2, errorString);
-					}
-					else{
-						errorString = "Server disk full, unable to write.";
-						ep = new ErrorPacket((byte) 3, errorString);
-					}
-						
-					System.err.println(errorString);
 					
-					// Send errorPacket
-					sendPacket = new DatagramPacket(ep.encode(), ep.encode().length, receivePacket.getAddress(), receivePacket.getPort());
-					if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
-					{
-						out.close();
-						return;
-					}
-					TFTPInfoPrinter.printSent(sendPacket);
-					try {
-						out.close();
-					} catch (IOException e2) {
-						
-					}
+				System.err.println(errorString);
+				
+				// Send errorPacket
+				sendPacket = new DatagramPacket(ep.encode(), ep.encode().length, clientAddress, clientPort);
+				if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
+				{
+					out.close();
 					return;
 				}
+				TFTPInfoPrinter.printSent(sendPacket);
+				try {
+					out.close();
+				} catch (IOException e2) {
+					
+				}
+				return;
 			}
+			currentBlockNumber++;
+			blocksSinceAck++;
+			reAcked = false;
 			
+			// check if block is smaller than the block size which signifies end of file
+			boolean lastBlock = dataLength < blockSize;
 			
-			
-			// check if block is < 512 bytes which signifies end of file
-			if (dataBlock.length < 512) {
+			// ACK the last block of each window, and always the final block
+			if (lastBlock || blocksSinceAck >= windowSize) {
+				AckPacket.writePacket(ack, blockNum);
+				sendPacket = ackPacket;
+				if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
+				{
+					out.close();
+					return;
+				}
+				TFTPInfoPrinter.printSent(sendPacket);
+				blocksSinceAck = 0;
+			}
+			if (lastBlock) {
 				break; 
 			}
 		}
 		
-		//send the last ACK packet
-		AckPacket ap = new AckPacket(currentBlockNumber);
-		byte[] ack = ap.encode();
-		
-		// Initial request was sent to wellKnownPort, but steady state file transfer should happen on another port.
-		sendPacket = new DatagramPacket(ack, ack.length, InetAddress.getLocalHost(), receivePacket.getPort());
-		if(!packetSendWithTimeout(sendReceiveSocket, sendPacket))
-		{
-			out.close();
-			return;
-		}
-		TFTPInfoPrinter.printSent(sendPacket);
-		
 		out.close();
-		sendReceiveSocket.close();
+		completed = true;
+		bytesTransferred = bytesReceived;
 		System.out.println("Transfer complete");
 	}
-	
-}
\ No newline at end of file
+
+}
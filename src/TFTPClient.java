@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Thread safe front end to Client for programs that make many transfers at once.
+ *
+ * Each download or upload gets a Client of its own, so its own socket and session state, and
+ * runs on the executor given (or a pool of its own). At most parallelism of them run at a time,
+ * the rest wait in order of being made. The future completes with the TransferStats of the
+ * transfer, also when the transfer failed with an ERROR packet or timed out, and only completes
+ * exceptionally if the transfer couldn't be made at all (a socket or file error).
+ *
+ * The options set apply to transfers started after setting them.
+ */
+public class TFTPClient {
+	private final Executor executor;
+	// The pool made by the constructor without an executor, shut down by close()
+	private final ThreadPoolExecutor ownPool;
+	private final int parallelism;
+	private final AtomicInteger running = new AtomicInteger();
+	private final Queue<Transfer> waiting = new ConcurrentLinkedQueue<Transfer>();
+
+	private volatile int port = 69;
+	private volatile int blockSize = TransferOptions.DEFAULT_BLOCK_SIZE;
+	private volatile int windowSize = 1;
+	private volatile int timeout = 0;
+	private volatile String mode = "octet";
+	private volatile boolean quiet = false;
+
+	//runs transfers on a pool of its own with up to parallelism threads
+	public TFTPClient(int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+		final AtomicInteger count = new AtomicInteger();
+		ownPool = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "TFTPClient-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		ownPool.allowCoreThreadTimeOut(true);
+		this.executor = ownPool;
+		this.parallelism = parallelism;
+	}
+
+	//runs transfers on executor, which may be shared with other work, never more than parallelism at once
+	public TFTPClient(Executor executor, int parallelism) {
+		if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+		this.executor = executor;
+		this.ownPool = null;
+		this.parallelism = parallelism;
+	}
+
+	//port servers take requests on, 69 by default
+	public void setPort(int port) {
+		this.port = port;
+	}
+	//block size to ask for, as in Client.setBlockSize
+	public void setBlockSize(int blockSize) {
+		if (blockSize < TransferOptions.MIN_BLOCK_SIZE || blockSize > TransferOptions.MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("Block size must be between " + TransferOptions.MIN_BLOCK_SIZE + " and " + TransferOptions.MAX_BLOCK_SIZE);
+		}
+		this.blockSize = blockSize;
+	}
+	//window size to ask for, as in Client.setWindowSize
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > TransferOptions.MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException("Window size must be between 1 and " + TransferOptions.MAX_WINDOW_SIZE);
+		}
+		this.windowSize = windowSize;
+	}
+	//timeout in seconds to ask for, as in Client.setTimeout, 0 to adapt to the round trip time
+	public void setTimeout(int seconds) {
+		if (seconds != 0 && (seconds < TransferOptions.MIN_TIMEOUT || seconds > TransferOptions.MAX_TIMEOUT)) {
+			throw new IllegalArgumentException("Timeout must be between " + TransferOptions.MIN_TIMEOUT + " and " + TransferOptions.MAX_TIMEOUT + " seconds");
+		}
+		this.timeout = seconds;
+	}
+	//"octet" or "netascii"
+	public void setMode(String mode) {
+		this.mode = mode;
+	}
+	//leaves each step of the transfers off the console, as in Client.setQuiet
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+	//transfers running right now
+	public int getActive() {
+		return running.get();
+	}
+	//transfers waiting for one of the running ones to finish
+	public int getQueued() {
+		return waiting.size();
+	}
+
+	//downloads filename from host into target, which mustn't exist yet
+	public CompletableFuture<TransferStats> download(InetAddress host, String filename, File target) {
+		return submit(new Transfer(host, true, filename, target));
+	}
+
+	//uploads source to host, where it is saved as filename
+	public CompletableFuture<TransferStats> upload(InetAddress host, File source, String filename) {
+		return submit(new Transfer(host, false, filename, source));
+	}
+
+	//shuts down the pool made by TFTPClient(int), transfers already started still finish
+	//a shared executor is left alone
+	public void close() {
+		if (ownPool != null) ownPool.shutdown();
+	}
+
+	private CompletableFuture<TransferStats> submit(Transfer transfer) {
+		waiting.add(transfer);
+		startWaiting();
+		return transfer.future;
+	}
+
+	//starts waiting transfers until parallelism of them are running
+	private void startWaiting() {
+		while (!waiting.isEmpty()) {
+			int r = running.get();
+			if (r >= parallelism) return;
+			if (!running.compareAndSet(r, r + 1)) continue;
+			Transfer next = waiting.poll();
+			if (next == null) {
+				// Another thread took it first, give the slot back and look again
+				running.decrementAndGet();
+				continue;
+			}
+			try {
+				executor.execute(next);
+			} catch (RejectedExecutionException e) {
+				running.decrementAndGet();
+				next.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private class Transfer implements Runnable {
+		final InetAddress host;
+		final boolean read;
+		final String filename;
+		final File file;
+		final CompletableFuture<TransferStats> future = new CompletableFuture<TransferStats>();
+		// Options as they were when the transfer was made
+		final int port = TFTPClient.this.port;
+		final int blockSize = TFTPClient.this.blockSize;
+		final int windowSize = TFTPClient.this.windowSize;
+		final int timeout = TFTPClient.this.timeout;
+		final String mode = TFTPClient.this.mode;
+		final boolean quiet = TFTPClient.this.quiet;
+
+		Transfer(InetAddress host, boolean read, String filename, File file) {
+			this.host = host;
+			this.read = read;
+			this.filename = filename;
+			this.file = file;
+		}
+
+		public void run() {
+			Client client = null;
+			try {
+				// Any free port, a socket that can't be opened fails this transfer instead of exiting
+				client = new Client(0);
+				client.setServer(host);
+				client.setServerPort(port);
+				client.setBlockSize(blockSize);
+				client.setWindowSize(windowSize);
+				client.setTimeout(timeout);
+				client.setQuiet(quiet);
+				TransferStats stats;
+				if (read) stats = client.readFromServer(filename, mode, file);
+				else stats = client.writeToServer(file.getAbsolutePath(), mode, filename);
+				future.complete(stats);
+			} catch (IOException e) {
+				future.completeExceptionally(e);
+			} catch (RuntimeException e) {
+				future.completeExceptionally(e);
+			} finally {
+				if (client != null) client.close();
+				running.decrementAndGet();
+				startWaiting();
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/***
+ * Tuning settings shared by the server, client and error simulator.
+ * Each one is read from a system property so deployments can change them
+ * without another console prompt, e.g. java -Dtftp.maxTransfers=500 Server
+ */
+public class TFTPConfig {
+
+	//maximum number of transfers running at once, new requests past this are queued or rejected
+	public static int getMaxTransfers(int defaultValue) {
+		return Integer.getInteger("tftp.maxTransfers", defaultValue);
+	}
+
+	//number of requests allowed to wait for a free transfer slot before the server answers "busy"
+	public static int getAdmissionQueueSize() {
+		return Integer.getInteger("tftp.admissionQueue", 32);
+	}
+
+	//largest windowsize the server will accept, bigger requests are lowered to this
+	public static int getMaxWindowSize() {
+		return Integer.getInteger("tftp.maxWindowSize", 64);
+	}
+
+	//retransmission timeout in ms used before any round trip time has been measured
+	public static int getInitialTimeout() {
+		return Integer.getInteger("tftp.initialTimeout", 1000);
+	}
+
+	//lower bound in ms for the measured retransmission timeout
+	public static int getMinTimeout() {
+		return Integer.getInteger("tftp.minTimeout", 100);
+	}
+
+	//upper bound in ms for the retransmission timeout, backoff stops doubling here
+	public static int getMaxTimeout() {
+		return Integer.getInteger("tftp.maxTimeout", 60000);
+	}
+
+	//ms a transfer keeps resending to a peer that doesn't answer before it gives up, however short its timeouts are
+	public static long getGiveUpTimeout() {
+		return Long.getLong("tftp.giveUpTimeout", 25000);
+	}
+
+	//whether files being served may be memory mapped, turn off to always use positional reads
+	public static boolean isMemoryMapEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty("tftp.mmap"));
+	}
+
+	//bytes of file blocks the server keeps in memory for every transfer to share, set in MB, 0 turns the cache off
+	public static long getBlockCacheSize() {
+		return Long.getLong("tftp.blockCacheMB", 64) * 1024 * 1024;
+	}
+
+	//received blocks each upload or download can have waiting to be written to disk, 0 writes them before the ACK goes out
+	public static int getWriteBehindBlocks() {
+		return Integer.getInteger("tftp.writeBehind", 64);
+	}
+
+	//threads writing queued blocks to disk, shared by every transfer in the process
+	public static int getWriterThreads() {
+		return Integer.getInteger("tftp.writerThreads", 4);
+	}
+
+	//blocks of a file being sent read ahead of the ACKs, 0 reads each block when it is about to be sent.
+	//Off by default: with the file in memory (page cache, mapping or block cache) a read is only a copy,
+	//and handing blocks between threads costs more than it saves. Worth it for storage slower than the network
+	public static int getPrefetchBlocks() {
+		return Integer.getInteger("tftp.prefetch", 0);
+	}
+
+	//threads reading blocks ahead, shared by every transfer in the process
+	public static int getReaderThreads() {
+		return Integer.getInteger("tftp.readerThreads", 4);
+	}
+
+	//when received files are forced to disk: never (none), once when complete (close), or also every
+	//getSyncBytes bytes or getSyncMillis ms while they are being written (grouped)
+	public static FileBlockSink.Durability getDurability() {
+		String value = System.getProperty("tftp.durability", "close");
+		try {
+			return FileBlockSink.Durability.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown tftp.durability " + value + ", using close");
+			return FileBlockSink.Durability.CLOSE;
+		}
+	}
+
+	//with grouped durability, bytes written between forcing a file to disk, set in MB
+	public static long getSyncBytes() {
+		return Long.getLong("tftp.syncMB", 8) * 1024 * 1024;
+	}
+
+	//with grouped durability, longest time in ms a file being written goes without being forced to disk
+	public static long getSyncMillis() {
+		return Long.getLong("tftp.syncMillis", 1000);
+	}
+
+	//how much TFTPInfoPrinter shows in verbose mode: off, summary, header or full (header and hex dump)
+	public static TFTPInfoPrinter.Level getLogLevel() {
+		String value = System.getProperty("tftp.logLevel", "full");
+		try {
+			return TFTPInfoPrinter.Level.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Unknown tftp.logLevel " + value + ", using full");
+			return TFTPInfoPrinter.Level.FULL;
+		}
+	}
+
+	//TFTPInfoPrinter shows only every Nth DATA/ACK block of each transfer, 1 shows them all
+	public static int getLogSampling() {
+		return Integer.getInteger("tftp.logSampling", 1);
+	}
+
+	//packet events TFTPInfoPrinter can hold while the console catches up, more than that are dropped
+	public static int getLogBufferSize() {
+		return Integer.getInteger("tftp.logBuffer", 4096);
+	}
+
+	//ms without a packet after which the intermediate host forgets a transfer it was relaying
+	public static long getHostIdleTimeout() {
+		return Long.getLong("tftp.hostIdleTimeout", 30000);
+	}
+
+	//properties file of loss, delay, reordering... the intermediate host applies to every packet it relays, null for none
+	public static String getImpairmentFile() {
+		return System.getProperty("tftp.impairment");
+	}
+
+	//scenario file of errors the intermediate host causes in every transfer, null for none
+	public static String getScenarioFile() {
+		return System.getProperty("tftp.scenario");
+	}
+
+	//pcap file every packet the process sends and receives is captured to, null for no capture
+	public static String getCaptureFile() {
+		return System.getProperty("tftp.capture");
+	}
+
+	//bytes after which a capture file is closed and the next one started, 0 for one file
+	public static long getCaptureBytes() {
+		return Long.getLong("tftp.captureMB", 100) * 1024 * 1024;
+	}
+
+	//capture files kept once rotated, the oldest are deleted, 0 keeps them all
+	public static int getCaptureFiles() {
+		return Integer.getInteger("tftp.captureFiles", 10);
+	}
+
+	//bytes of packets the capture can hold while its writer catches up, twice over, more are left out
+	public static int getCaptureBufferSize() {
+		return Integer.getInteger("tftp.captureBufferKB", 4096) * 1024;
+	}
+
+	//whether TFTPMetrics are registered as MBeans, so jconsole can show them
+	public static boolean isJmxEnabled() {
+		return !"false".equalsIgnoreCase(System.getProperty("tftp.jmx"));
+	}
+}
@@ -1,55 +1,301 @@
-import java.net.DatagramPacket;
-
-public class TFTPInfoPrinter {
-	private static boolean verboseMode = true;
-	
-	
-	public static boolean isVerboseMode() {
-		return verboseMode;
-	}
-
-	public static void setVerboseMode(boolean verboseMode) {
-		TFTPInfoPrinter.verboseMode = verboseMode;
-	}
-
-	public static void printReceived(DatagramPacket receivePacket) {
-		if (verboseMode) {
-			byte[] data = receivePacket.getData();
-			
-			System.out.println("Packet received.");
-			System.out.println("From host: " + receivePacket.getAddress());
-			System.out.println("Host port: " + receivePacket.getPort());
-			int len = receivePacket.getLength();
-			System.out.println("Length: "+ len);
-			System.out.print("Containing: ");
-			String received = new String(data, 0, len);
-			System.out.println(received);
-			for(int k = 0; k < len; k++)
-			{
-				System.out.print(data[k] + " ");
-			}
-			System.out.println("\n");
-		}	
-		
-	}
-	
-	public static void printSent(DatagramPacket sendPacket) {
-		if (verboseMode) {
-			byte[] data = sendPacket.getData();
-			
-			System.out.println("Packet sent.");
-			System.out.println("To host: " + sendPacket.getAddress());
-			System.out.println("Host port: " + sendPacket.getPort());
-			int len = sendPacket.getLength();
-			System.out.println("Length: "+ len);
-			System.out.print("Containing: ");
-			String sent = new String(data, 0, len);
-			System.out.println(sent);
-			for(int k = 0; k < len; k++)
-			{
-				System.out.print(data[k] + " ");
-			}
-			System.out.println("\n");
-		}
-	}
-}
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * Prints the packets that are sent and received, depending on the verbosity.
+ *
+ * Printing happens on a writer thread of its own so transfers never wait on the console.
+ * printSent/printReceived only copy what the level needs out of the packet into the next slot
+ * of a fixed ring of events (claimed with a compare-and-set, no lock), and the writer formats
+ * the events in batches with one print call each. If the ring is full the event is dropped and
+ * counted rather than making the transfer wait, the writer reports how many were lost.
+ * Output therefore comes out a little after the packet was handled, flush() waits for it.
+ * With nothing to print the writer parks until the next event is recorded, a producer only
+ * has to unpark it when it flagged itself idle. Each event is formatted at the level that
+ * was set when it was recorded.
+ *
+ * Levels: OFF, SUMMARY (one line per packet), HEADER (address, port, length, opcode and block)
+ * and FULL (the header and a hex dump). With sampling set to N only every Nth block of each
+ * transfer is shown, requests, OACKs and errors always are. See TFTPConfig for the settings.
+ */
+public class TFTPInfoPrinter {
+	public enum Level { OFF, SUMMARY, HEADER, FULL }
+
+	// Bytes of each packet kept for the FULL hex dump, the rest is left out
+	private static final int MAX_DUMP = 1024;
+	private static final int BATCH = 256;
+	private static final String[] OPCODES = {"?", "RRQ", "WRQ", "DATA", "ACK", "ERROR", "OACK"};
+
+	private static volatile Level level = TFTPConfig.getLogLevel();
+	private static volatile int sampling = Math.max(1, TFTPConfig.getLogSampling());
+
+	private static final Event[] ring;
+	private static final int mask;
+	// Next sequence number a producer will claim, and the next one the writer will print
+	private static final AtomicLong claimed = new AtomicLong();
+	private static volatile long printed = 0;
+	private static final AtomicLong dropped = new AtomicLong();
+	private static volatile Thread writer;
+	// Set by the writer before it parks with nothing to print, a producer that sees it unparks the writer
+	private static volatile boolean idle = false;
+	// For flush to wait on, signalled by the writer after each batch while anyone is waiting
+	private static final ReentrantLock flushLock = new ReentrantLock();
+	private static final Condition printedMore = flushLock.newCondition();
+	private static volatile int flushWaiters = 0;
+
+	static {
+		int capacity = Integer.highestOneBit(Math.max(16, TFTPConfig.getLogBufferSize() - 1) << 1);
+		ring = new Event[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < capacity; i++) ring[i] = new Event(i - capacity);
+		if (level != Level.OFF) startWriter();
+	}
+
+	/***
+	 * One slot of the ring. published is the sequence number of the event it holds,
+	 * set last by the producer so the writer only reads it once it is complete.
+	 */
+	private static final class Event {
+		volatile long published;
+		Level level;
+		boolean sent;
+		InetAddress address;
+		int port;
+		int length;
+		int opcode;
+		int block;
+		int dumped;
+		byte[] bytes;
+
+		Event(long published) {
+			this.published = published;
+		}
+	}
+
+	public static boolean isVerboseMode() {
+		return level != Level.OFF;
+	}
+
+	//verbose shows packets at the level set by tftp.logLevel, quiet turns them off
+	public static void setVerboseMode(boolean verboseMode) {
+		Level configured = TFTPConfig.getLogLevel();
+		setLevel(verboseMode ? (configured == Level.OFF ? Level.FULL : configured) : Level.OFF);
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+		if (newLevel != Level.OFF) startWriter();
+	}
+
+	//shows every Nth block of each transfer, 1 shows them all
+	public static void setSampling(int everyNth) {
+		sampling = Math.max(1, everyNth);
+	}
+
+	//number of packet events lost because the writer couldn't keep up
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	public static void printReceived(DatagramPacket receivePacket) {
+		if (level == Level.OFF) return;
+		record(false, receivePacket.getAddress(), receivePacket.getPort(), receivePacket.getData(), receivePacket.getOffset(), null, receivePacket.getLength());
+	}
+
+	public static void printSent(DatagramPacket sendPacket) {
+		if (level == Level.OFF) return;
+		record(true, sendPacket.getAddress(), sendPacket.getPort(), sendPacket.getData(), sendPacket.getOffset(), null, sendPacket.getLength());
+	}
+
+	//same as above for a packet between the buffer's position and limit, which are left as they are
+	public static void printReceived(ByteBuffer packet, InetSocketAddress from) {
+		if (level == Level.OFF) return;
+		record(false, from.getAddress(), from.getPort(), null, packet.position(), packet, packet.remaining());
+	}
+
+	public static void printSent(ByteBuffer packet, InetSocketAddress to) {
+		if (level == Level.OFF) return;
+		record(true, to.getAddress(), to.getPort(), null, packet.position(), packet, packet.remaining());
+	}
+
+	//copies what the level needs from the packet (in array or buffer) into the next free slot, never waits
+	private static void record(boolean sent, InetAddress address, int port, byte[] array, int offset, ByteBuffer buffer, int length) {
+		Level current = level;
+		if (current == Level.OFF) return;
+		int opcode = length >= 2 ? (byteAt(array, buffer, offset) & 0xFF) << 8 | (byteAt(array, buffer, offset + 1) & 0xFF) : -1;
+		int block = (opcode == 3 || opcode == 4) && length >= 4
+				? (byteAt(array, buffer, offset + 2) & 0xFF) << 8 | (byteAt(array, buffer, offset + 3) & 0xFF) : -1;
+		int every = sampling;
+		if (every > 1 && block != -1 && block % every != 0) return;
+
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - printed >= ring.length) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		Event e = ring[(int) sequence & mask];
+		e.level = current;
+		e.sent = sent;
+		e.address = address;
+		e.port = port;
+		e.length = length;
+		e.opcode = opcode;
+		e.block = block;
+		e.dumped = 0;
+		if (current == Level.FULL) {
+			if (e.bytes == null) e.bytes = new byte[MAX_DUMP];
+			e.dumped = Math.min(length, MAX_DUMP);
+			if (array != null) System.arraycopy(array, offset, e.bytes, 0, e.dumped);
+			else for (int i = 0; i < e.dumped; i++) e.bytes[i] = buffer.get(offset + i);
+		}
+		e.published = sequence;
+		if (idle) {
+			idle = false;
+			LockSupport.unpark(writer);
+		}
+	}
+
+	private static byte byteAt(byte[] array, ByteBuffer buffer, int index) {
+		return array != null ? array[index] : buffer.get(index);
+	}
+
+	/***
+	 * Waits up to timeoutMillis for everything recorded so far to be printed,
+	 * e.g. before a prompt so the packets come out ahead of it.
+	 */
+	public static void flush(long timeoutMillis) {
+		long target = claimed.get();
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		flushLock.lock();
+		try {
+			flushWaiters++;
+			while (printed < target && writer != null && nanos > 0) {
+				nanos = printedMore.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			flushWaiters--;
+			flushLock.unlock();
+		}
+	}
+
+	private static synchronized void startWriter() {
+		if (writer != null) return;
+		writer = new Thread("TFTPInfoPrinter") {
+			public void run() {
+				writeEvents();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		// Whatever is still in the ring when the program exits is printed first
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush(2000);
+			}
+		});
+	}
+
+	//the writer thread, prints the events in order a batch at a time
+	private static void writeEvents() {
+		StringBuilder out = new StringBuilder();
+		long lastDropped = 0;
+		while (true) {
+			int count = 0;
+			while (count < BATCH) {
+				Event e = ring[(int) printed & mask];
+				if (e.published != printed) break;
+				format(e, out);
+				e.address = null;
+				printed++;
+				count++;
+			}
+			long lost = dropped.get();
+			if (lost != lastDropped) {
+				out.append("(").append(lost - lastDropped).append(" packets not shown, printing fell behind)\n");
+				lastDropped = lost;
+			}
+			if (out.length() > 0) {
+				System.out.print(out);
+				System.out.flush();
+				out.setLength(0);
+			}
+			if (count > 0 && flushWaiters > 0) {
+				flushLock.lock();
+				try {
+					printedMore.signalAll();
+				} finally {
+					flushLock.unlock();
+				}
+			}
+			if (count < BATCH) {
+				// Nothing more to print. Flag it before looking once more, so an event recorded
+				// after that look sees the flag and unparks the writer
+				idle = true;
+				if (ring[(int) printed & mask].published != printed) LockSupport.park();
+				idle = false;
+			}
+		}
+	}
+
+	private static void format(Event e, StringBuilder out) {
+		String name = e.opcode > 0 && e.opcode < OPCODES.length ? OPCODES[e.opcode] : "unknown";
+		if (e.level == Level.SUMMARY) {
+			out.append(e.sent ? "Sent " : "Received ").append(name);
+			if (e.block != -1) out.append(" #").append(e.block);
+			out.append(" (").append(e.length).append(" bytes) ").append(e.sent ? "to " : "from ")
+					.append(e.address).append(':').append(e.port).append('\n');
+			return;
+		}
+		out.append(e.sent ? "Packet sent.\n" : "Packet received.\n");
+		out.append(e.sent ? "To host: " : "From host: ").append(e.address).append('\n');
+		out.append("Host port: ").append(e.port).append('\n');
+		out.append("Length: ").append(e.length).append('\n');
+		out.append("Opcode: ").append(name);
+		if (e.block != -1) out.append(", block ").append(e.block);
+		out.append('\n');
+		if (e.dumped > 0) hexDump(e.bytes, e.dumped, out);
+		if (e.dumped < e.length && e.dumped > 0) out.append("(").append(e.length - e.dumped).append(" more bytes)\n");
+		out.append('\n');
+	}
+
+	//16 bytes a line: offset, hex, then the printable characters
+	private static void hexDump(byte[] bytes, int length, StringBuilder out) {
+		for (int line = 0; line < length; line += 16) {
+			String offset = Integer.toHexString(line);
+			for (int i = offset.length(); i < 4; i++) out.append('0');
+			out.append(offset).append("  ");
+			for (int i = line; i < line + 16; i++) {
+				if (i < length) {
+					int b = bytes[i] & 0xFF;
+					out.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16)).append(' ');
+				}
+				else {
+					out.append("   ");
+				}
+			}
+			out.append(' ');
+			for (int i = line; i < line + 16 && i < length; i++) {
+				char c = (char) (bytes[i] & 0xFF);
+				out.append(c >= 32 && c < 127 ? c : '.');
+			}
+			out.append('\n');
+		}
+	}
+}
@@ -0,0 +1,320 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/***
+ * Live counters for the transfers and packets of one part of the system (the server, the client
+ * or the intermediate host), registered as the MBean TFTP:type=<name> so they can be watched
+ * with jconsole while it runs. Started with -Dcom.sun.management.jmxremote.port=<port> (and
+ * authentication/ssl set up or turned off) they can be read from another machine too.
+ *
+ * Everything is counted with LongAdders, so the transfer threads recording packets don't contend
+ * with each other or with a JMX reader. Packets are counted by MeteredDatagramSocket, or by the
+ * NIO engine directly, the transfer code only records what a socket can't see (timeouts,
+ * retransmissions, duplicates and how each transfer ended).
+ */
+public class TFTPMetrics implements TFTPMetricsMBean {
+	public static final String SERVER = "Server";
+	public static final String CLIENT = "Client";
+	public static final String HOST = "IntermediateHost";
+
+	// 0-7 from RFC 1350, 8 option negotiation refused (RFC 2347)
+	private static final int ERROR_CODES = 9;
+	private static final long RATE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private static final Map<String, TFTPMetrics> registry = new HashMap<String, TFTPMetrics>();
+
+	private final String name;
+	private final LongAdder activeTransfers = new LongAdder();
+	private final LongAdder completedTransfers = new LongAdder();
+	private final LongAdder failedTransfers = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder dataSent = new LongAdder();
+	private final LongAdder dataReceived = new LongAdder();
+	private final LongAdder acksSent = new LongAdder();
+	private final LongAdder acksReceived = new LongAdder();
+	private final LongAdder retransmissions = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder duplicateAcks = new LongAdder();
+	private final LongAdder duplicateData = new LongAdder();
+	private final LongAdder prefetchHits = new LongAdder();
+	private final LongAdder prefetchStalls = new LongAdder();
+	private final LongAdder prefetchReady = new LongAdder();
+	private final LongAdder[] errorsSent = new LongAdder[ERROR_CODES];
+	private final Histogram durationMillis = new Histogram();
+	private final Histogram throughputKBps = new Histogram();
+
+	// Guarded by this, the packet counts at the last rate reading
+	private long rateTime = System.nanoTime();
+	private long rateData = 0;
+	private long rateAcks = 0;
+	private double dataRate = 0;
+	private double ackRate = 0;
+
+	public TFTPMetrics(String name) {
+		this.name = name;
+		for (int i = 0; i < ERROR_CODES; i++) errorsSent[i] = new LongAdder();
+	}
+
+	/***
+	 * The metrics for name (SERVER, CLIENT or HOST), created and registered with the platform
+	 * MBean server the first time they are asked for. Every caller in the process shares them.
+	 */
+	public static synchronized TFTPMetrics get(String name) {
+		TFTPMetrics metrics = registry.get(name);
+		if (metrics == null) {
+			metrics = new TFTPMetrics(name);
+			registry.put(name, metrics);
+			if (TFTPConfig.isJmxEnabled()) {
+				try {
+					ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("TFTP:type=" + name));
+				} catch (JMException e) {
+					// Still counted, just not visible over JMX
+					System.err.println("Could not register " + name + " metrics with JMX: " + e);
+				}
+			}
+		}
+		return metrics;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void transferStarted() {
+		activeTransfers.increment();
+	}
+
+	/***
+	 * Records how a transfer that was counted by transferStarted ended. Duration and throughput
+	 * only go in the histograms for transfers that completed.
+	 * @param bytes size of the file transferred
+	 */
+	public void transferFinished(boolean completed, long bytes, long nanos) {
+		activeTransfers.decrement();
+		if (!completed) {
+			failedTransfers.increment();
+			return;
+		}
+		completedTransfers.increment();
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		durationMillis.record(millis);
+		// Faster than the clock can tell counts as 1 ms
+		throughputKBps.record(bytes * 1000 / 1024 / Math.max(1, millis));
+	}
+
+	//a packet as sent or received, counted by its opcode
+	public void packetSent(byte[] data, int offset, int length) {
+		bytesSent.add(length);
+		if (length < 2) return;
+		int opcode = (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+		countSent(opcode, length >= 4 ? (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF) : -1);
+	}
+
+	public void packetReceived(byte[] data, int offset, int length) {
+		bytesReceived.add(length);
+		if (length < 2) return;
+		countReceived((data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF));
+	}
+
+	//same as above for a packet between the buffer's position and limit, which are left as they are
+	public void packetSent(ByteBuffer packet) {
+		int start = packet.position();
+		int length = packet.remaining();
+		bytesSent.add(length);
+		if (length < 2) return;
+		int opcode = (packet.get(start) & 0xFF) << 8 | (packet.get(start + 1) & 0xFF);
+		countSent(opcode, length >= 4 ? (packet.get(start + 2) & 0xFF) << 8 | (packet.get(start + 3) & 0xFF) : -1);
+	}
+
+	public void packetReceived(ByteBuffer packet) {
+		int start = packet.position();
+		int length = packet.remaining();
+		bytesReceived.add(length);
+		if (length < 2) return;
+		countReceived((packet.get(start) & 0xFF) << 8 | (packet.get(start + 1) & 0xFF));
+	}
+
+	//field is the 2 bytes after the opcode: a block number or an error code
+	private void countSent(int opcode, int field) {
+		if (opcode == PacketView.DATA) dataSent.increment();
+		else if (opcode == PacketView.ACK) acksSent.increment();
+		else if (opcode == PacketView.ERROR && field >= 0 && field < ERROR_CODES) errorsSent[field].increment();
+	}
+
+	private void countReceived(int opcode) {
+		if (opcode == PacketView.DATA) dataReceived.increment();
+		else if (opcode == PacketView.ACK) acksReceived.increment();
+	}
+
+	public void retransmitted(int packets) {
+		retransmissions.add(packets);
+	}
+	public void timedOut() {
+		timeouts.increment();
+	}
+	public void duplicateAck() {
+		duplicateAcks.increment();
+	}
+	public void duplicateData() {
+		duplicateData.increment();
+	}
+	//a DATA packet was taken from a BlockPrefetcher with ready packets read ahead, 0 meaning it had to wait for the disk
+	public void prefetchTaken(int ready) {
+		if (ready > 0) prefetchHits.increment();
+		else prefetchStalls.increment();
+		prefetchReady.add(ready);
+	}
+
+	public long getActiveTransfers() {
+		return activeTransfers.sum();
+	}
+	public long getCompletedTransfers() {
+		return completedTransfers.sum();
+	}
+	public long getFailedTransfers() {
+		return failedTransfers.sum();
+	}
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+	public long getDataPacketsSent() {
+		return dataSent.sum();
+	}
+	public long getDataPacketsReceived() {
+		return dataReceived.sum();
+	}
+	public long getAckPacketsSent() {
+		return acksSent.sum();
+	}
+	public long getAckPacketsReceived() {
+		return acksReceived.sum();
+	}
+
+	public double getDataPacketsPerSecond() {
+		updateRates();
+		synchronized (this) {
+			return dataRate;
+		}
+	}
+
+	public double getAckPacketsPerSecond() {
+		updateRates();
+		synchronized (this) {
+			return ackRate;
+		}
+	}
+
+	//works the rates out again from the counts, if a second has passed since they were last worked out
+	private synchronized void updateRates() {
+		long now = System.nanoTime();
+		long elapsed = now - rateTime;
+		if (elapsed < RATE_INTERVAL) return;
+		long data = dataSent.sum() + dataReceived.sum();
+		long acks = acksSent.sum() + acksReceived.sum();
+		dataRate = (data - rateData) * 1e9 / elapsed;
+		ackRate = (acks - rateAcks) * 1e9 / elapsed;
+		rateTime = now;
+		rateData = data;
+		rateAcks = acks;
+	}
+
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+	public long getDuplicateAcks() {
+		return duplicateAcks.sum();
+	}
+	public long getDuplicateData() {
+		return duplicateData.sum();
+	}
+
+	public int getPrefetchDepth() {
+		return TFTPConfig.getPrefetchBlocks();
+	}
+	public long getPrefetchHits() {
+		return prefetchHits.sum();
+	}
+	public long getPrefetchStalls() {
+		return prefetchStalls.sum();
+	}
+	public double getPrefetchMeanReady() {
+		long taken = prefetchHits.sum() + prefetchStalls.sum();
+		return taken == 0 ? 0 : (double) prefetchReady.sum() / taken;
+	}
+
+	public long[] getErrorsSentByCode() {
+		long[] counts = new long[ERROR_CODES];
+		for (int i = 0; i < ERROR_CODES; i++) counts[i] = errorsSent[i].sum();
+		return counts;
+	}
+
+	public String getTransferDurationMillis() {
+		return durationMillis.toString();
+	}
+	public String[] getTransferDurationHistogram() {
+		return durationMillis.getBuckets();
+	}
+	public String getThroughputKBps() {
+		return throughputKBps.toString();
+	}
+	public String[] getThroughputHistogram() {
+		return throughputKBps.getBuckets();
+	}
+
+	//zeroes everything but the active transfers, which are still running
+	public void reset() {
+		for (LongAdder counter : new LongAdder[] {completedTransfers, failedTransfers, bytesSent, bytesReceived,
+				dataSent, dataReceived, acksSent, acksReceived, retransmissions, timeouts, duplicateAcks, duplicateData,
+				prefetchHits, prefetchStalls, prefetchReady}) {
+			counter.reset();
+		}
+		for (LongAdder counter : errorsSent) counter.reset();
+		durationMillis.reset();
+		throughputKBps.reset();
+		synchronized (this) {
+			rateTime = System.nanoTime();
+			rateData = 0;
+			rateAcks = 0;
+			dataRate = 0;
+			ackRate = 0;
+		}
+	}
+
+	public String toString() {
+		StringBuilder errors = new StringBuilder();
+		long[] byCode = getErrorsSentByCode();
+		for (int i = 0; i < byCode.length; i++) {
+			if (byCode[i] > 0) errors.append(errors.length() == 0 ? "" : ", ").append(i).append(": ").append(byCode[i]);
+		}
+		return String.format("%d active, %d completed, %d failed%n"
+				+ "Bytes: %d sent, %d received%n"
+				+ "DATA: %d sent, %d received (%.0f/s), ACK: %d sent, %d received (%.0f/s)%n"
+				+ "Retransmissions: %d, timeouts: %d, duplicate ACKs: %d, duplicate DATA: %d%n"
+				+ "Read-ahead (%d blocks): %d ready, %d stalled, %.1f blocks ready on average%n"
+				+ "Errors sent by code: %s%n"
+				+ "Duration (ms): %s%n"
+				+ "Throughput (KB/s): %s",
+				getActiveTransfers(), getCompletedTransfers(), getFailedTransfers(),
+				getBytesSent(), getBytesReceived(),
+				getDataPacketsSent(), getDataPacketsReceived(), getDataPacketsPerSecond(),
+				getAckPacketsSent(), getAckPacketsReceived(), getAckPacketsPerSecond(),
+				getRetransmissions(), getTimeouts(), getDuplicateAcks(), getDuplicateData(),
+				getPrefetchDepth(), getPrefetchHits(), getPrefetchStalls(), getPrefetchMeanReady(),
+				errors.length() == 0 ? "none" : errors,
+				durationMillis, throughputKBps);
+	}
+}
@@ -0,0 +1,46 @@
+/***
+ * What TFTPMetrics shows over JMX, e.g. in jconsole under TFTP > Server.
+ * Counts are since the program started or reset was last called.
+ */
+public interface TFTPMetricsMBean {
+	long getActiveTransfers();
+	long getCompletedTransfers();
+	long getFailedTransfers();
+
+	//every datagram counted in full, headers included
+	long getBytesSent();
+	long getBytesReceived();
+
+	long getDataPacketsSent();
+	long getDataPacketsReceived();
+	long getAckPacketsSent();
+	long getAckPacketsReceived();
+	//DATA or ACK packets sent and received per second, measured between one reading and the next (at least a second apart)
+	double getDataPacketsPerSecond();
+	double getAckPacketsPerSecond();
+
+	//packets sent again because a timeout expired, a window was restarted or an ACK was repeated
+	long getRetransmissions();
+	//receive timeouts, each one followed by a retransmission or by giving up
+	long getTimeouts();
+	long getDuplicateAcks();
+	long getDuplicateData();
+
+	//blocks read ahead of the ACKs while sending a file (tftp.prefetch), DATA packets that were already
+	//read when it was time to send them and ones that had to wait for the disk, and how many were ready on average
+	int getPrefetchDepth();
+	long getPrefetchHits();
+	long getPrefetchStalls();
+	double getPrefetchMeanReady();
+
+	//ERROR packets sent, indexed by error code 0-8
+	long[] getErrorsSentByCode();
+
+	//completed transfers only: count, mean, percentiles and max
+	String getTransferDurationMillis();
+	String[] getTransferDurationHistogram();
+	String getThroughputKBps();
+	String[] getThroughputHistogram();
+
+	void reset();
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Bounded pool that runs transfers, with a short queue in front of it.
+ * Once every worker is busy and the queue is full, tryAdmit refuses the transfer
+ * so the server can answer with a "busy" error straight away.
+ *
+ * Virtual threads are cheap enough that pooling them only caps them, so for those
+ * the pool is replaced by a semaphore: every admitted transfer gets a new thread
+ * and the permit comes back when it finishes, nothing waits in a queue.
+ */
+public class TransferAdmission {
+	private final int maxTransfers;
+	private final ThreadPoolExecutor pool;
+	private final Semaphore permits;
+	private final ThreadFactory threadFactory;
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	public TransferAdmission(int maxTransfers, int queueSize, ThreadFactory threadFactory) {
+		this.maxTransfers = maxTransfers;
+		BlockingQueue<Runnable> queue;
+		if (queueSize > 0) queue = new ArrayBlockingQueue<Runnable>(queueSize);
+		else queue = new SynchronousQueue<Runnable>();
+		pool = new ThreadPoolExecutor(maxTransfers, maxTransfers, 30, TimeUnit.SECONDS, queue, threadFactory);
+		pool.allowCoreThreadTimeOut(true);
+		permits = null;
+		this.threadFactory = null;
+	}
+
+	//a thread per transfer from threadFactory, at most maxTransfers of them at once
+	public TransferAdmission(int maxTransfers, ThreadFactory threadFactory) {
+		this.maxTransfers = maxTransfers;
+		pool = null;
+		permits = new Semaphore(maxTransfers);
+		this.threadFactory = threadFactory;
+	}
+
+	//queues the transfer, returns false if the server is too busy to take it
+	public boolean tryAdmit(final Runnable transfer) {
+		if (permits != null) return tryStart(transfer);
+		final long queuedAt = System.nanoTime();
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					recordWait(System.nanoTime() - queuedAt);
+					transfer.run();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	private boolean tryStart(final Runnable transfer) {
+		if (!permits.tryAcquire()) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		try {
+			threadFactory.newThread(new Runnable() {
+				public void run() {
+					try {
+						transfer.run();
+					} finally {
+						permits.release();
+					}
+				}
+			}).start();
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	private void recordWait(long nanos) {
+		totalWaitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos));
+	}
+
+	public int getMaxTransfers() {
+		return maxTransfers;
+	}
+	public int getActiveTransfers() {
+		if (permits != null) return maxTransfers - permits.availablePermits();
+		return pool.getActiveCount();
+	}
+	public int getQueueDepth() {
+		if (permits != null) return 0;
+		return pool.getQueue().size();
+	}
+	public long getAdmitted() {
+		return admitted.get();
+	}
+	public long getRejected() {
+		return rejected.get();
+	}
+	public double getAverageWaitMillis() {
+		long n = admitted.get();
+		return n == 0 ? 0 : totalWaitNanos.get() / 1e6 / n;
+	}
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	public void shutdown() {
+		if (pool != null) pool.shutdown();
+	}
+}
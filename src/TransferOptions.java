@@ -0,0 +1,154 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * Option extension (RFC 2347) values agreed for one transfer: blksize (RFC 2348),
+ * tsize and timeout (RFC 2349) and windowsize (RFC 7440).
+ * The server side accepts what it can out of a request's options, and the
+ * client side checks the server's OACK against what it asked for.
+ */
+public class TransferOptions {
+	public static final String BLKSIZE = "blksize";
+	public static final int DEFAULT_BLOCK_SIZE = 512;
+	public static final int MIN_BLOCK_SIZE = 8;
+	public static final int MAX_BLOCK_SIZE = 65464;
+	public static final String WINDOWSIZE = "windowsize";
+	public static final int MAX_WINDOW_SIZE = 65535;
+	public static final String TSIZE = "tsize";
+	public static final String TIMEOUT = "timeout";
+	public static final int MIN_TIMEOUT = 1;
+	public static final int MAX_TIMEOUT = 255;
+
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private int windowSize = 1;
+	private long transferSize = -1;
+	private int timeout = 0;
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+	//size of a full DATA packet, the largest packet that can arrive during the transfer
+	public int getPacketSize() {
+		return blockSize + 4;
+	}
+	//number of DATA blocks sent before waiting for an ACK (RFC 7440), 1 is stop-and-wait
+	public int getWindowSize() {
+		return windowSize;
+	}
+	//size of the file in bytes from the tsize option, -1 if it wasn't agreed
+	public long getTransferSize() {
+		return transferSize;
+	}
+	//retransmission timeout in seconds from the timeout option, 0 if it wasn't agreed
+	public int getTimeout() {
+		return timeout;
+	}
+
+	//retransmission timeout for the transfer, fixed to the timeout option if one was agreed
+	public RttEstimator newRttEstimator() {
+		if (timeout == 0) return new RttEstimator();
+		int ms = timeout * 1000;
+		return new RttEstimator(ms, ms, ms);
+	}
+
+	//server side: pick the options from a request that will be used, putting them in accepted for the OACK
+	//unknown or malformed options are left out, which tells the client they were not accepted
+	//tsize is echoed back as requested, for a RRQ the caller has to replace it with the file's length
+	public static TransferOptions negotiate(Map<String, String> requested, Map<String, String> accepted) {
+		TransferOptions options = new TransferOptions();
+		String value = requested.get(BLKSIZE);
+		if (value != null) {
+			int size = parseInt(value);
+			if (size >= MIN_BLOCK_SIZE) {
+				options.blockSize = Math.min(size, MAX_BLOCK_SIZE);
+				accepted.put(BLKSIZE, Integer.toString(options.blockSize));
+			}
+		}
+		value = requested.get(WINDOWSIZE);
+		if (value != null) {
+			int size = parseInt(value);
+			if (size >= 1 && size <= MAX_WINDOW_SIZE) {
+				options.windowSize = Math.min(size, TFTPConfig.getMaxWindowSize());
+				accepted.put(WINDOWSIZE, Integer.toString(options.windowSize));
+			}
+		}
+		value = requested.get(TSIZE);
+		if (value != null) {
+			long size = parseLong(value);
+			if (size >= 0) {
+				options.transferSize = size;
+				accepted.put(TSIZE, Long.toString(size));
+			}
+		}
+		value = requested.get(TIMEOUT);
+		if (value != null) {
+			int seconds = parseInt(value);
+			if (seconds >= MIN_TIMEOUT && seconds <= MAX_TIMEOUT) {
+				options.timeout = seconds;
+				accepted.put(TIMEOUT, Integer.toString(seconds));
+			}
+		}
+		return options;
+	}
+
+	//client side: the options to put in a request
+	//timeout 0 leaves the timeout option out, transferSize is 0 for a RRQ, the file length for a WRQ or -1 to leave tsize out
+	public static Map<String, String> request(int blockSize, int windowSize, int timeout, long transferSize) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		if (blockSize != DEFAULT_BLOCK_SIZE) options.put(BLKSIZE, Integer.toString(blockSize));
+		if (windowSize != 1) options.put(WINDOWSIZE, Integer.toString(windowSize));
+		if (timeout != 0) options.put(TIMEOUT, Integer.toString(timeout));
+		if (transferSize >= 0) options.put(TSIZE, Long.toString(transferSize));
+		return options;
+	}
+
+	//client side: apply the values from an OACK, returns false if the server answered with something we didn't ask for
+	public boolean acceptOack(Map<String, String> requested, Map<String, String> oack) {
+		for (String name : oack.keySet()) {
+			if (!requested.containsKey(name)) return false;
+		}
+		String value = oack.get(BLKSIZE);
+		if (value != null) {
+			int size = parseInt(value);
+			// Server may only lower the block size
+			if (size < MIN_BLOCK_SIZE || size > parseInt(requested.get(BLKSIZE))) return false;
+			blockSize = size;
+		}
+		value = oack.get(WINDOWSIZE);
+		if (value != null) {
+			int size = parseInt(value);
+			// Server may only lower the window size
+			if (size < 1 || size > parseInt(requested.get(WINDOWSIZE))) return false;
+			windowSize = size;
+		}
+		value = oack.get(TSIZE);
+		if (value != null) {
+			long size = parseLong(value);
+			if (size < 0) return false;
+			transferSize = size;
+		}
+		value = oack.get(TIMEOUT);
+		if (value != null) {
+			// Server has to use the timeout as requested or leave it out
+			if (parseInt(value) != parseInt(requested.get(TIMEOUT))) return false;
+			timeout = parseInt(value);
+		}
+		return true;
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static int parseInt(String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
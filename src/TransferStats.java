@@ -0,0 +1,75 @@
+/***
+ * How one transfer made by Client went, returned by readFromServer and writeToServer.
+ */
+public class TransferStats {
+	// No ERROR packet ended the transfer
+	public static final int NO_ERROR = -1;
+
+	private final String filename;
+	private final boolean read;
+	private final boolean completed;
+	private final long bytes;
+	private final long nanos;
+	private final int errorCode;
+	private final boolean timedOut;
+	private final int timeouts;
+	private final double smoothedRtt;
+
+	public TransferStats(String filename, boolean read, boolean completed, long bytes, long nanos, int errorCode, boolean timedOut, RttEstimator rtt) {
+		this.filename = filename;
+		this.read = read;
+		this.completed = completed;
+		this.bytes = bytes;
+		this.nanos = nanos;
+		this.errorCode = errorCode;
+		this.timedOut = timedOut;
+		this.timeouts = rtt.getTimeouts();
+		this.smoothedRtt = rtt.getSmoothedRtt();
+	}
+
+	//name of the file on the server
+	public String getFilename() {
+		return filename;
+	}
+	//true for a read (RRQ), false for a write (WRQ)
+	public boolean isRead() {
+		return read;
+	}
+	//whether the whole file went through
+	public boolean isCompleted() {
+		return completed;
+	}
+	//size of the file, 0 unless the transfer completed
+	public long getBytes() {
+		return bytes;
+	}
+	//from the request being made to the transfer ending, however it ended
+	public long getNanos() {
+		return nanos;
+	}
+	//code of the ERROR packet that ended the transfer, whichever side sent it, or NO_ERROR
+	public int getErrorCode() {
+		return errorCode;
+	}
+	//whether the transfer gave up after too many timeouts in a row
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+	//timeouts during the transfer, including ones it recovered from
+	public int getTimeouts() {
+		return timeouts;
+	}
+	public double getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	//bytes per second of file data, 0 if it didn't complete
+	public double getGoodput() {
+		return completed && nanos > 0 ? bytes * 1e9 / nanos : 0;
+	}
+
+	public String toString() {
+		String result = completed ? "completed" : timedOut ? "timed out" : errorCode != NO_ERROR ? "failed with error " + errorCode : "failed";
+		return String.format("%s %s %s, %d bytes in %.1f ms", read ? "Read" : "Write", filename, result, bytes, nanos / 1e6);
+	}
+}
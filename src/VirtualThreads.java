@@ -0,0 +1,49 @@
+import java.lang.reflect.Method;
+
+/***
+ * Starts tasks on Java 21 virtual threads when the running JVM has them.
+ * The project still builds for Java 8, so the Thread.ofVirtual() API is
+ * looked up reflectively instead of being referenced directly.
+ */
+public class VirtualThreads {
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method unstarted;
+
+	static {
+		Method v = null, n = null, u = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			v = Thread.class.getMethod("ofVirtual");
+			n = builder.getMethod("name", String.class);
+			u = builder.getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			v = null;
+		}
+		ofVirtual = v;
+		name = n;
+		unstarted = u;
+	}
+
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	//creates an unstarted virtual thread running task
+	public static Thread newThread(String threadName, Runnable task) {
+		if (!isSupported()) throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+		try {
+			Object builder = ofVirtual.invoke(null);
+			builder = name.invoke(builder, threadName);
+			return (Thread) unstarted.invoke(builder, task);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not create virtual thread", e);
+		}
+	}
+
+	public static Thread start(String threadName, Runnable task) {
+		Thread t = newThread(threadName, task);
+		t.start();
+		return t;
+	}
+}